@@ -0,0 +1,87 @@
+import benchmarks.BrokerHarness;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// BrokerHarness over a Broker that listens on no port; see BrokerHarness for why this class is in
+// the default package
+public class BenchmarkBroker implements BrokerHarness {
+    private final Broker broker;
+
+    public BenchmarkBroker(String[] brokerOptions) {
+        // At the default level only creates and deletes log a line, handed to the log thread as in
+        // production; the thread's console writes go nowhere, so they stay out of the measurement
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        broker = new Broker(0, new ArrayList<>(), BrokerOptions.parse(brokerOptions, new ArrayList<>()));
+    }
+
+    @Override
+    public Object connect(boolean binary) throws IOException {
+        NullConnection client = new NullConnection();
+        if (binary) {
+            broker.handleCommand(BinaryProtocol.HANDSHAKE + " bench", client);
+        }
+        return client;
+    }
+
+    @Override
+    public void handleCommand(Object client, String command) throws IOException {
+        broker.handleCommand(command, (ClientConnection) client);
+    }
+
+    // Copies the body out the way the NIO server reads a frame into its own array
+    @Override
+    public void handleFrame(Object client, byte[] frame) throws IOException {
+        broker.handleFrame(BinaryProtocol.decode(Arrays.copyOfRange(frame, 4, frame.length)), (ClientConnection) client);
+    }
+
+    @Override
+    public int createTopic(Object binaryClient, String topicId, String topicName) throws IOException {
+        NullConnection client = (NullConnection) binaryClient;
+        handleFrame(client, new BinaryProtocol.FrameBuilder(BinaryProtocol.CREATE, 1)
+            .putString(topicId).putString(topicName).toByteArray());
+        ByteBuffer reply = ByteBuffer.wrap(client.lastFrame);
+        if (reply.get(4) != BinaryProtocol.OK) {
+            throw new IllegalStateException("Cannot create topic " + topicId);
+        }
+        return reply.getInt(4 + BinaryProtocol.HEADER_LENGTH);
+    }
+
+    @Override
+    public byte[] publishFrame(int handle, byte[] payload) {
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH, 1, 4 + payload.length)
+            .putInt(handle).putBytes(payload).toByteArray();
+    }
+
+    @Override
+    public byte[] subscribeFrame(String topicId) {
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.SUBSCRIBE, 1).putString(topicId).toByteArray();
+    }
+
+    @Override
+    public String getTimestamp() {
+        return broker.getTimestamp();
+    }
+
+    private static final class NullConnection extends ClientConnection {
+        byte[] lastFrame; // the last reply or delivery; read back during setup only
+
+        @Override
+        public void send(byte[] frame) {
+            lastFrame = frame;
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
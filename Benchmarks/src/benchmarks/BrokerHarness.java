@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.io.IOException;
+
+// The benchmarks' handle on an in-process Broker. JMH only runs benchmarks in a named package, and
+// code in a named package cannot refer to the Broker's classes in the default package, so the
+// implementation (BenchmarkBroker) lives in the default package and is loaded by name. Clients are
+// in-memory connections that discard what the broker sends them.
+public interface BrokerHarness {
+    static BrokerHarness create(String... brokerOptions) {
+        try {
+            return (BrokerHarness) Class.forName("BenchmarkBroker")
+                .getConstructor(String[].class).newInstance((Object) brokerOptions);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot start the broker", e);
+        }
+    }
+
+    // A client speaking the text protocol, or the binary one after the "binary" handshake
+    Object connect(boolean binary) throws IOException;
+
+    // One line of the text protocol, as the broker reads it from a client
+    void handleCommand(Object client, String command) throws IOException;
+
+    // One binary frame as it arrives on the wire, length prefix included
+    void handleFrame(Object client, byte[] frame) throws IOException;
+
+    // Creates a topic over the binary protocol and returns its handle
+    int createTopic(Object binaryClient, String topicId, String topicName) throws IOException;
+
+    byte[] publishFrame(int handle, byte[] payload);
+
+    byte[] subscribeFrame(String topicId);
+
+    String getTimestamp();
+}
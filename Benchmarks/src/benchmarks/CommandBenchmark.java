@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing and dispatching one client command, as handleClient and the NIO server do per line or
+// frame. The topic has no subscribers, so this is the fixed cost every publish pays.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    private static final String PAYLOAD = "price=101.25 status=OK";
+
+    private BrokerHarness broker;
+    private Object textClient;
+    private Object binaryClient;
+    private byte[] publishFrame;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = BrokerHarness.create();
+        textClient = broker.connect(false);
+        broker.handleCommand(textClient, "create bench Bench alice");
+        binaryClient = broker.connect(true);
+        int handle = broker.createTopic(binaryClient, "bench-binary", "Bench");
+        publishFrame = broker.publishFrame(handle, PAYLOAD.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void publishText() throws Exception {
+        broker.handleCommand(textClient, "publish bench alice " + PAYLOAD);
+    }
+
+    @Benchmark
+    public void publishBinary() throws Exception {
+        broker.handleFrame(binaryClient, publishFrame);
+    }
+
+    @Benchmark
+    public void list() throws Exception {
+        broker.handleCommand(textClient, "list");
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One publish delivered to every subscriber of the topic (publishMessage). Divide by the
+// subscriber count for the cost per delivery; gc.alloc.rate.norm should not grow with it, since
+// each message is encoded once per protocol and the frame shared.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "10", "100", "1000", "10000", "100000"})
+    public int subscribers;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private BrokerHarness broker;
+    private Object publisher;
+
+    @Setup
+    public void setUp() throws Exception {
+        broker = BrokerHarness.create();
+        publisher = broker.connect(false);
+        broker.handleCommand(publisher, "create bench Bench alice");
+        byte[] subscribeFrame = broker.subscribeFrame("bench");
+        for (int i = 0; i < subscribers; i++) {
+            if (protocol.equals("binary")) {
+                broker.handleFrame(broker.connect(true), subscribeFrame);
+            } else {
+                broker.handleCommand(broker.connect(false), "subscribe bench");
+            }
+        }
+    }
+
+    @Benchmark
+    public void publish() throws Exception {
+        broker.handleCommand(publisher, "publish bench alice price=101.25 status=OK");
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Topic and subscription changes (createTopic, subscribeToTopic, unsubscribeFromTopic), in pairs
+// so the registry is back where it started after each call. Subscribing copies the topic's
+// subscriber array, so that pair is measured on a topic that already has subscribers.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+    @State(Scope.Thread)
+    public static class Topics {
+        BrokerHarness broker;
+        Object publisher;
+
+        @Setup
+        public void setUp() throws Exception {
+            broker = BrokerHarness.create();
+            publisher = broker.connect(false);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Subscribers {
+        @Param({"0", "1000"})
+        public int existing;
+
+        BrokerHarness broker;
+        Object subscriber;
+
+        @Setup
+        public void setUp() throws Exception {
+            broker = BrokerHarness.create();
+            broker.handleCommand(broker.connect(false), "create bench Bench alice");
+            for (int i = 0; i < existing; i++) {
+                broker.handleCommand(broker.connect(false), "subscribe bench");
+            }
+            subscriber = broker.connect(false);
+        }
+    }
+
+    @Benchmark
+    public void createAndDelete(Topics state) throws Exception {
+        state.broker.handleCommand(state.publisher, "create bench Bench alice");
+        state.broker.handleCommand(state.publisher, "delete bench alice");
+    }
+
+    @Benchmark
+    public void subscribeAndUnsubscribe(Subscribers state) throws Exception {
+        state.broker.handleCommand(state.subscriber, "subscribe bench");
+        state.broker.handleCommand(state.subscriber, "unsubscribe bench");
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Decides whether a client's publish may go ahead, so one publisher cannot flood a topic or the
+// broker at the expense of everyone else. Each publisher and each topic can have a token bucket
+// (RateLimiter), and the bytes of publishes being fanned out at once across the broker can be
+// capped. A publish over a limit is refused with a "throttled" reply, or with maxWaitMillis set
+// the publisher's thread waits up to that long for it, which stops the broker reading from its
+// socket and lets TCP slow the publisher down. Messages forwarded by peer brokers were admitted
+// where they were published and are not checked again. Nothing here takes a lock.
+public class AdmissionControl {
+    public enum Verdict { ADMITTED, PUBLISHER_RATE, TOPIC_RATE, IN_FLIGHT }
+
+    private static final long IN_FLIGHT_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final double publisherRate; // messages per second, 0 for no limit
+    private final long publisherBurst;
+    private final long maxInFlightBytes; // 0 for no budget
+    private final long maxWaitNanos; // 0 to refuse at once
+    private final boolean enabled;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final LongAdder[] throttled = new LongAdder[Verdict.values().length];
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    public AdmissionControl(double publisherRate, long publisherBurst, long maxInFlightBytes, long maxWaitMillis,
+                            boolean topicLimits) {
+        this.publisherRate = publisherRate;
+        this.publisherBurst = publisherBurst;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.enabled = publisherRate > 0 || maxInFlightBytes > 0 || topicLimits;
+        for (int i = 0; i < throttled.length; i++) {
+            throttled[i] = new LongAdder();
+        }
+    }
+
+    // A publish of one message; call release(bytes) once it has been fanned out
+    public Verdict admit(ClientConnection publisher, TopicRegistry.Topic topic, long bytes) {
+        return enabled ? admit(publisher, topic, null, 1, bytes) : Verdict.ADMITTED;
+    }
+
+    // A batch is admitted or refused as a whole
+    public Verdict admitBatch(ClientConnection publisher, TopicRegistry.Topic[] topics, long bytes) {
+        return enabled ? admit(publisher, null, topics, topics.length, bytes) : Verdict.ADMITTED;
+    }
+
+    // A later chunk of a large message admitted with its first one: only its bytes count
+    public Verdict admitChunk(long bytes) {
+        if (maxInFlightBytes > 0 && !reserveInFlight(bytes, System.nanoTime() + maxWaitNanos)) {
+            return throttle(Verdict.IN_FLIGHT);
+        }
+        return Verdict.ADMITTED;
+    }
+
+    public void release(long bytes) {
+        if (maxInFlightBytes > 0) {
+            inFlightBytes.addAndGet(-bytes);
+        }
+    }
+
+    private Verdict admit(ClientConnection publisher, TopicRegistry.Topic topic, TopicRegistry.Topic[] topics,
+                          int count, long bytes) {
+        long start = System.nanoTime();
+        long wait = 0;
+        RateLimiter publisherLimiter = publisherRate > 0 ? publisherLimiter(publisher) : null;
+        if (publisherLimiter != null) {
+            wait = publisherLimiter.reserve(count, maxWaitNanos);
+            if (wait < 0) {
+                return throttle(Verdict.PUBLISHER_RATE);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            RateLimiter topicLimiter = (topics == null ? topic : topics[i]).getPublishLimiter();
+            long topicWait = topicLimiter == null ? 0 : topicLimiter.reserve(1, maxWaitNanos);
+            if (topicWait < 0) {
+                refund(publisherLimiter, count, topic, topics, i);
+                return throttle(Verdict.TOPIC_RATE);
+            }
+            wait = Math.max(wait, topicWait);
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        if (maxInFlightBytes > 0 && !reserveInFlight(bytes, start + maxWaitNanos)) {
+            refund(publisherLimiter, count, topic, topics, count);
+            return throttle(Verdict.IN_FLIGHT);
+        }
+        if (maxWaitNanos > 0) {
+            waits.record(System.nanoTime() - start);
+        }
+        return Verdict.ADMITTED;
+    }
+
+    // A message larger than the whole budget still goes through once nothing else is in flight
+    private boolean reserveInFlight(long bytes, long deadline) {
+        while (true) {
+            long current = inFlightBytes.get();
+            if (current > 0 && current + bytes > maxInFlightBytes) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(IN_FLIGHT_POLL_NANOS);
+            } else if (inFlightBytes.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private static void refund(RateLimiter publisherLimiter, int count, TopicRegistry.Topic topic,
+                               TopicRegistry.Topic[] topics, int topicsReserved) {
+        if (publisherLimiter != null) {
+            publisherLimiter.refund(count);
+        }
+        for (int i = 0; i < topicsReserved; i++) {
+            RateLimiter topicLimiter = (topics == null ? topic : topics[i]).getPublishLimiter();
+            if (topicLimiter != null) {
+                topicLimiter.refund(1);
+            }
+        }
+    }
+
+    // Made on the publisher's first publish; its commands run one at a time
+    private RateLimiter publisherLimiter(ClientConnection publisher) {
+        RateLimiter limiter = publisher.getPublishLimiter();
+        if (limiter == null) {
+            limiter = new RateLimiter(publisherRate, publisherBurst);
+            publisher.setPublishLimiter(limiter);
+        }
+        return limiter;
+    }
+
+    private Verdict throttle(Verdict verdict) {
+        throttled[verdict.ordinal()].increment();
+        return verdict;
+    }
+
+    public long getThrottled(Verdict verdict) {
+        return throttled[verdict.ordinal()].sum();
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    // How long admitted publishes waited, when publishers are held up rather than refused
+    public LatencyHistogram getWaits() {
+        return waits;
+    }
+}
@@ -1,470 +1,2397 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Broker {
     private int port;
     private List<String> otherBrokers;
-    private Map<String, String> topics = new HashMap<>(); // topic_id -> topic_name
-    private Map<String, Set<String>> topicPublishers = new HashMap<>(); // topicId -> publisher names
-    private Map<String, List<Socket>> topicSubscribers = new HashMap<>(); // topicId -> subscriber
-    private Map<Socket, Set<String>> subscriberTopics = new HashMap<>(); // subscriber socket -> set of topicIds
-    private Map<Socket, Set<String>> publisherTopics = new HashMap<>(); // publisher socket -> set of topicIds
-    private List<Socket> connectedBrokers = new ArrayList<>();
+    private TopicRegistry registry; // topics, publishers and subscribers
+    private List<PeerLink> connectedBrokers = new CopyOnWriteArrayList<>();
+    private Set<PeerLink> openLinks = ConcurrentHashMap.newKeySet(); // ours, connectedBrokers and those not yet synced
+    private Set<String> dialing = ConcurrentHashMap.newKeySet(); // addresses we keep a link to
+    private Map<PeerLink, Long> linkLostAt = new ConcurrentHashMap<>(); // links replacing a lost one, to when it was lost
+    private Map<ClientConnection, PeerState> peerConnections = new ConcurrentHashMap<>(); // other brokers' links to us
+    private Map<String, PeerState> peerStates = new ConcurrentHashMap<>(); // by broker ID, also while away
+    // Held while peerStates and peerConnections change together; never while sending or waiting
+    private ReentrantLock peerLock = new ReentrantLock();
+    private Set<String> announcedPatterns = new HashSet<>(); // guarded by the registry's pattern lock
     private ServerSocket serverSocket;
+    private BrokerOptions options;
+    private boolean virtualThreads;
+    private ThreadFactory threadFactory;
+    // Messages forwarded to other brokers are tagged <brokerId>/<sequence>
+    private String brokerId;
+    private String messageIdPrefix;
+    private ConsistentHashRing ring; // null unless --sharding
+    private ReentrantLock rebalanceLock = new ReentrantLock(); // one rebalance at a time
+    private AtomicLong nextMessageSequence = new AtomicLong();
+    // The topic creates and deletes this broker forwards, numbered; each peer's PeerState keeps the
+    // last one it applied from that peer, so together they form a version vector (see startSync)
+    private ChangeJournal journal;
+    // Journaled changes not yet queued to peers, in version order, and the lock of the one thread
+    // sending them (see forwardChange)
+    private Queue<Runnable> pendingForwards = new ConcurrentLinkedQueue<>();
+    private ReentrantLock forwardLock = new ReentrantLock();
+    private String incarnation; // tells this run of the broker from earlier ones with the same ID
+    private long heartbeatMillis;
+    private long heartbeatPauseMillis;
+    private double failurePhi;
+    private long peerGraceMillis;
+    private long reconnectMaxMillis;
+    private DeduplicationCache seenMessages;
+    // Large messages being relayed, by the connection sending them and its stream or message ID
+    private Map<ClientConnection, Map<String, ChunkedTransfer>> transfers = new ConcurrentHashMap<>();
+    private AtomicInteger nextStreamId = new AtomicInteger();
+    private long maxMessageBytes;
+    private Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private int sessionBacklog;
+    private long sessionGraceMillis;
+    private int pageSize; // the most topics one list or showAll reply holds
+    private BrokerMetrics metrics;
+    private AdmissionControl admission; // limits on publishes from clients
+    private LogManager logs; // null unless --persist
+    private static final int SYNC_BATCH_CHARS = 32 * 1024;
+    private static final long RECONNECT_MIN_MILLIS = 100;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final String END_OF_RESPONSE = "END_OF_RESPONSE";
+    private static final String ALL_PEERS = "*"; // interest announced to every peer, see announceInterest
+    private static final String NOT_A_TOKEN = "Topic IDs and names must not contain spaces or control characters.";
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("dd/MM HH:mm:ss").withZone(ZoneId.systemDefault());
+    private volatile Timestamp timestamp = new Timestamp(-1, "");
 
     public Broker(int port, List<String> otherBrokers) {
+        this(port, otherBrokers, new BrokerOptions());
+    }
+
+    public Broker(int port, List<String> otherBrokers, BrokerOptions options) {
         this.port = port;
         this.otherBrokers = otherBrokers;
+        this.options = options;
+        this.virtualThreads = options.get("threads", "platform").equals("virtual");
+        this.threadFactory = virtualThreads ? Thread.ofVirtual().factory() : Thread.ofPlatform().factory();
+        String logLevel = options.get("log-level", null);
+        if (logLevel != null) {
+            Log.setLevel(Log.Level.valueOf(logLevel.toUpperCase()));
+        }
+        double topicRate = options.getDouble("topic-rate", 0);
+        this.registry = new TopicRegistry(options.getInt("retain", 0), options.getLong("retain-bytes", 1024 * 1024),
+            topicRate, options.getLong("topic-burst", Math.max(1, (long) topicRate)));
+        String brokerId = options.get("broker-id", Long.toHexString(new SecureRandom().nextLong()));
+        if (!brokerId.matches("[A-Za-z0-9._-]+")) {
+            throw new IllegalArgumentException("Invalid --broker-id: " + brokerId);
+        }
+        this.brokerId = brokerId;
+        this.messageIdPrefix = brokerId + "/";
+        this.incarnation = Long.toHexString(new SecureRandom().nextLong());
+        this.journal = new ChangeJournal(options.getInt("journal-size", 16384));
+        this.heartbeatMillis = Math.max(1, options.getLong("heartbeat-ms", 500));
+        this.heartbeatPauseMillis = options.getLong("heartbeat-pause-ms", 1000);
+        this.failurePhi = options.getDouble("failure-phi", 8);
+        this.peerGraceMillis = options.getLong("peer-grace-ms", 30000);
+        this.reconnectMaxMillis = Math.max(RECONNECT_MIN_MILLIS, options.getLong("reconnect-max-ms", 10000));
+        if (options.get("sharding", null) != null) {
+            this.ring = new ConsistentHashRing(options.getInt("virtual-nodes", 128));
+            ring.add(brokerId);
+        }
+        boolean nio = options.get("io", "thread").equals("nio");
+        if (nio && OutboundQueue.OverflowPolicy.parse(options.get("overflow", "drop-oldest"))
+                == OutboundQueue.OverflowPolicy.BLOCK) {
+            // A loop waiting for one client's queue would hold up every other connection on it
+            throw new IllegalArgumentException("--overflow=block cannot be used with --io=nio");
+        }
+        double publisherRate = options.getDouble("publisher-rate", 0);
+        long throttleWaitMillis = options.getLong("throttle-wait-ms", 0);
+        if (throttleWaitMillis > 0 && nio) {
+            // Waiting would hold up every connection on the loop; NIO publishers are refused instead
+            Log.warn("--throttle-wait-ms={} is ignored with --io=nio", throttleWaitMillis);
+            throttleWaitMillis = 0;
+        }
+        this.admission = new AdmissionControl(publisherRate,
+            options.getLong("publisher-burst", Math.max(1, (long) publisherRate)),
+            options.getLong("max-inflight-bytes", 0), throttleWaitMillis, topicRate > 0);
+        this.metrics = new BrokerMetrics(registry, connectedBrokers, admission);
+        this.seenMessages = new DeduplicationCache(
+            options.getInt("dedup-size", 100000), options.getLong("dedup-ttl-ms", 60000));
+        this.maxMessageBytes = options.getLong("max-message-bytes", 64L * 1024 * 1024);
+        this.sessionBacklog = options.getInt("session-backlog", 4096);
+        if (sessionBacklog < 1) {
+            throw new IllegalArgumentException("--session-backlog must be at least 1: " + sessionBacklog);
+        }
+        this.sessionGraceMillis = options.getLong("session-grace-ms", 60000);
+        this.pageSize = Math.max(1, options.getInt("page-size", 1000));
+        String persistDirectory = options.get("persist", null);
+        if (persistDirectory != null) {
+            this.logs = new LogManager(Path.of(persistDirectory),
+                options.getInt("segment-bytes", 64 * 1024 * 1024),
+                options.getLong("retention-bytes", Long.MAX_VALUE),
+                options.getLong("retention-ms", 7L * 24 * 60 * 60 * 1000),
+                options.getLong("fsync-ms", 100));
+        }
+    }
+
+    // Starts a connection or peer thread, virtual when the broker runs with --threads=virtual
+    private Thread startThread(Runnable task) {
+        Thread thread = threadFactory.newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    TopicRegistry getRegistry() {
+        return registry;
+    }
+
+    BrokerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Each connection gets its own bounded queue so a slow consumer only backs up itself
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(
+            options.getInt("outbound-queue", 1024),
+            OutboundQueue.OverflowPolicy.parse(options.get("overflow", "drop-oldest")),
+            options.getLong("overflow-block-ms", 10000));
+    }
+
+    // Forwarded commands must not be dropped, so a full peer queue holds up the forwarding thread, or
+    // stops the NIO loops reading (see PeerLink.send), and only a peer that stays stuck for
+    // overflow-block-ms is disconnected
+    private PeerLink newPeerLink(Socket socket, String address) throws IOException {
+        OutboundQueue queue = new OutboundQueue(
+            options.getInt("peer-queue", 65536),
+            OutboundQueue.OverflowPolicy.BLOCK,
+            options.getLong("overflow-block-ms", 10000));
+        PhiAccrualDetector detector = new PhiAccrualDetector(100, heartbeatMillis, heartbeatPauseMillis);
+        PeerLink link = new PeerLink(socket, address, queue, threadFactory, detector, this::memberJoined,
+            this::peerInterestChanged, closed -> {
+            openLinks.remove(closed);
+            linkLostAt.remove(closed);
+            journal.getLock().lock();
+            try {
+                connectedBrokers.remove(closed);
+            } finally {
+                journal.getLock().unlock();
+            }
+            if (!closed.isDuplicate()) {
+                Log.info("Disconnected from broker: {}", closed);
+            }
+            memberLeft(closed);
+        });
+        openLinks.add(link);
+        link.start();
+        // Identifies the link so the peer sends back which topics it has subscribers for
+        link.send(ClientConnection.encode(PeerLink.HELLO + " " + brokerId + " " + incarnation));
+        return link;
+    }
+
+    List<PeerLink> getPeerLinks() {
+        return connectedBrokers;
+    }
+
+    // Whether forwards queued by the NIO loops have put a peer link over capacity; the loops read no
+    // more commands from their clients until it drains
+    boolean isPeerBacklogged() {
+        for (PeerLink link : connectedBrokers) {
+            if (link.isBacklogged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Formatted at most once per second and shared by every thread
+    String getTimestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        Timestamp cached = timestamp;
+        if (cached.second != second) {
+            cached = new Timestamp(second, TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)));
+            timestamp = cached;
+        }
+        return cached.text;
+    }
+
+    private static final class Timestamp {
+        final long second;
+        final String text;
+
+        Timestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // Another broker as seen through its link to us: the topics created there are ours to keep
+    // while it is away for up to --peer-grace-ms, so a broker that links up again within that time
+    // keeps them and is only sent what changed
+    private static final class PeerState {
+        final String id;
+        final String incarnation;
+        final ClientConnection connection; // creator of the peer's topics here
+        volatile long version = -1; // last of its changes applied, -1 until its first sync is done
+        volatile long departedAt; // nanoTime its link dropped, 0 while linked
+        Set<String> deletedDuringSync; // while a full sync is in progress
+        Set<String> stale; // topics held from before that the sync has not mentioned yet
+
+        PeerState(String id, String incarnation, ClientConnection connection) {
+            this.id = id;
+            this.incarnation = incarnation;
+            this.connection = connection;
+        }
+    }
+
+    public void start() throws IOException {
+        if (logs != null) {
+            logs.start();
+        }
+        metrics.start(port);
+        Thread sessionExpiry = new Thread(this::expireSessions, "session-expiry");
+        sessionExpiry.setDaemon(true);
+        sessionExpiry.start();
+        Thread heartbeats = new Thread(this::heartbeatLoop, "peer-heartbeat");
+        heartbeats.setDaemon(true);
+        heartbeats.start();
+        if (options.get("io", "thread").equals("nio")) {
+            int ioThreads = options.getInt("io-threads", Runtime.getRuntime().availableProcessors());
+            NioServer nioServer = new NioServer(this, port, ioThreads);
+            Log.info("Broker started on port {} with {} NIO loops", port, ioThreads);
+            otherBrokers.forEach(this::maintainLink);
+            nioServer.start();
+            return;
+        }
+
+        serverSocket = new ServerSocket(port);
+        Log.info("Broker started on port {}{}", port, virtualThreads ? " with virtual threads" : "");
+
+        // Start connecting to other brokers
+        otherBrokers.forEach(this::maintainLink);
+
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            startThread(() -> handleClient(clientSocket));
+        }
+    }
+
+    // Notify other brokers of the new broker and propagate the connection
+    private void sendNewBrokerInfo(PeerLink link) throws IOException {
+        link.send(ClientConnection.encode("newbroker " + InetAddress.getLocalHost().getHostAddress() + ":" + port));
+    }
+
+    private void handleClient(Socket clientSocket) {
+        SocketConnection connection;
+        try {
+            // Replies and deliveries are flushed per burst already, as in the NIO server
+            clientSocket.setTcpNoDelay(true);
+            connection = new SocketConnection(clientSocket, newOutboundQueue(), threadFactory);
+            connection.start();
+        } catch (IOException e) {
+            Log.warn("Failed to open client connection: {}", clientSocket);
+            return;
+        }
+        metrics.connectionOpened(connection);
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
+            String command;
+            while (true) {
+
+                if (clientSocket.isClosed() || !clientSocket.isConnected()) {
+                    handleClientCrash(connection);
+                    break;
+                }
+
+                if ((command = in.readLine()) != null) {
+                    handleCommand(command, connection);
+                    if (connection.isBinary()) {
+                        // The client waits for "binary ok" before sending frames, so nothing
+                        // past the handshake line is sitting in the reader's buffer
+                        handleBinaryClient(clientSocket, connection);
+                        break;
+                    }
+                } else {
+                    handleClientCrash(connection);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            handleClientCrash(connection);
+        } catch (RuntimeException e) {
+            // A command or frame the Broker could not handle; the client is cleaned up as if it had crashed
+            Log.warn("Closing {} after a failed command: {}", connection, e);
+            handleClientCrash(connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void handleBinaryClient(Socket clientSocket, ClientConnection connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        BinaryProtocol.Frame frame;
+        while ((frame = BinaryProtocol.read(in)) != null) {
+            handleFrame(frame, connection);
+        }
+        handleClientCrash(connection);
+    }
+
+    // Runs one line of the text protocol, for both the threaded and the NIO server
+    void handleCommand(String command, ClientConnection client) throws IOException {
+        String[] parts = command.split(" ");
+
+        switch (parts[0]) {
+            case "create":
+                // Exactly three words: a name with a space in it would otherwise be cut short
+                if (parts.length != 4) {
+                    client.println("error Usage: create <topicId> <topicName> <publisherName>");
+                    break;
+                }
+                String topicId = parts[1];
+                String topicName = parts[2];
+                String publisherName = parts[3];
+                if (!isToken(topicId) || !isToken(topicName) || !isToken(publisherName)) {
+                    client.println("error " + NOT_A_TOKEN);
+                    break;
+                }
+                createTopic(topicId, topicName, publisherName, client, client);
+                forwardCreateToBrokers(topicId, topicName, publisherName, client.getSocket());
+                break;
+            case "forwardCreateToBrokers":
+                // Commands forwarded by a peer are not answered; the peer only discards replies
+                topicId = parts[1];
+                topicName = parts[2];
+                publisherName = parts[3];
+                createTopic(topicId, topicName, publisherName, client, ClientConnection.DISCARD);
+                PeerState peer = peerConnections.get(client);
+                if (peer != null && peer.stale != null) {
+                    peer.stale.remove(topicId);
+                }
+                notePeerVersion(peer, parts, 4);
+                break;
+            case "syncBegin":
+                // syncBegin, syncTopics <topicId> <name> <publisher> ..., syncDone <version>: the
+                // peer's own topics, streamed when its link to us comes up (see startSync). With a
+                // version, "syncBegin <version>", only the changes after it follow, as forwarded.
+                peer = peerConnections.get(client);
+                if (peer != null && parts.length == 1) {
+                    peer.deletedDuringSync = new HashSet<>();
+                    peer.stale = new HashSet<>(registry.getPublisherTopics(peer.connection));
+                    peer.stale.addAll(registry.getPublisherTopics(client));
+                }
+                break;
+            case "syncTopics":
+                peer = peerConnections.get(client);
+                if (peer == null || peer.stale == null) {
+                    break;
+                }
+                for (int i = 1; i + 2 < parts.length; i += 3) {
+                    // A topic deleted since the snapshot read it may still be in a later batch
+                    peer.stale.remove(parts[i]);
+                    if (!peer.deletedDuringSync.contains(parts[i])
+                        && registry.createTopic(parts[i], parts[i + 1], parts[i + 2], client)) {
+                        topicCreated(registry.getTopic(parts[i]));
+                    }
+                }
+                break;
+            case "syncDone":
+                peer = peerConnections.get(client);
+                if (peer == null) {
+                    break;
+                }
+                if (peer.stale != null) {
+                    // Held from the peer's previous link, but deleted there while it was away
+                    for (String stale : peer.stale) {
+                        deleteTopic(stale);
+                    }
+                    peer.stale = null;
+                    peer.deletedDuringSync = null;
+                }
+                peer.version = Math.max(peer.version, Long.parseLong(parts[1]));
+                Log.info("Synced topics from broker {} at version {}", peer.id, parts[1]);
+                break;
+            case "publish":
+                if (parts.length < 4) {
+                    client.println("error Usage: publish <topicId> <publisherName> <message>");
+                    break;
+                }
+                topicId = parts[1];
+                publisherName = parts[2];
+                TopicRegistry.Topic publishedTopic = registry.getTopic(topicId);
+                if (publishedTopic != null && publishedTopic.isPublisher(publisherName)) {
+                    // Everything after the third space, exactly as sent
+                    byte[] payload = command.split(" ", 4)[3].getBytes(StandardCharsets.UTF_8);
+                    AdmissionControl.Verdict verdict = admission.admit(client, publishedTopic, payload.length);
+                    if (verdict != AdmissionControl.Verdict.ADMITTED) {
+                        client.println("throttled " + throttledReason(verdict));
+                        break;
+                    }
+                    try {
+                        publishMessage(topicId, payload);
+                        forwardMessageToBrokers(topicId, payload);
+                    } finally {
+                        admission.release(payload.length);
+                    }
+                    client.println("success");
+                } else {
+                    client.println("error You are not the creator of this topic.");
+                }
+                break;
+            case "forwardPublishToBrokers":
+                // forwardPublishToBrokers <topicId> <messageId> <payload>
+                String[] forward = command.split(" ", 4);
+                if (isFirstArrival(forward[2])) {
+                    byte[] forwarded = forward[3].getBytes(StandardCharsets.UTF_8);
+                    publishMessage(forward[1], forwarded);
+                    relayMessage(forward[1], forward[2], forwarded);
+                }
+                break;
+            case "forwardPublishBinaryToBrokers":
+                forward = command.split(" ", 4);
+                if (isFirstArrival(forward[2])) {
+                    byte[] forwarded = Base64.getDecoder().decode(forward[3]);
+                    publishMessage(forward[1], forwarded);
+                    relayMessage(forward[1], forward[2], forwarded);
+                }
+                break;
+            case "forwardChunkToBrokers":
+                // forwardChunkToBrokers <topicId> <messageId> <flags> <totalLength> <base64 bytes>; a
+                // message that reaches us over more than one link is relayed from the first only
+                forward = command.split(" ", 6);
+                byte flags = Byte.parseByte(forward[3]);
+                TopicRegistry.Topic chunkTopic = registry.getTopic(forward[1]);
+                if (chunkTopic != null && ((flags & BinaryProtocol.CHUNK_FIRST) == 0 || isFirstArrival(forward[2]))
+                    && relayChunk(client, forward[2], chunkTopic, flags, Long.parseLong(forward[4]),
+                        ByteBuffer.wrap(Base64.getDecoder().decode(forward[5])), forward[2]) != null) {
+                    abortTransfer(client, forward[2]);
+                }
+                break;
+            case BinaryProtocol.HANDSHAKE:
+                client.switchToBinary(parts.length > 1 ? parts[1] : "");
+                client.println(BinaryProtocol.HANDSHAKE_OK);
+                break;
+            case "session":
+                // session <sessionId> <name> <frames received>: like "binary <name>", but opens or
+                // resumes a session that keeps the client's subscriptions while it is disconnected
+                if (parts.length < 4 || !parts[3].matches("\\d+")) {
+                    client.println("error Usage: session <sessionId> <name> <frames received>");
+                    break;
+                }
+                long received = Long.parseLong(parts[3]);
+                long from;
+                Session session;
+                do {
+                    session = sessions.computeIfAbsent(parts[1], id -> new Session(id, parts[2], sessionBacklog));
+                    if (!session.getClientName().equals(parts[2])) {
+                        // Only the client that opened the session may take it over
+                        client.println("error Session " + parts[1] + " belongs to another client.");
+                        return;
+                    }
+                    from = session.resume(client, received);
+                    if (from < 0) {
+                        // Expired a moment ago; its cleanup is under way
+                        sessions.remove(parts[1], session);
+                    }
+                } while (from < 0);
+                Log.debug("Session {} resumed by {} from frame {}", parts[1], client, from);
+                break;
+            case "showAll":
+                // showAll <publisherName> [prefix=<p>] [after=<cursor>] [limit=<n>]
+                if (parts.length < 2) {
+                    showException("Usage: showAll <publisherName>", client);
+                    break;
+                }
+                publisherName = parts[1];
+                try {
+                    showTopicsAndSubscribers(null, publisherName, parseListQuery(parts, 2, false), client);
+                } catch (IllegalArgumentException e) {
+                    showException(e.getMessage(), client);
+                }
+                break;
+            case "show":
+                if (parts.length < 3) {
+                    showException("Usage: show <topicId> <publisherName>", client);
+                    break;
+                }
+                topicId = parts[1];
+                String publisher = parts[2];
+                showTopicsAndSubscribers(topicId, publisher, null, client);
+                break;
+            case "delete":
+                if (parts.length < 3) {
+                    client.println("error Usage: delete <topicId> <publisherName>");
+                    break;
+                }
+                topicId = parts[1];
+                publisherName = parts[2];
+                if (registry.isPublisher(topicId, publisherName)) {
+                    deleteTopic(topicId);
+                    forwardDeleteToBrokers(topicId);
+                    client.println("success");
+                } else {
+                    client.println("error You are not the creator of this topic.");
+                }
+                break;
+            case "forwardDeleteToBrokers":
+                topicId = parts[1];
+                peer = peerConnections.get(client);
+                if (peer != null && peer.deletedDuringSync != null) {
+                    peer.deletedDuringSync.add(topicId);
+                }
+                deleteTopic(topicId);
+                notePeerVersion(peer, parts, 2);
+                break;
+            case "list":
+                // list [prefix=<p>|name=<n>] [after=<cursor>] [limit=<n>]
+                try {
+                    listTopics(parseListQuery(parts, 1, true), client);
+                } catch (IllegalArgumentException e) {
+                    listException(e.getMessage(), client);
+                }
+                break;
+            case "subscribe":
+                // subscribe <topicId> [offset=<n>|since=<epoch millis>] [where <filter>]
+                String[] clauses = command.split(" where ", 2);
+                String[] arguments = clauses[0].split(" ");
+                if (arguments.length < 2) {
+                    client.println("error Usage: subscribe {topic_id} [offset=<n>|since=<epoch millis>]"
+                        + " [where <filter>] \n\n");
+                    break;
+                }
+                topicId = arguments[1];
+                MessageFilter filter;
+                try {
+                    filter = clauses.length > 1 ? MessageFilter.compile(clauses[1]) : null;
+                } catch (IllegalArgumentException e) {
+                    client.println("error Invalid filter: " + e.getMessage() + " \n\n");
+                    break;
+                }
+                if (SubscriptionTrie.isPattern(topicId)) {
+                    if (arguments.length > 2 || filter != null) {
+                        client.println("error Wildcard subscriptions take no replay or filter. \n\n");
+                    } else if (!subscribeToPattern(topicId, client, ClientConnection.encode("success\n\n"))) {
+                        client.println("error Invalid topic pattern. \n\n");
+                    }
+                } else if (arguments.length > 2) {
+                    subscribeWithReplay(topicId, arguments[2], filter, client);
+                } else {
+                    subscribeToTopic(topicId, filter, client, client);
+                    announceInterest(registry.getTopic(topicId));
+                }
+                break;
+            case "current":
+                listCurrentSubscriptions(client, client);
+                break;
+            case "unsubscribe":
+                if (parts.length < 2) {
+                    client.println("error Usage: unsubscribe {topic_id} \n\n");
+                    break;
+                }
+                topicId = parts[1];
+                if (SubscriptionTrie.isPattern(topicId)) {
+                    client.println(registry.unsubscribePattern(topicId, client)
+                        ? "success\n\n" : "exception Topic ID was not subscribed.\n\n");
+                    announcePatternInterest(topicId);
+                } else {
+                    unsubscribeFromTopic(topicId, client, client);
+                    announceInterest(registry.getTopic(topicId));
+                }
+                break;
+            case PeerLink.HELLO:
+                // peer <brokerId> <incarnation>
+                long held = addPeerConnection(client, parts.length > 1 ? parts[1] : client.toString(),
+                    parts.length > 2 ? parts[2] : "");
+                client.println(PeerLink.MEMBER + brokerId + " " + held);
+                announceAllInterest(client);
+                break;
+            case "peers":
+                listPeerLinks(client);
+                break;
+            case "owner":
+                // owner <topicId>: the broker that routes the topic's messages and keeps its history
+                client.println(parts.length < 2 ? "error Usage: owner <topicId>" : "owner " + describeOwner(parts[1]));
+                break;
+            case "stats":
+                metrics.writeStats(client);
+                break;
+            case "newbroker":
+                // newbroker <host>:<port>, from a peer that has just linked to us
+                if (parts.length != 2 || !isPeerAddress(parts[1])) {
+                    client.println("error Usage: newbroker <host>:<port>");
+                    break;
+                }
+                maintainLink(parts[1]);
+                break;
+            default:
+                client.println("error Unknown command");
+                break;
+        }
+    }
+
+    // Runs one binary protocol frame; mirrors handleCommand for clients that sent "binary <name>"
+    void handleFrame(BinaryProtocol.Frame frame, ClientConnection connection) throws IOException {
+        // A session's client acts through whichever connection it is currently on
+        ClientConnection client = connection.getSession() != null ? connection.getSession() : connection;
+        int requestId = frame.getRequestId();
+        String clientName = client.getClientName();
+        TopicRegistry.Topic topic;
+
+        switch (frame.getOpcode()) {
+            case BinaryProtocol.CREATE:
+                String topicId = frame.getString();
+                String topicName = frame.getString();
+                if (!isToken(topicId) || !isToken(topicName)) {
+                    client.reply(errorFrame(requestId, NOT_A_TOKEN));
+                } else if (SubscriptionTrie.isPattern(topicId)) {
+                    client.reply(errorFrame(requestId, "Topic ID must not contain + or # levels."));
+                } else if (registry.createTopic(topicId, topicName, clientName, client)) {
+                    Log.info("Topic created: {} {} by {}", topicId, topicName, clientName);
+                    topicCreated(registry.getTopic(topicId));
+                    client.reply(okFrame(requestId, registry.getTopic(topicId)));
+                    forwardCreateToBrokers(topicId, topicName, clientName, client.getSocket());
+                } else {
+                    Log.info("Topic creation failed: {} is already in use.", topicId);
+                    client.reply(errorFrame(requestId, "Topic ID " + topicId + " is already in use."));
+                }
+                break;
+            case BinaryProtocol.PUBLISH:
+                topic = registry.getTopic(frame.getInt());
+                if (topic != null && topic.isPublisher(clientName)) {
+                    byte[] payload = frame.getRemaining();
+                    AdmissionControl.Verdict verdict = admission.admit(client, topic, payload.length);
+                    if (verdict != AdmissionControl.Verdict.ADMITTED) {
+                        client.reply(throttledFrame(requestId, verdict));
+                        break;
+                    }
+                    try {
+                        publishMessage(topic.getId(), payload);
+                        forwardMessageToBrokers(topic.getId(), payload);
+                    } finally {
+                        admission.release(payload.length);
+                    }
+                    client.reply(okFrame(requestId, topic));
+                } else {
+                    client.reply(errorFrame(requestId, "You are not the creator of this topic."));
+                }
+                break;
+            case BinaryProtocol.PUBLISH_BATCH:
+                publishBatch(frame, client);
+                break;
+            case BinaryProtocol.PUBLISH_CHUNK:
+                topic = registry.getTopic(frame.getInt());
+                String streamId = Integer.toString(frame.getInt());
+                byte flags = frame.getByte();
+                long totalLength = (flags & BinaryProtocol.CHUNK_FIRST) != 0 ? frame.getLong() : -1;
+                ByteBuffer chunk = frame.getRemainingBuffer();
+                long chunkBytes = chunk.remaining();
+                boolean admitted = false;
+                if (topic != null && topic.isPublisher(clientName) && (flags & BinaryProtocol.CHUNK_ABORT) == 0) {
+                    // A large message counts against the rates once, with its first chunk; each chunk's
+                    // bytes are in flight while it is relayed. A throttled chunk abandons the message.
+                    AdmissionControl.Verdict verdict = (flags & BinaryProtocol.CHUNK_FIRST) != 0
+                        ? admission.admit(client, topic, chunkBytes)
+                        : admission.admitChunk(chunkBytes);
+                    if (verdict != AdmissionControl.Verdict.ADMITTED) {
+                        abortTransfer(client, streamId);
+                        client.reply(throttledFrame(requestId, verdict));
+                        break;
+                    }
+                    admitted = true;
+                }
+                String error;
+                try {
+                    error = topic != null && topic.isPublisher(clientName)
+                        ? relayChunk(client, streamId, topic, flags, totalLength, chunk, null)
+                        : "You are not the creator of this topic.";
+                } finally {
+                    if (admitted) {
+                        admission.release(chunkBytes);
+                    }
+                }
+                if (error != null) {
+                    abortTransfer(client, streamId);
+                }
+                client.reply(error == null ? okFrame(requestId, null) : errorFrame(requestId, error));
+                break;
+            case BinaryProtocol.DELETE:
+                topic = registry.getTopic(frame.getInt());
+                if (topic != null && topic.isPublisher(clientName)) {
+                    deleteTopic(topic.getId());
+                    forwardDeleteToBrokers(topic.getId());
+                    client.reply(okFrame(requestId, null));
+                } else {
+                    client.reply(errorFrame(requestId, "You are not the creator of this topic."));
+                }
+                break;
+            case BinaryProtocol.SUBSCRIBE:
+                topicId = frame.getString();
+                byte mode = BinaryProtocol.REPLAY_NONE;
+                long value = 0;
+                if (frame.hasRemaining()) {
+                    mode = frame.getByte();
+                    value = frame.getLong();
+                }
+                MessageFilter filter;
+                try {
+                    filter = frame.hasRemaining() ? MessageFilter.compile(frame.getString()) : null;
+                } catch (IllegalArgumentException e) {
+                    client.reply(errorFrame(requestId, "Invalid filter: " + e.getMessage()));
+                    break;
+                }
+                if (!isToken(topicId)) {
+                    client.reply(errorFrame(requestId, NOT_A_TOKEN));
+                    break;
+                }
+                if (SubscriptionTrie.isPattern(topicId)) {
+                    if (mode != BinaryProtocol.REPLAY_NONE || filter != null) {
+                        client.reply(errorFrame(requestId, "Wildcard subscriptions take no replay or filter."));
+                    } else if (!subscribeToPattern(topicId, client, okFrame(requestId, null))) {
+                        client.reply(errorFrame(requestId, "Invalid topic pattern."));
+                    }
+                    break;
+                }
+                if (mode != BinaryProtocol.REPLAY_NONE) {
+                    topic = registry.getTopic(topicId);
+                    TopicLog log = topic == null ? null : topic.getLog();
+                    if (topic == null) {
+                        client.reply(errorFrame(requestId, "Topic ID not found."));
+                    } else if (log == null) {
+                        client.reply(errorFrame(requestId, noHistory(topicId)));
+                    } else {
+                        long start = replayStart(log, mode == BinaryProtocol.REPLAY_SINCE, value);
+                        client.reply(okFrame(requestId, topic));
+                        TopicRegistry.Topic replayed = topic;
+                        startThread(() -> replayAndSubscribe(replayed, log, start, filter, client));
+                    }
+                    break;
+                }
+                topic = subscribeWithRetained(topicId, client, filter, subscribed -> okFrame(requestId, subscribed));
+                if (topic != null) {
+                    Log.debug("Subscriber subscribed to topic: {} [ID: {}]", topic.getName(), topicId);
+                    announceInterest(topic);
+                } else {
+                    client.reply(errorFrame(requestId, "Topic ID not found."));
+                }
+                break;
+            case BinaryProtocol.UNSUBSCRIBE:
+                topic = registry.getTopic(frame.getInt());
+                if (topic == null) {
+                    client.reply(errorFrame(requestId, "Topic ID not found."));
+                } else if (registry.unsubscribe(topic.getId(), client) == TopicRegistry.UnsubscribeResult.UNSUBSCRIBED) {
+                    Log.debug("Subscriber unsubscribed from topic: {}", topic.getId());
+                    client.reply(okFrame(requestId, topic));
+                    announceInterest(topic);
+                } else {
+                    client.reply(errorFrame(requestId, "Topic ID was not subscribed."));
+                }
+                break;
+            case BinaryProtocol.UNSUBSCRIBE_PATTERN:
+                String pattern = frame.getString();
+                if (registry.unsubscribePattern(pattern, client)) {
+                    client.reply(okFrame(requestId, null));
+                    announcePatternInterest(pattern);
+                } else {
+                    client.reply(errorFrame(requestId, "Topic ID was not subscribed."));
+                }
+                break;
+            case BinaryProtocol.RESOLVE:
+                topicId = frame.getString();
+                topic = isToken(topicId) ? registry.getTopic(topicId) : null;
+                client.reply(topic != null ? okFrame(requestId, topic)
+                    : errorFrame(requestId, isToken(topicId) ? "Topic ID not found." : NOT_A_TOKEN));
+                break;
+            case BinaryProtocol.LIST:
+                try {
+                    ListQuery query = parseListQuery((frame.hasRemaining() ? frame.getString() : "").split(" "), 0, true);
+                    client.reply(textFrame(requestId, out -> listTopics(query, out)));
+                } catch (IllegalArgumentException e) {
+                    client.reply(errorFrame(requestId, e.getMessage()));
+                }
+                break;
+            case BinaryProtocol.CURRENT:
+                client.reply(textFrame(requestId, out -> listCurrentSubscriptions(client, out)));
+                break;
+            case BinaryProtocol.SHOW:
+                String showTopicId = frame.hasRemaining() ? frame.getString() : "";
+                try {
+                    ListQuery query = showTopicId.isEmpty()
+                        ? parseListQuery((frame.hasRemaining() ? frame.getString() : "").split(" "), 0, false) : null;
+                    String topicOrAll = showTopicId.isEmpty() ? null : showTopicId;
+                    client.reply(textFrame(requestId, out -> showTopicsAndSubscribers(topicOrAll, clientName, query, out)));
+                } catch (IllegalArgumentException e) {
+                    client.reply(errorFrame(requestId, e.getMessage()));
+                }
+                break;
+            default:
+                client.reply(errorFrame(requestId, "Unknown command"));
+                break;
+        }
+    }
+
+    // Many messages for one or more topics in one frame, acknowledged once. Every entry is checked
+    // before any is published, so a rejected batch publishes nothing.
+    private void publishBatch(BinaryProtocol.Frame frame, ClientConnection client) throws IOException {
+        int requestId = frame.getRequestId();
+        int count = frame.getInt();
+        if (count < 0 || count > frame.remaining() / 8) {
+            client.reply(errorFrame(requestId, "Malformed batch."));
+            return;
+        }
+        TopicRegistry.Topic[] topics = new TopicRegistry.Topic[count];
+        byte[][] payloads = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            topics[i] = registry.getTopic(frame.getInt());
+            payloads[i] = frame.getBytes();
+            if (topics[i] == null || !topics[i].isPublisher(client.getClientName())) {
+                client.reply(errorFrame(requestId, "You are not the creator of this topic. (message " + (i + 1)
+                    + " of " + count + ", nothing published)"));
+                return;
+            }
+        }
+        long bytes = 0;
+        for (byte[] payload : payloads) {
+            bytes += payload.length;
+        }
+        AdmissionControl.Verdict verdict = admission.admitBatch(client, topics, bytes);
+        if (verdict != AdmissionControl.Verdict.ADMITTED) {
+            client.reply(throttledFrame(requestId, verdict));
+            return;
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                publishMessage(topics[i].getId(), payloads[i]);
+                forwardMessageToBrokers(topics[i].getId(), payloads[i]);
+            }
+        } finally {
+            admission.release(bytes);
+        }
+        client.reply(new BinaryProtocol.FrameBuilder(BinaryProtocol.OK, requestId).putInt(count).toByteArray());
+    }
+
+    // Passes one chunk of a large message on to whoever got its first chunk. messageId is the ID a
+    // peer forwarded the message with, null for one from a client. Returns null, or why the chunk was
+    // refused, in which case the caller abandons the message.
+    private String relayChunk(ClientConnection origin, String streamId, TopicRegistry.Topic topic, byte flags,
+                              long totalLength, ByteBuffer chunk, String messageId) {
+        Map<String, ChunkedTransfer> open = transfers.computeIfAbsent(origin, key -> new ConcurrentHashMap<>());
+        ChunkedTransfer transfer;
+        if ((flags & BinaryProtocol.CHUNK_FIRST) != 0) {
+            abortTransfer(origin, streamId);
+            if (totalLength < 0 || totalLength > maxMessageBytes) {
+                return "Message of " + totalLength + " bytes is larger than the maximum of " + maxMessageBytes + ".";
+            }
+            transfer = startTransfer(topic, totalLength, messageId);
+            if (transfer == null) {
+                return "Topic ID not found.";
+            }
+            open.put(streamId, transfer);
+            Log.debug("Relaying a message of {} bytes for topic {} to {} subscribers", totalLength, topic.getId(),
+                transfer.getRecipientCount());
+        } else {
+            transfer = open.get(streamId);
+            if (transfer == null || transfer.getTopic() != topic) {
+                return "No message in progress on stream " + streamId + ".";
+            }
+        }
+        if ((flags & BinaryProtocol.CHUNK_ABORT) != 0) {
+            abortTransfer(origin, streamId);
+            return null;
+        }
+        if (topic.isDeleted()) {
+            return "Topic ID not found.";
+        }
+        if (transfer.getOffset() + chunk.remaining() > maxMessageBytes) {
+            return "Message is larger than the maximum of " + maxMessageBytes + " bytes.";
+        }
+        transfer.relay(flags, chunk);
+        if ((flags & BinaryProtocol.CHUNK_LAST) != 0) {
+            open.remove(streamId);
+        }
+        return null;
+    }
+
+    // Recipients are fixed now: a subscriber arriving halfway through would only get the tail.
+    // Messages from peers go on to other peers only as single-frame ones do (see relayMessage).
+    private ChunkedTransfer startTransfer(TopicRegistry.Topic topic, long totalLength, String messageId) {
+        List<ClientConnection> subscribers = new ArrayList<>();
+        topic.getLock().lock();
+        try {
+            if (topic.isDeleted()) {
+                return null;
+            }
+            for (ClientConnection subscriber : registry.getRecipients(topic)) {
+                if (subscriber.isBinary()) {
+                    subscribers.add(subscriber);
+                }
+            }
+        } finally {
+            topic.getLock().unlock();
+        }
+        List<PeerLink> peers = new ArrayList<>();
+        if (messageId == null || isRelay(topic.getId())) {
+            String via = routeVia(topic.getId());
+            String from = messageId == null ? null : originOf(messageId);
+            for (PeerLink broker : connectedBrokers) {
+                if (forwardsTo(broker, topic.getId(), via, from)) {
+                    peers.add(broker);
+                }
+            }
+        }
+        return new ChunkedTransfer(topic, nextStreamId.incrementAndGet(),
+            messageId != null ? messageId : messageIdPrefix + nextMessageSequence.incrementAndGet(),
+            System.currentTimeMillis(), totalLength, subscribers.toArray(new ClientConnection[0]), peers);
+    }
+
+    // Abandons every large message the client was in the middle of sending
+    private void abortTransfers(ClientConnection origin) {
+        Map<String, ChunkedTransfer> open = transfers.remove(origin);
+        if (open != null) {
+            for (ChunkedTransfer transfer : open.values()) {
+                transfer.abort();
+            }
+        }
+    }
+
+    private void abortTransfer(ClientConnection origin, String streamId) {
+        Map<String, ChunkedTransfer> open = transfers.get(origin);
+        ChunkedTransfer transfer = open == null ? null : open.remove(streamId);
+        if (transfer != null) {
+            transfer.abort();
+        }
+    }
+
+    private static byte[] okFrame(int requestId, TopicRegistry.Topic topic) {
+        BinaryProtocol.FrameBuilder builder = new BinaryProtocol.FrameBuilder(BinaryProtocol.OK, requestId);
+        if (topic == null) {
+            return builder.putInt(-1).toByteArray();
+        }
+        return builder.putInt(topic.getHandle()).putString(topic.getName()).toByteArray();
+    }
+
+    private static byte[] errorFrame(int requestId, String message) {
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.ERROR, requestId).putString(message).toByteArray();
+    }
+
+    private static byte[] throttledFrame(int requestId, AdmissionControl.Verdict verdict) {
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.THROTTLED, requestId)
+            .putString(throttledReason(verdict)).toByteArray();
+    }
+
+    // Why a publish was refused: the text after "throttled" in the text protocol, or in a THROTTLED frame
+    private static String throttledReason(AdmissionControl.Verdict verdict) {
+        switch (verdict) {
+            case PUBLISHER_RATE:
+                return "Publish rate limit of this publisher reached.";
+            case TOPIC_RATE:
+                return "Publish rate limit of this topic reached.";
+            default:
+                return "The Broker is busy, try again later.";
+        }
+    }
+
+    // Renders a text protocol reply and wraps it in a single TEXT frame. A listing can run past the
+    // 64 KiB of a str, so the text goes to the end of the frame like a payload.
+    private static byte[] textFrame(int requestId, Consumer<ClientConnection> renderer) {
+        StringBuilder text = new StringBuilder();
+        renderer.accept(new ClientConnection() {
+            @Override
+            public void println(String line) {
+                text.append(line).append('\n');
+            }
+
+            @Override
+            public void send(byte[] frame) {
+                text.append(new String(frame, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public Socket getSocket() {
+                return null;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.TEXT, requestId, bytes.length).putBytes(bytes).toByteArray();
+    }
+
+    // Handle client crash for both Publisher and Subscriber
+    void handleClientCrash(ClientConnection client) {
+        long start = System.nanoTime();
+        Session session = client.getSession();
+        if (session != null) {
+            // Everything stays with the session for --session-grace-ms in case the client resumes
+            client.markDisconnected();
+            session.detach(client);
+            // A large message cannot go on from another connection; a resumed client sends it again
+            abortTransfers(session);
+            Log.info("Session {} disconnected: {}", session.getId(), client);
+            metrics.clientCrashHandled(client, System.nanoTime() - start);
+            return;
+        }
+        client.markDisconnected();
+        Log.info("Client disconnected: {} (dropped {} messages)", client, client.getDroppedCount());
+        abortTransfers(client);
+        PeerState peer;
+        peerLock.lock();
+        try {
+            peer = peerConnections.remove(client);
+            if (peer != null && peer.connection == client) {
+                peer = promoteOrDepart(peer);
+            } else if (peer != null) {
+                // A second link from a broker that is still linked
+                metrics.clientCrashHandled(client, System.nanoTime() - start);
+                return;
+            }
+        } finally {
+            peerLock.unlock();
+        }
+        if (peer != null) {
+            // Its topics stay for --peer-grace-ms in case it links up again (see expirePeers)
+            Log.info("Broker {} unlinked; keeping its topics for {} ms", peer.id, peerGraceMillis);
+            metrics.clientCrashHandled(client, System.nanoTime() - start);
+            return;
+        }
+
+        // Handle publisher crash (delete all its topics and forward to other brokers)
+        for (String topicId : registry.removePublisher(client)) {
+            deleteTopic(topicId);
+            forwardDeleteToBrokers(topicId);
+        }
+
+        // Handle subscriber crash (unsubscribe from all topics and tell other brokers about topics
+        // that have no subscribers left here)
+        for (String topicId : registry.removeSubscriber(client)) {
+            unsubscribeFromTopic(topicId, client, ClientConnection.DISCARD);
+            announceInterest(registry.getTopic(topicId));
+        }
+        for (String pattern : registry.removePatternSubscriber(client)) {
+            announcePatternInterest(pattern);
+        }
+        metrics.clientCrashHandled(client, System.nanoTime() - start);
+    }
+
+    // Sessions whose client has not resumed within the grace period are cleaned up like a crashed client
+    private void expireSessions() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1, Math.min(1000, sessionGraceMillis)));
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Session session : sessions.values()) {
+                if (session.expireIfIdle(sessionGraceMillis) && sessions.remove(session.getId(), session)) {
+                    Log.info("Session {} expired", session.getId());
+                    handleClientCrash(session);
+                }
+            }
+        }
+    }
+
+    // Keeps a link to the broker at the address: dials it and, whenever the link drops, dials again
+    // with jittered exponential backoff until it answers. Stops only if the link turns out to
+    // duplicate another one to the same broker, reached under a different address.
+    private void maintainLink(String address) {
+        if (!dialing.add(canonicalAddress(address))) {
+            return;
+        }
+        threadFactory.newThread(() -> {
+            long backoff = RECONNECT_MIN_MILLIS;
+            long lostAt = 0;
+            int failures = 0;
+            while (true) {
+                try {
+                    String[] parts = address.split(":");
+                    Socket socket = new Socket();
+                    // The link flushes once per burst; Nagle would only hold the flush back for an ACK
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), CONNECT_TIMEOUT_MILLIS);
+                    PeerLink link = newPeerLink(socket, address);
+                    if (lostAt != 0) {
+                        linkLostAt.put(link, lostAt);
+                    }
+                    Log.info(lostAt == 0 ? "Connected to broker: {}" : "Reconnected to broker: {}", address);
+                    sendNewBrokerInfo(link);
+                    backoff = RECONNECT_MIN_MILLIS;
+                    failures = 0;
+                    link.awaitClose();
+                    if (link.isDuplicate()) {
+                        dialing.remove(canonicalAddress(address));
+                        return;
+                    }
+                    lostAt = System.nanoTime();
+                } catch (IOException | RuntimeException e) {
+                    if (failures++ == 0) {
+                        Log.warn("Failed to connect to broker: {}, retrying", address);
+                    } else {
+                        Log.debug("Failed to connect to broker: {} ({} attempts)", address, failures);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, reconnectMaxMillis);
+            }
+        }).start();
+    }
+
+    private static boolean isPeerAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 1 || !isToken(address)) {
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(address.substring(colon + 1));
+            return port > 0 && port <= 0xFFFF;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // "localhost:7001" and "127.0.0.1:7001" are the same broker
+    private static String canonicalAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        try {
+            return InetAddress.getByName(address.substring(0, colon)).getHostAddress() + address.substring(colon);
+        } catch (IOException | RuntimeException e) {
+            return address;
+        }
+    }
+
+    // Brings a peer whose link has just been identified up to date with the topics created at this
+    // broker; the topics it gets from other brokers come from those brokers. If the peer still holds
+    // our topics from an earlier link and the journal has every change since, it gets only those
+    // changes. Otherwise it gets a snapshot, streamed on this thread and taking each topic's lock
+    // only to read it, so publishing carries on. Either way it goes through the link's queue, where
+    // a full queue holds the sync up rather than growing. The link joins connectedBrokers under the
+    // journal lock, and the start of the sync is queued behind the changes before it, like a
+    // forwarded change (see forwardChange), so every later change follows it live. A snapshot is
+    // consistent as of the version it ends with: the peer skips entries for topics it has seen
+    // deleted since it began.
+    private void startSync(PeerLink link) {
+        threadFactory.newThread(() -> {
+            long start = System.nanoTime();
+            List<byte[]> missed = null;
+            long version = 0;
+            PeerLink existing = null;
+            journal.getLock().lock();
+            try {
+                for (PeerLink other : connectedBrokers) {
+                    if (link.getBrokerId().equals(other.getBrokerId())) {
+                        existing = other;
+                    }
+                }
+                if (existing == null && !link.isClosed()) {
+                    missed = journal.since(link.getPeerVersion());
+                    version = journal.getVersion();
+                    List<byte[]> lines = new ArrayList<>();
+                    if (missed != null) {
+                        lines.add(ClientConnection.encode("syncBegin " + link.getPeerVersion()));
+                        lines.addAll(missed);
+                        lines.add(ClientConnection.encode("syncDone " + version));
+                    } else {
+                        lines.add(ClientConnection.encode("syncBegin"));
+                    }
+                    pendingForwards.add(() -> lines.forEach(link::send));
+                    connectedBrokers.add(link);
+                }
+            } finally {
+                journal.getLock().unlock();
+            }
+            if (existing != null) {
+                Log.info("Broker {} is already linked as {}", link, existing);
+                link.closeAsDuplicate();
+                return;
+            }
+            if (link.isClosed()) {
+                return;
+            }
+            // The snapshot must not overtake its syncBegin
+            sendPendingForwards(true);
+            int count = missed != null ? missed.size() : sendSnapshot(link, version);
+            Long lostAt = linkLostAt.remove(link);
+            if (lostAt != null) {
+                metrics.peerRecovered(System.nanoTime() - lostAt);
+            }
+            Log.info("Sent {} to broker {} in {} ms", count + (missed != null ? " changes" : " topics"), link,
+                (System.nanoTime() - start) / 1_000_000);
+        }).start();
+    }
+
+    private int sendSnapshot(PeerLink link, long version) {
+        StringBuilder batch = new StringBuilder("syncTopics");
+        int count = 0;
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            if (isPeerConnection(topic.getCreator())) {
+                continue;
+            }
+            topic.getLock().lock();
+            try {
+                if (topic.isDeleted()) {
+                    continue;
+                }
+                batch.append(' ').append(topic.getId()).append(' ').append(topic.getName())
+                    .append(' ').append(topic.getPublishers().iterator().next());
+            } finally {
+                topic.getLock().unlock();
+            }
+            count++;
+            if (batch.length() >= SYNC_BATCH_CHARS) {
+                link.send(ClientConnection.encode(batch.toString()));
+                batch.setLength("syncTopics".length());
+            }
+        }
+        if (batch.length() > "syncTopics".length()) {
+            link.send(ClientConnection.encode(batch.toString()));
+        }
+        link.send(ClientConnection.encode("syncDone " + version));
+        return count;
+    }
+
+    private boolean isPeerConnection(ClientConnection connection) {
+        if (peerConnections.containsKey(connection)) {
+            return true;
+        }
+        for (PeerState peer : peerStates.values()) {
+            if (peer.connection == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The version a peer reports with a forwarded change, in parts[index] if it sent one; counted
+    // only once the peer's first sync is done
+    private void notePeerVersion(PeerState peer, String[] parts, int index) {
+        if (peer != null && parts.length > index && peer.version >= 0) {
+            peer.version = Math.max(peer.version, Long.parseLong(parts[index]));
+        }
+    }
+
+    // Every --heartbeat-ms: tells the brokers linked to us that we are alive, closes our links to
+    // brokers whose heartbeats have stopped (see PhiAccrualDetector), and drops the topics of
+    // brokers that have been away longer than --peer-grace-ms
+    private void heartbeatLoop() {
+        byte[] heartbeat = ClientConnection.encode(PeerLink.HEARTBEAT);
+        while (true) {
+            try {
+                Thread.sleep(heartbeatMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (ClientConnection peer : peerConnections.keySet()) {
+                peer.sendControl(heartbeat);
+            }
+            for (PeerLink link : openLinks) {
+                double phi = link.getPhi();
+                if (phi > failurePhi) {
+                    long silent = link.getMillisSinceHeartbeat();
+                    Log.warn("Broker {} is not responding: no heartbeat for {} ms (phi {})", link, silent,
+                        String.format("%.1f", phi));
+                    metrics.peerFailureDetected(TimeUnit.MILLISECONDS.toNanos(silent));
+                    link.close();
+                    // Its link to us is as suspect as ours to it
+                    PeerState peer = link.getBrokerId() == null ? null : peerStates.get(link.getBrokerId());
+                    if (peer != null && peer.departedAt == 0) {
+                        peer.connection.close();
+                    }
+                }
+            }
+            expirePeers();
+        }
+    }
+
+    // Every broker sees its own link to a broker that is gone drop, so its topics are deleted here
+    // without telling anyone. They leave the registry under the peer lock, so the broker linking up
+    // again now finds nothing half deleted; their subscribers are told after it is released, as
+    // telling them can wait on a full queue.
+    private void expirePeers() {
+        for (PeerState peer : peerStates.values()) {
+            if (peer.departedAt == 0 || System.nanoTime() - peer.departedAt < TimeUnit.MILLISECONDS.toNanos(peerGraceMillis)) {
+                continue;
+            }
+            List<TopicRegistry.Topic> deleted = new ArrayList<>();
+            peerLock.lock();
+            try {
+                if (!peerStates.remove(peer.id, peer)) {
+                    continue;
+                }
+                for (String topicId : registry.removePublisher(peer.connection)) {
+                    TopicRegistry.Topic topic = registry.deleteTopic(topicId);
+                    if (topic != null) {
+                        deleted.add(topic);
+                    }
+                }
+            } finally {
+                peerLock.unlock();
+            }
+            for (TopicRegistry.Topic topic : deleted) {
+                topicDeleted(topic);
+            }
+            Log.info("Broker {} did not come back; dropped its {} topics", peer.id, deleted.size());
+        }
     }
 
-    private String getTimestamp() {
-        return new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new Date());
+    // One line per outgoing broker link with its forwarding backlog
+    private void listPeerLinks(ClientConnection out) {
+        for (PeerLink link : connectedBrokers) {
+            out.println(link.getAddress() + " id=" + link.getBrokerId() + " queued=" + link.getQueueSize() + " lag=" + link.getLagMillis() + "ms"
+                + " sent=" + link.getSentCount() + " flushes=" + link.getFlushCount()
+                + " interests=" + link.getInterestCount()
+                + " heartbeat=" + link.getMillisSinceHeartbeat() + "ms" + String.format(" phi=%.1f", link.getPhi()));
+        }
+        out.println("duplicates dropped=" + seenMessages.getDuplicateCount() + " remembered=" + seenMessages.size());
+        Map<String, String> versions = new TreeMap<>();
+        for (PeerState peer : peerStates.values()) {
+            versions.put(peer.id, peer.version + (peer.departedAt == 0 ? ""
+                : " (away " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - peer.departedAt) + "s)"));
+        }
+        out.println("registry version=" + journal.getVersion() + " peers=" + versions);
+        if (ring != null) {
+            out.println("sharding members=" + ring.getMembers());
+        }
+        out.println(END_OF_RESPONSE);
     }
 
-    public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
-        System.out.println(getTimestamp() + " Broker started on port " + port);
-
-        // Start connecting to other brokers
-        new Thread(this::connectToOtherBrokers).start();
+    // Publisher Commands
+    private void createTopic(String topicId, String topicName, String publisherName, ClientConnection publisher, ClientConnection out) {
+        if (SubscriptionTrie.isPattern(topicId)) {
+            out.println("error Topic ID must not contain + or # levels.");
+        } else if (!registry.createTopic(topicId, topicName, publisherName, publisher)) {
+            out.println("error Topic ID " + topicId + " is already in use.");
+            Log.info("Topic creation failed: {} is already in use.", topicId);
+        } else {
+            Log.info("Topic created: {} {} by {}", topicId, topicName, publisherName);
+            topicCreated(registry.getTopic(topicId));
+            out.println("success");
+        }
+    }
 
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new Thread(() -> handleClient(clientSocket)).start();
+    // With --persist or --retain a topic keeps its history, so this broker asks peers for all of
+    // its messages rather than only while it has subscribers. Binary wildcard subscribers learn
+    // the new topic's handle before anything can be published to it.
+    private void topicCreated(TopicRegistry.Topic topic) {
+        if (topic == null) {
+            return;
+        }
+        byte[] info = null;
+        for (ClientConnection subscriber : registry.getPatternSubscribers(topic.getId())) {
+            if (subscriber.isBinary()) {
+                if (info == null) {
+                    info = topicInfoFrame(topic);
+                }
+                subscriber.send(info);
+            }
         }
+        applyOwnership(topic);
     }
 
-    private void connectToOtherBrokers() {
-        for (String brokerAddress : otherBrokers) {
+    // With --sharding only a topic's owner keeps its history, the log and retained messages, which
+    // makes it want every message of the topic; the other brokers want them only while they have
+    // subscribers. Without it, every broker owns every topic.
+    private void applyOwnership(TopicRegistry.Topic topic) {
+        boolean owner = isOwner(topic.getId());
+        TopicLog log = null;
+        if (owner && logs != null) {
             try {
-                String[] parts = brokerAddress.split(":");
-                String brokerIp = parts[0];
-                int brokerPort = Integer.parseInt(parts[1]);
+                log = logs.open(topic.getId());
+            } catch (IOException e) {
+                Log.warn("Failed to open the log of topic {}: {}", topic.getId(), e.getMessage());
+            }
+        }
+        topic.getLock().lock();
+        try {
+            if (topic.isDeleted()) {
+                return;
+            }
+            topic.setLog(log);
+            if (!owner) {
+                topic.setRetained(null);
+            } else if (topic.getRetained() == null) {
+                topic.setRetained(registry.newRetainedMessages());
+            }
+        } finally {
+            topic.getLock().unlock();
+        }
+        announceInterest(topic);
+    }
 
-                Socket brokerSocket = new Socket(brokerIp, brokerPort);
-                connectedBrokers.add(brokerSocket);
-                System.out.println(getTimestamp() + " Connected to broker: " + brokerIp + ":" + brokerPort);
+    private String noHistory(String topicId) {
+        return isOwner(topicId) ? "Topic has no history to replay."
+            : "Topic history is kept by its owner " + describeOwner(topicId) + ".";
+    }
 
-                sendNewBrokerInfo(brokerSocket);
+    private boolean isOwner(String topicId) {
+        return ring == null || brokerId.equals(ring.owner(topicId));
+    }
 
-                new Thread(() -> handleClient(brokerSocket)).start();
-            } catch (IOException e) {
-                System.out.println(getTimestamp() + " Failed to connect to broker: " + brokerAddress);
+    // "<brokerId> <address>" of the topic's owner
+    private String describeOwner(String topicId) {
+        String owner = ring == null ? brokerId : ring.owner(topicId);
+        if (!owner.equals(brokerId)) {
+            for (PeerLink link : connectedBrokers) {
+                if (owner.equals(link.getBrokerId())) {
+                    return owner + " " + link.getAddress();
+                }
             }
         }
+        try {
+            return owner + " " + InetAddress.getLocalHost().getHostAddress() + ":" + port;
+        } catch (IOException e) {
+            return owner + " localhost:" + port;
+        }
     }
 
-    // Notify other brokers of the new broker and propagate the connection
-    private void sendNewBrokerInfo(Socket brokerSocket) throws IOException {
-        PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-        out.println("newbroker " + InetAddress.getLocalHost().getHostAddress() + ":" + port);
+    private void memberJoined(PeerLink link) {
+        Log.info("Broker {} is {}", link.getAddress(), link.getBrokerId());
+        if (ring != null && ring.add(link.getBrokerId())) {
+            rebalance();
+        }
+        startSync(link);
     }
 
-    private void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+    private void memberLeft(PeerLink link) {
+        String id = link.getBrokerId();
+        if (ring == null || id == null) {
+            return;
+        }
+        for (PeerLink other : connectedBrokers) {
+            if (id.equals(other.getBrokerId())) {
+                return;
+            }
+        }
+        if (ring.remove(id)) {
+            rebalance();
+        }
+    }
 
-            String command;
-            while (true) {
+    // After a broker joins or leaves, takes over or hands back the topics whose owner changed, and
+    // moves our interest in the others to their new owners. History stays where it was written: a
+    // new owner starts the topic's log where its own copy, if any, left off, and the old owner keeps
+    // its files until the topic is deleted.
+    private void rebalance() {
+        rebalanceLock.lock();
+        try {
+            boolean history = logs != null || options.getInt("retain", 0) > 0;
+            long start = System.nanoTime();
+            int moved = 0;
+            for (TopicRegistry.Topic topic : registry.getTopics()) {
+                boolean owned;
+                topic.getLock().lock();
+                try {
+                    owned = topic.getLog() != null || topic.getRetained() != null;
+                } finally {
+                    topic.getLock().unlock();
+                }
+                if (history && owned != isOwner(topic.getId())) {
+                    applyOwnership(topic);
+                    moved++;
+                } else if (announceInterest(topic)) {
+                    moved++;
+                }
+            }
+            Log.info("Sharding members {}: {} topics rerouted in {} ms", ring.getMembers(), moved,
+                (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
 
-                if (clientSocket.isClosed() || !clientSocket.isConnected()) {
-                    handleClientCrash(clientSocket);
-                    break;
+    private void forwardCreateToBrokers(String topicId, String topicName, String publisherName, Socket origin) {
+        forwardChange("forwardCreateToBrokers " + topicId + " " + topicName + " " + publisherName, origin);
+    }
+
+    // Numbers a topic create or delete and journals it under the journal's lock, for the brokers
+    // linked at that moment. A full peer queue can hold a send up for --overflow-block-ms, so the
+    // sends happen outside the lock, yet still in version order: whichever thread gets forwardLock
+    // sends every pending change, and the others leave theirs to it.
+    private void forwardChange(String command, Socket origin) {
+        journal.getLock().lock();
+        try {
+            byte[] line = ClientConnection.encode(command + " " + journal.nextVersion());
+            journal.add(line);
+            List<PeerLink> peers = new ArrayList<>(connectedBrokers);
+            pendingForwards.add(() -> {
+                for (PeerLink broker : peers) {
+                    if (!broker.getSocket().equals(origin)) {
+                        broker.send(line);
+                    }
                 }
+            });
+        } finally {
+            journal.getLock().unlock();
+        }
+        sendPendingForwards(false);
+    }
 
-                if ((command = in.readLine()) != null) {
-                    String[] parts = command.split(" ");
-
-                    switch (parts[0]) {
-                        case "create":
-                            String topicId = parts[1];
-                            String topicName = parts[2];
-                            String publisherName = parts[3];
-                            createTopic(topicId, topicName, publisherName, clientSocket, out);
-                            forwardCreateToBrokers(topicId, topicName, publisherName, clientSocket);
-                            break;
-                        case "forwardCreateToBrokers":
-                            topicId = parts[1];
-                            topicName = parts[2];
-                            publisherName = parts[3];
-                            createTopic(topicId, topicName, publisherName, clientSocket, out);
-                            break;
-                        case "publish":
-                            topicId = parts[1];
-                            publisherName = parts[2];
-                            if (topicPublishers.containsKey(topicId)
-                                    && topicPublishers.get(topicId).contains(publisherName)) {
-                                String message = command.substring(command.indexOf(parts[3]));
-                                publishMessage(topicId, message);
-                                forwardMessageToBrokers(topicId, message, clientSocket);
-                                out.println("success");
-                            } else {
-                                out.println("error You are not the creator of this topic.");
-                            }
-                            break;
-                        case "forwardPublishToBrokers":
-                            topicId = parts[1];
-                            String message = command.substring(command.indexOf(parts[2]));
-                            publishMessage(topicId, message);
-                            break;
-                        case "showAll":
-                            publisherName = parts[1];
-                            showTopicsAndSubscribers(null, publisherName, out);
-                            break;
-                        case "show":
-                            topicId = parts[1];
-                            String publisher = parts[2];
-                            showTopicsAndSubscribers(topicId, publisher, out);
-                            break;
-                        case "delete":
-                            topicId = parts[1];
-                            publisherName = parts[2];
-                            if (topicPublishers.containsKey(topicId)
-                                    && topicPublishers.get(topicId).contains(publisherName)) {
-                                deleteTopic(topicId);
-                                forwardDeleteToBrokers(topicId);
-                                out.println("success");
-                            } else {
-                                out.println("error You are not the creator of this topic.");
+    // Runs the sends waiting in pendingForwards, in order. A thread that finds another sending leaves
+    // them to it, unless it must know they are out before it goes on, when it waits its turn.
+    private void sendPendingForwards(boolean wait) {
+        if (wait) {
+            forwardLock.lock();
+            try {
+                runPendingForwards();
+            } finally {
+                forwardLock.unlock();
+            }
+        }
+        // Checked again after unlocking, in case a change arrived just as the sender finished
+        while (!pendingForwards.isEmpty() && forwardLock.tryLock()) {
+            try {
+                runPendingForwards();
+            } finally {
+                forwardLock.unlock();
+            }
+        }
+    }
+
+    // Call with forwardLock held
+    private void runPendingForwards() {
+        Runnable forward;
+        while ((forward = pendingForwards.poll()) != null) {
+            forward.run();
+        }
+    }
+
+    // Encodes the command once and queues it on every peer link except the one it came from
+    private void forwardToBrokers(String command, Socket origin) {
+        byte[] line = ClientConnection.encode(command);
+        for (PeerLink broker : connectedBrokers) {
+            if (!broker.getSocket().equals(origin)) {
+                broker.send(line);
+            }
+        }
+    }
+
+    private void publishMessage(String topicId, byte[] payload) throws IOException {
+        TopicRegistry.Topic topic = registry.getTopic(topicId);
+        if (topic != null) {
+            List<ClientConnection> backlogged = null; // queues left over capacity, under --overflow=block
+            // Only publishes to the same topic wait for each other
+            topic.getLock().lock();
+            try {
+                if (topic.isDeleted()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                long now = System.currentTimeMillis();
+                TopicLog log = topic.getLog();
+                if (log != null) {
+                    try {
+                        log.append(now, payload);
+                    } catch (IOException e) {
+                        Log.warn("Failed to log message for topic {}: {}", topicId, e.getMessage());
+                    }
+                }
+                if (topic.getRetained() != null) {
+                    topic.getRetained().add(now, payload);
+                }
+                // Encoded at most once per protocol, the same bytes are queued to every subscriber.
+                // Unfiltered subscribers come first, then each filter group whose filter, run once
+                // for the whole group, accepts the message.
+                byte[] textFrame = null;
+                byte[] binaryFrame = null;
+                TopicRegistry.FilterGroup[] groups = registry.getFilterRecipients(topic);
+                MessageFilter.Message message = null;
+                int delivered = 0;
+                for (int group = -1; group < groups.length; group++) {
+                    ClientConnection[] subscribers;
+                    if (group < 0) {
+                        subscribers = registry.getRecipients(topic);
+                    } else {
+                        if (message == null) {
+                            message = new MessageFilter.Message(new String(payload, StandardCharsets.UTF_8));
+                        }
+                        if (!groups[group].getFilter().matches(message)) {
+                            continue;
+                        }
+                        subscribers = groups[group].getSubscribers();
+                    }
+                    for (ClientConnection subscriber : subscribers) {
+                        if (subscriber.isBinary()) {
+                            if (binaryFrame == null) {
+                                binaryFrame = deliverFrame(topic, now, ByteBuffer.wrap(payload));
                             }
-                            break;
-                        case "forwardDeleteToBrokers":
-                            topicId = parts[1];
-                            deleteTopic(topicId);
-                            break;
-                        case "list":
-                            listTopics(out);
-                            break;
-                        case "subscribe":
-                            topicId = parts[1];
-                            subscribeToTopic(topicId, clientSocket, out);
-                            forwardSubscribeToBrokers(topicId, clientSocket);
-                            break;
-                        case "forwardSubscribeToBrokers":
-                            topicId = parts[1];
-                            subscribeToTopic(topicId, clientSocket, out);
-                            break;
-                        case "current":
-                            listCurrentSubscriptions(clientSocket, out);
-                            break;
-                        case "unsubscribe":
-                            topicId = parts[1];
-                            unsubscribeFromTopic(topicId, clientSocket, out);
-                            forwardUnsubscribeToBrokers(topicId, clientSocket);
-                            break;
-                        case "forwardUnubscribeToBrokers":
-                            topicId = parts[1];
-                            unsubscribeFromTopic(topicId, clientSocket, out);
-                            break;
-                        case "newbroker":
-                            String brokerInfo = parts[1];
-                            if (!isBrokerAlreadyConnected(brokerInfo)) {
-                                connectToNewBroker(brokerInfo);
+                            backlogged = sendUnderLock(subscriber, binaryFrame, backlogged);
+                        } else {
+                            if (textFrame == null) {
+                                textFrame = ClientConnection.encode(getTimestamp() + " " + topicId + ":" + topic.getName()
+                                    + ": " + new String(payload, StandardCharsets.UTF_8) + "\n\n");
                             }
-                            break;
-                        default:
-                            out.println("error Unknown command");
-                            break;
+                            backlogged = sendUnderLock(subscriber, textFrame, backlogged);
+                        }
                     }
-                } else {
-                    handleClientCrash(clientSocket);
-                    break;
+                    delivered += subscribers.length;
                 }
+                topic.countPublish(delivered);
+                metrics.published(delivered, System.nanoTime() - start);
+            } finally {
+                topic.getLock().unlock();
             }
-        } catch (IOException e) {
-            handleClientCrash(clientSocket);
+            awaitCapacity(backlogged);
+        }
+        if (Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace("Received new message for topic: {} ({} bytes)", topicId, payload.length);
         }
     }
 
-    // Handle client crash for both Publisher and Subscriber
-    private void handleClientCrash(Socket clientSocket) {
-        System.out.println("Client disconnected: " + clientSocket);
+    // Queues a delivery under the topic lock (see ClientConnection.sendUnderLock); returns the list
+    // of subscribers to wait for, created with the first
+    private static List<ClientConnection> sendUnderLock(ClientConnection subscriber, byte[] frame,
+                                                        List<ClientConnection> backlogged) {
+        if (!subscriber.sendUnderLock(frame)) {
+            if (backlogged == null) {
+                backlogged = new ArrayList<>();
+            }
+            backlogged.add(subscriber);
+        }
+        return backlogged;
+    }
 
-        // Handle publisher crash (delete all its topics and forward to other brokers)
-        if (publisherTopics.containsKey(clientSocket)) {
-            Set<String> publisherTopicIds = publisherTopics.remove(clientSocket);
-            if (publisherTopicIds != null) {
-                for (String topicId : publisherTopicIds) {
-                    deleteTopic(topicId);
-                    forwardDeleteToBrokers(topicId);
+    // Under --overflow=block, waits with the topic lock released for the subscribers a fan-out left
+    // over capacity, so a slow subscriber holds up only the thread that sent to it, not the topic
+    private static void awaitCapacity(List<ClientConnection> backlogged) {
+        if (backlogged != null) {
+            for (ClientConnection subscriber : backlogged) {
+                subscriber.awaitCapacity();
+            }
+        }
+    }
+
+    private static byte[] topicInfoFrame(TopicRegistry.Topic topic) {
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.TOPIC_INFO, 0)
+            .putInt(topic.getHandle()).putString(topic.getId()).putString(topic.getName()).toByteArray();
+    }
+
+    private static byte[] deliverFrame(TopicRegistry.Topic topic, long timestamp, ByteBuffer payload) {
+        return new BinaryProtocol.FrameBuilder(BinaryProtocol.DELIVER, 0, 12 + payload.remaining())
+            .putInt(topic.getHandle())
+            .putLong(timestamp)
+            .putBytes(payload)
+            .toByteArray();
+    }
+
+    // Only peers that have subscribers for the topic get a message from one of our clients
+    private void forwardMessageToBrokers(String topicId, byte[] payload) {
+        forwardMessageToBrokers(topicId, null, payload, null);
+    }
+
+    // Under --sharding the owner passes a message another broker forwarded to it on to the other
+    // peers that want it; any other broker, and every broker without --sharding, forwards only its
+    // own clients' messages. A message so travels two hops at most.
+    private void relayMessage(String topicId, String messageId, byte[] payload) {
+        if (isRelay(topicId)) {
+            forwardMessageToBrokers(topicId, messageId, payload, originOf(messageId));
+        }
+    }
+
+    // messageId is null for a new message, which is then given one; from is the broker a relayed
+    // message came from, which does not get it back
+    private void forwardMessageToBrokers(String topicId, String messageId, byte[] payload, String from) {
+        String via = routeVia(topicId);
+        byte[] line = null;
+        for (PeerLink broker : connectedBrokers) {
+            if (forwardsTo(broker, topicId, via, from)) {
+                if (line == null) {
+                    // Payloads that would break the line protocol between brokers travel base64 encoded
+                    if (messageId == null) {
+                        messageId = messageIdPrefix + nextMessageSequence.incrementAndGet();
+                    }
+                    line = ClientConnection.encode(isLineSafe(payload)
+                        ? "forwardPublishToBrokers " + topicId + " " + messageId + " "
+                            + new String(payload, StandardCharsets.UTF_8)
+                        : "forwardPublishBinaryToBrokers " + topicId + " " + messageId + " "
+                            + Base64.getEncoder().encodeToString(payload));
+                }
+                broker.send(line);
+            }
+        }
+    }
+
+    // Under --sharding a broker that does not own a topic sends its clients' messages to the owner
+    // alone, which passes them on to every other broker that wants them. Returns the owner's ID then,
+    // or null when this broker sends to the interested peers itself.
+    private String routeVia(String topicId) {
+        if (ring == null) {
+            return null;
+        }
+        String owner = ring.owner(topicId);
+        return owner.equals(brokerId) ? null : owner;
+    }
+
+    private boolean isRelay(String topicId) {
+        return ring != null && routeVia(topicId) == null;
+    }
+
+    // Whether a message goes out on the link: the peer wants it, it is the owner when the message has
+    // to go through one, and it is not the broker the message came from
+    private static boolean forwardsTo(PeerLink broker, String topicId, String via, String from) {
+        String id = broker.getBrokerId();
+        return (via == null || via.equals(id)) && (from == null || !from.equals(id)) && broker.isInterested(topicId);
+    }
+
+    // The broker that published a forwarded message, from its <brokerId>/<sequence> ID
+    private static String originOf(String messageId) {
+        return messageId.substring(0, Math.max(0, messageId.lastIndexOf('/')));
+    }
+
+    // A forwarded message is delivered once, however many links or paths it arrives over, and
+    // never when it is one of our own coming back
+    private boolean isFirstArrival(String messageId) {
+        return !messageId.startsWith(messageIdPrefix) && seenMessages.firstSeen(messageId);
+    }
+
+    // Tells peer brokers when a topic gains its first or loses its last subscriber here, so they
+    // forward its messages only while someone here wants them. Under --sharding only the topic's
+    // owner is told, and holds that interest for us like a subscription; the owner in turn tells
+    // every peer while it or any other broker wants the messages, which it passes on. Returns true
+    // if a peer was told.
+    private boolean announceInterest(TopicRegistry.Topic topic) {
+        if (topic == null) {
+            return false;
+        }
+        topic.getLock().lock();
+        try {
+            String target = topic.isDeleted() ? null : interestTarget(topic);
+            String previous = topic.setInterestAnnouncedTo(target);
+            if (Objects.equals(previous, target)) {
+                return false;
+            }
+            byte[] add = ClientConnection.encode(PeerLink.ADD_INTEREST + topic.getId());
+            byte[] remove = ClientConnection.encode(PeerLink.REMOVE_INTEREST + topic.getId());
+            for (Map.Entry<ClientConnection, PeerState> peer : peerConnections.entrySet()) {
+                boolean was = isAnnouncedTo(previous, peer.getValue().id);
+                if (was != isAnnouncedTo(target, peer.getValue().id)) {
+                    peer.getKey().sendControl(was ? remove : add);
                 }
             }
+            return true;
+        } finally {
+            topic.getLock().unlock();
         }
+    }
 
-        // Handle subscriber crash (unsubscribe from all topics and forward to other brokers)
-        if (subscriberTopics.containsKey(clientSocket)) {
-            Set<String> subscribedTopicIds = subscriberTopics.remove(clientSocket);
-            if (subscribedTopicIds != null) {
-                for (String topicId : subscribedTopicIds) {
-                    unsubscribeFromTopic(topicId, clientSocket, new PrintWriter(System.out));
-                    forwardUnsubscribeToBrokers(topicId, clientSocket);
+    // Who should know we want the topic's messages: ALL_PEERS, the owner's ID, or null for nobody.
+    // Call with the topic's lock held.
+    private String interestTarget(TopicRegistry.Topic topic) {
+        boolean wanted = topic.getSubscriberCount() > 0 || topic.getLog() != null || topic.getRetained() != null;
+        String via = routeVia(topic.getId());
+        if (via != null) {
+            return wanted ? via : null;
+        }
+        if (!wanted && ring != null) {
+            // The owner also wants what it passes on; links not synced yet count, as they soon will be
+            for (PeerLink broker : openLinks) {
+                if (broker.isInterested(topic.getId())) {
+                    wanted = true;
+                    break;
                 }
             }
         }
+        return wanted ? ALL_PEERS : null;
+    }
+
+    private static boolean isAnnouncedTo(String target, String peerId) {
+        return target != null && (target.equals(ALL_PEERS) || target.equals(peerId));
     }
 
-    private boolean isBrokerAlreadyConnected(String brokerInfo) {
-        return otherBrokers.contains(brokerInfo);
+    // A peer started or stopped wanting a topic, or the topics matching a pattern. Under --sharding
+    // that decides whether we, as the owner, want the topic's messages to pass on.
+    private void peerInterestChanged(String topicId) {
+        if (ring == null) {
+            return;
+        }
+        if (!SubscriptionTrie.isPattern(topicId)) {
+            if (isRelay(topicId)) {
+                announceInterest(registry.getTopic(topicId));
+            }
+            return;
+        }
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            if (isRelay(topic.getId())) {
+                announceInterest(topic);
+            }
+        }
     }
 
-    private void connectToNewBroker(String brokerInfo) {
+    // Like announceInterest, for a wildcard pattern: peers forward every topic matching it
+    private void announcePatternInterest(String pattern) {
+        registry.getPatternLock().lock();
         try {
-            String[] parts = brokerInfo.split(":");
-            String brokerIp = parts[0];
-            int brokerPort = Integer.parseInt(parts[1]);
+            boolean interested = registry.hasPatternSubscribers(pattern);
+            if (interested ? announcedPatterns.add(pattern) : announcedPatterns.remove(pattern)) {
+                byte[] line = ClientConnection.encode(
+                    (interested ? PeerLink.ADD_INTEREST : PeerLink.REMOVE_INTEREST) + pattern);
+                for (ClientConnection peer : peerConnections.keySet()) {
+                    peer.sendControl(line);
+                }
+            }
+        } finally {
+            registry.getPatternLock().unlock();
+        }
+    }
 
-            Socket newBrokerSocket = new Socket(brokerIp, brokerPort);
-            connectedBrokers.add(newBrokerSocket);
-            System.out.println(getTimestamp() + " Connected to new broker at " + brokerIp + ":" + brokerPort);
-        } catch (IOException e) {
-            System.out.println(getTimestamp() + " Failed to connect to new broker: " + brokerInfo);
+    // Another broker's link to us. If we still hold its topics from a previous link they move to this
+    // one; returns the last of its changes applied, from which it resumes, or -1 for a full sync. A
+    // second link while the first is up, as when the broker reached us under two addresses, shares
+    // the first one's state until the broker closes one of them.
+    private long addPeerConnection(ClientConnection link, String peerId, String peerIncarnation) {
+        peerLock.lock();
+        try {
+            PeerState previous = peerStates.get(peerId);
+            if (previous != null && previous.departedAt == 0 && previous.incarnation.equals(peerIncarnation)) {
+                peerConnections.put(link, previous);
+                return previous.version;
+            }
+            PeerState peer = new PeerState(peerId, peerIncarnation, link);
+            if (previous != null) {
+                registry.transferPublisher(previous.connection, link);
+                if (previous.incarnation.equals(peerIncarnation)) {
+                    peer.version = previous.version;
+                } else if (previous.departedAt == 0) {
+                    // The broker has restarted; the old link is dead even if we have not noticed yet
+                    peerConnections.remove(previous.connection);
+                    previous.connection.close();
+                }
+            }
+            peerStates.put(peerId, peer);
+            peerConnections.put(link, peer);
+            return peer.version;
+        } finally {
+            peerLock.unlock();
         }
     }
 
-    // Publisher Commands
-    private synchronized void createTopic(String topicId, String topicName, String publisherName, Socket publisherSocket, PrintWriter out) {
-        if (topics.containsKey(topicId)) {
-            out.println("error Topic ID " + topicId + " is already in use.");
-            System.out.println("Topic creation failed: " + topicId + " is already in use.");
-        } else {
-            topics.put(topicId, topicName);
-            topicPublishers.computeIfAbsent(topicId, k -> new HashSet<>()).add(publisherName);
-            publisherTopics.computeIfAbsent(publisherSocket, k -> new HashSet<>()).add(topicId);
-            System.out.println("Topic created: " + topicId + " " + topicName + " by " + publisherName);
-            out.println("success");
+    // A peer's link that held its topics is gone: another link from the same broker takes them over,
+    // or else the broker is away. Returns the state if away. Call with peerLock held.
+    private PeerState promoteOrDepart(PeerState peer) {
+        for (Map.Entry<ClientConnection, PeerState> other : peerConnections.entrySet()) {
+            if (other.getValue() == peer) {
+                PeerState promoted = new PeerState(peer.id, peer.incarnation, other.getKey());
+                promoted.version = peer.version;
+                registry.transferPublisher(peer.connection, promoted.connection);
+                peerStates.put(peer.id, promoted);
+                for (Map.Entry<ClientConnection, PeerState> link : peerConnections.entrySet()) {
+                    if (link.getValue() == peer) {
+                        link.setValue(promoted);
+                    }
+                }
+                return null;
+            }
         }
+        peer.departedAt = System.nanoTime();
+        return peer;
     }
 
-    private void forwardCreateToBrokers(String topicId, String topicName, String publisherName, Socket origin) throws IOException {
-        for (Socket broker : connectedBrokers) {
-            if (!broker.equals(origin)) {
-                PrintWriter out = new PrintWriter(broker.getOutputStream(), true);
-                out.println("forwardCreateToBrokers " + topicId + " " + topicName + " " + publisherName);
+    // Tells a new peer which topics and patterns we want it to forward; under --persist or --retain
+    // that is every topic, far more lines than a queue holds, so none of them may be dropped
+    private void announceAllInterest(ClientConnection peer) {
+        PeerState state = peerConnections.get(peer);
+        String peerId = state != null ? state.id : null;
+        registry.getPatternLock().lock();
+        try {
+            for (String pattern : announcedPatterns) {
+                peer.sendControl(ClientConnection.encode(PeerLink.ADD_INTEREST + pattern));
+            }
+        } finally {
+            registry.getPatternLock().unlock();
+        }
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            topic.getLock().lock();
+            try {
+                if (isAnnouncedTo(topic.getInterestAnnouncedTo(), peerId)) {
+                    peer.sendControl(ClientConnection.encode(PeerLink.ADD_INTEREST + topic.getId()));
+                }
+            } finally {
+                topic.getLock().unlock();
             }
         }
     }
 
-    private synchronized void publishMessage(String topicId, String message) throws IOException {
-        String topicName = topics.get(topicId);
-        if (topicSubscribers.containsKey(topicId)) {
-            for (Socket subscriber : topicSubscribers.get(topicId)) {
-                PrintWriter out = new PrintWriter(subscriber.getOutputStream(), true);
-                String formattedMessage = String.format("%s %s:%s: %s",
-                    getTimestamp(), topicId, topicName, message);
-                out.println(formattedMessage + "\n\n");
-                out.flush();
+    private int countInterestedPeers(String topicId) {
+        int count = 0;
+        for (PeerLink broker : connectedBrokers) {
+            if (broker.isInterested(topicId)) {
+                count++;
             }
         }
-        System.out.println("Received new message for topic: " + topicId + " " + message);
+        return count;
     }
 
-    private void forwardMessageToBrokers(String topicId, String message, Socket origin) throws IOException {
-        for (Socket broker : connectedBrokers) {
-            if (!broker.equals(origin)) {
-                PrintWriter out = new PrintWriter(broker.getOutputStream(), true);
-                out.println("forwardPublishToBrokers " + topicId + " " + message);
+    // IDs and names travel as single words of the text protocol, to clients and to peer brokers
+    private static boolean isToken(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c <= ' ' || Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
             }
         }
+        return true;
     }
 
-    private synchronized int showSubscriberCount(String topicId) {
-        List<Socket> subscribers = topicSubscribers.get(topicId);
-        if (subscribers != null) {
-            return subscribers.size();
-        } else {
-            return 0;
+    private static boolean isLineSafe(byte[] payload) {
+        for (byte b : payload) {
+            if (b == '\n' || b == '\r' || b < 0) {
+                return false;
+            }
         }
+        return payload.length > 0;
     }
 
-    private void showTopicsAndSubscribers(String topicId, String publisherName, PrintWriter out) {
+    // One topic, or with topicId null a page of the publisher's topics
+    private void showTopicsAndSubscribers(String topicId, String publisherName, ListQuery query, ClientConnection out) {
         if (topicId != null) {
-            if (topics.containsKey(topicId) && topics.get(topicId) != null && topicPublishers.get(topicId).contains(publisherName)) {
-                int count = showSubscriberCount(topicId);
-                out.println(topicId + " " + topics.get(topicId) + " " + count);
-            } else {
-                out.println("exception Topic not found or you are not the publisher of this topic.");
+            TopicRegistry.Topic topic = registry.getTopic(topicId);
+            if (topic == null || !topic.isPublisher(publisherName)) {
+                showException("Topic not found or you are not the publisher of this topic.", out);
+                return;
             }
+            out.println(topicId + " " + topic.getName() + " " + getSubscriberCount(topic));
         } else {
-            boolean hasCreatedTopics = false;
-            for (Map.Entry<String, String> entry : topics.entrySet()) {
-                String id = entry.getKey();
-                String name = entry.getValue();
-                if (name != null && topicPublishers.get(id).contains(publisherName)) {
-                    hasCreatedTopics = true;
-                    int count = showSubscriberCount(id);
-                    out.println(id + " " + name + " " + count);
-                }
+            TopicRegistry.Page page = registry.getPublisherTopicPage(publisherName, query.prefix, query.after, query.limit);
+            if (page.getTopics().isEmpty()) {
+                showException(query.isAll() ? "Haven't created any topics." : "No matching topics.", out);
+                return;
             }
-            if (!hasCreatedTopics) {
-                out.println("exception Haven't created any topics.");
+            for (TopicRegistry.Topic topic : page.getTopics()) {
+                out.println(topic.getId() + " " + topic.getName() + " " + getSubscriberCount(topic));
+            }
+            if (page.getNext() != null) {
+                out.println("next " + encodeCursor(page.getNext()));
             }
-            out.println("END_OF_RESPONSE");
         }
+        out.println(END_OF_RESPONSE);
     }
 
-    private synchronized void deleteTopic(String topicId) {
-        String topicName = topics.get(topicId);
+    // Replies to show and showAll, failed or not, end with END_OF_RESPONSE, which the Publisher reads up to
+    private static void showException(String message, ClientConnection out) {
+        out.println("exception " + message);
+        out.println(END_OF_RESPONSE);
+    }
 
-        if (topicSubscribers.containsKey(topicId)) {
-            List<Socket> subscribers = topicSubscribers.get(topicId);
-            for (Socket subscriber : subscribers) {
-                try {
-                    PrintWriter out = new PrintWriter(subscriber.getOutputStream(), true);
-                    String deleteMessage = String.format("%s %s:%s: Topic is deleted",
-                        getTimestamp(), topicId, topicName);
-                    out.println(deleteMessage + "\n\n");
-                    out.flush();
-
-                    Set<String> subscribedTopics = subscriberTopics.get(subscriber);
-                    if (subscribedTopics != null) {
-                        subscribedTopics.remove(topicId);
-                        if (subscribedTopics.isEmpty()) {
-                            subscriberTopics.remove(subscriber);
-                        }
-                    }
+    // What a list or showAll asks for: topics whose IDs start with `prefix` or whose names start with
+    // `name`, the page after `after`, at most `limit` of them
+    private static final class ListQuery {
+        String prefix = "";
+        String name; // null unless searching by name
+        String after;
+        int limit;
 
-                } catch (IOException e) {
-                    System.out.println("Failed to notify subscriber about topic deletion: " + topicId);
-                }
+        boolean isAll() {
+            return prefix.isEmpty() && name == null && after == null;
+        }
+    }
+
+    // The options from arguments[from]. A limit over --page-size is lowered to it, and the cursor is
+    // the one a previous page gave after "next".
+    private ListQuery parseListQuery(String[] arguments, int from, boolean byName) {
+        ListQuery query = new ListQuery();
+        query.limit = pageSize;
+        for (int i = from; i < arguments.length; i++) {
+            String argument = arguments[i];
+            int equals = argument.indexOf('=');
+            String value = argument.substring(equals + 1);
+            switch (equals < 0 ? argument : argument.substring(0, equals)) {
+                case "":
+                    break;
+                case "prefix":
+                    query.prefix = value;
+                    break;
+                case "name":
+                    if (!byName) {
+                        throw new IllegalArgumentException("Topics can only be searched by prefix=.");
+                    }
+                    query.name = value;
+                    break;
+                case "after":
+                    query.after = decodeCursor(value);
+                    break;
+                case "limit":
+                    try {
+                        query.limit = Math.min(Integer.parseInt(value), pageSize);
+                    } catch (NumberFormatException e) {
+                        query.limit = 0;
+                    }
+                    if (query.limit < 1) {
+                        throw new IllegalArgumentException("Invalid limit: " + value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + argument);
             }
         }
-        topics.remove(topicId);
-        topicSubscribers.remove(topicId);
-        System.out.println("Topic deleted: " + topicId);
+        if (query.name != null && !query.prefix.isEmpty()) {
+            throw new IllegalArgumentException("Search by prefix= or by name=, not both.");
+        }
+        return query;
     }
 
-    private void forwardDeleteToBrokers(String topicId) {
-        for (Socket broker : connectedBrokers) {
-            try {
-                PrintWriter out = new PrintWriter(broker.getOutputStream(), true);
-                out.println("forwardDeleteToBrokers " + topicId);
-            } catch (IOException e) {
-                System.out.println("Failed to forward delete topic: " + topicId + " to a broker");
+    // Cursors are index keys, which can hold spaces, so they go to clients as URL-safe base64
+    private static String encodeCursor(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    // Local subscribers, exact or by pattern, plus one for each peer broker that has subscribers
+    // of its own
+    private int getSubscriberCount(TopicRegistry.Topic topic) {
+        int local;
+        topic.getLock().lock();
+        try {
+            local = registry.getRecipients(topic).length;
+            for (TopicRegistry.FilterGroup group : registry.getFilterRecipients(topic)) {
+                local += group.getSubscribers().length;
             }
+        } finally {
+            topic.getLock().unlock();
         }
+        return local + countInterestedPeers(topic.getId());
     }
 
-    // Subscriber Commands
-    private void listTopics(PrintWriter out) {
-        if (topics.isEmpty()) {
-            out.println("exception No topics available. \n\n");
+    private void deleteTopic(String topicId) {
+        TopicRegistry.Topic topic = registry.deleteTopic(topicId);
+        if (topic != null) {
+            topicDeleted(topic);
         } else {
-            for (Map.Entry<String, String> entry : topics.entrySet()) {
-                String topicId = entry.getKey();
-                String topicName = entry.getValue();
-                if (topicName != null) {
-                    Set<String> publishers = topicPublishers.get(topicId);
-                    String publisherList = String.join(", ", publishers);
-                    out.println(topicId + " " + topicName + " " + publisherList);
+            Log.info("Topic deleted: {}", topicId);
+        }
+    }
+
+    // Tells the subscribers of a topic just taken out of the registry and drops its log
+    private void topicDeleted(TopicRegistry.Topic topic) {
+        String topicId = topic.getId();
+        List<ClientConnection> backlogged = null;
+        topic.getLock().lock();
+        try {
+            byte[] textFrame = null;
+            byte[] binaryFrame = null;
+            TopicRegistry.FilterGroup[] groups = registry.getFilterRecipients(topic);
+            for (int group = -1; group < groups.length; group++) {
+                ClientConnection[] subscribers = group < 0 ? registry.getRecipients(topic) : groups[group].getSubscribers();
+                for (ClientConnection subscriber : subscribers) {
+                    if (subscriber.isBinary()) {
+                        if (binaryFrame == null) {
+                            binaryFrame = new BinaryProtocol.FrameBuilder(BinaryProtocol.TOPIC_DELETED, 0)
+                                .putInt(topic.getHandle()).toByteArray();
+                        }
+                        backlogged = sendUnderLock(subscriber, binaryFrame, backlogged);
+                    } else {
+                        if (textFrame == null) {
+                            textFrame = ClientConnection.encode(
+                                getTimestamp() + " " + topicId + ":" + topic.getName() + ": Topic is deleted\n\n");
+                        }
+                        backlogged = sendUnderLock(subscriber, textFrame, backlogged);
+                    }
+                }
+            }
+            if (logs != null) {
+                try {
+                    // Including a copy kept from when this broker owned the topic
+                    logs.delete(topicId);
+                } catch (IOException e) {
+                    Log.warn("Failed to delete the log of topic {}: {}", topicId, e.getMessage());
                 }
             }
-            out.println("\n\n");
+        } finally {
+            topic.getLock().unlock();
         }
-        System.out.println("Listed topics to subscriber");
+        awaitCapacity(backlogged);
+        announceInterest(topic);
+        Log.info("Topic deleted: {}", topicId);
     }
 
-    private synchronized void subscribeToTopic(String topicId, Socket socket, PrintWriter out) {
-        if (topics.containsKey(topicId)) {
+    private void forwardDeleteToBrokers(String topicId) {
+        forwardChange("forwardDeleteToBrokers " + topicId, null);
+    }
 
-            topicSubscribers.putIfAbsent(topicId, new ArrayList<>());
-            topicSubscribers.get(topicId).add(socket);
+    // Subscriber Commands
+    private void listTopics(ListQuery query, ClientConnection out) {
+        TopicRegistry.Page page = query.name != null
+            ? registry.getTopicPageByName(query.name, query.after, query.limit)
+            : registry.getTopicPage(query.prefix, query.after, query.limit);
+        if (page.getTopics().isEmpty()) {
+            listException(query.isAll() ? "No topics available." : "No matching topics.", out);
+            return;
+        }
+        for (TopicRegistry.Topic topic : page.getTopics()) {
+            String publisherList = String.join(", ", topic.getPublishers());
+            out.println(topic.getId() + " " + topic.getName() + " " + publisherList);
+        }
+        if (page.getNext() != null) {
+            out.println("next " + encodeCursor(page.getNext()));
+        }
+        out.println("");
+        Log.debug("Listed topics to subscriber");
+    }
 
-            subscriberTopics.putIfAbsent(socket, new HashSet<>());
-            subscriberTopics.get(socket).add(topicId);
+    // Replies to list, failed or not, end with a blank line, where the Subscriber ends a reply
+    private static void listException(String message, ClientConnection out) {
+        out.println("exception " + message);
+        out.println("");
+    }
 
-            out.println("success\n\n");
-            System.out.println("Subscriber subscribed to topic: " + topics.get(topicId) + " [ID: " + topicId + "]");
+    private void subscribeToTopic(String topicId, MessageFilter filter, ClientConnection subscriber, ClientConnection out) {
+        byte[] success = ClientConnection.encode("success\n\n");
+        TopicRegistry.Topic topic = subscribeWithRetained(topicId, subscriber, filter, subscribed -> success);
+        if (topic != null) {
+            if (filter != null) {
+                Log.debug("Subscriber subscribed to topic: {} [ID: {}] where {}", topic.getName(), topicId, filter);
+            } else {
+                Log.debug("Subscriber subscribed to topic: {} [ID: {}]", topic.getName(), topicId);
+            }
         } else {
             out.println("error Topic ID not found. \n\n");
-            System.out.println("Subscriber subscribed to topic but the topic ID not found.");
+            Log.debug("Subscriber subscribed to topic but the topic ID not found.");
         }
     }
 
-    private void forwardSubscribeToBrokers(String topicId, Socket origin) throws IOException {
-        for (Socket broker : connectedBrokers) {
-            if (!broker.equals(origin)) {
-                PrintWriter out = new PrintWriter(broker.getOutputStream(), true);
-                out.println("forwardSubscribeToBrokers " + topicId);
+    // Subscribes and sends the reply together with the topic's retained messages in one write.
+    // Both happen under the topic lock, so no publish can come between them or be sent twice.
+    private TopicRegistry.Topic subscribeWithRetained(String topicId, ClientConnection subscriber, MessageFilter filter,
+                                                      Function<TopicRegistry.Topic, byte[]> reply) {
+        TopicRegistry.Topic topic = registry.getTopic(topicId);
+        if (topic == null) {
+            return null;
+        }
+        topic.getLock().lock();
+        try {
+            if (registry.subscribe(topicId, subscriber, filter) != topic) {
+                return null;
+            }
+            byte[] frame = reply.apply(topic);
+            RetainedMessages retained = topic.getRetained();
+            if (retained != null && retained.size() > 0) {
+                ByteArrayOutputStream frames = new ByteArrayOutputStream(
+                    frame.length + (int) retained.getByteCount() + retained.size() * 64);
+                frames.writeBytes(frame);
+                retained.forEach((timestamp, payload) -> {
+                    if (filter == null || filter.matches(new MessageFilter.Message(new String(payload, StandardCharsets.UTF_8)))) {
+                        frames.writeBytes(replayFrame(topic, timestamp, ByteBuffer.wrap(payload), subscriber));
+                    }
+                });
+                frame = frames.toByteArray();
             }
+            subscriber.reply(frame);
+            return topic;
+        } finally {
+            topic.getLock().unlock();
         }
     }
 
-    private synchronized void unsubscribeFromTopic(String topicId, Socket clientSocket, PrintWriter out) {
-        if (topicSubscribers.containsKey(topicId)) {
-            List<Socket> subscribers = topicSubscribers.get(topicId);
-            if (subscribers != null && subscribers.remove(clientSocket)) {
-                System.out.println("Subscriber unsubscribed from topic: " + topicId);
-                
-                Set<String> subscribedTopics = subscriberTopics.get(clientSocket);
-                
-                if (subscribedTopics != null) {
-                    subscribedTopics.remove(topicId);
-
-                    if (subscribedTopics.isEmpty()) {
-                        subscriberTopics.remove(clientSocket);
-                    }
+    // A wildcard subscription also covers topics created later. Binary subscribers learn the handle
+    // of every matching topic from a TOPIC_INFO frame, sent for the existing ones together with the
+    // reply. Runs under the pattern lock, so no delivery can overtake the reply.
+    private boolean subscribeToPattern(String pattern, ClientConnection subscriber, byte[] reply) {
+        if (!SubscriptionTrie.isValidPattern(pattern)) {
+            return false;
+        }
+        registry.getPatternLock().lock();
+        try {
+            registry.subscribePattern(pattern, subscriber);
+            if (subscriber.isBinary()) {
+                ByteArrayOutputStream frames = new ByteArrayOutputStream();
+                frames.writeBytes(reply);
+                for (TopicRegistry.Topic topic : registry.getMatchingTopics(pattern)) {
+                    frames.writeBytes(topicInfoFrame(topic));
                 }
-                
-                out.println("success\n\n");
-            } else {
-                out.println("exception Topic ID was not subscribed.\n\n");
-                System.out.println("Subscriber was not subscribed to topic: " + topicId);
+                reply = frames.toByteArray();
             }
+            subscriber.reply(reply);
+        } finally {
+            registry.getPatternLock().unlock();
+        }
+        announcePatternInterest(pattern);
+        Log.debug("Subscriber subscribed to pattern: {}", pattern);
+        return true;
+    }
+
+    // subscribe <topicId> offset=<n>|since=<epoch millis>: replays the topic's log from there, then
+    // carries on with live messages
+    private void subscribeWithReplay(String topicId, String position, MessageFilter filter, ClientConnection subscriber) {
+        TopicRegistry.Topic topic = registry.getTopic(topicId);
+        TopicLog log = topic == null ? null : topic.getLog();
+        String[] option = position.split("=", 2);
+        long value;
+        try {
+            value = option.length == 2 ? Long.parseLong(option[1]) : 0;
+        } catch (NumberFormatException e) {
+            option = new String[] {""};
+            value = 0;
+        }
+        if (topic == null) {
+            subscriber.println("error Topic ID not found. \n\n");
+        } else if (!option[0].equals("offset") && !option[0].equals("since")) {
+            subscriber.println("error Usage: subscribe {topic_id} [offset=<n>|since=<epoch millis>] \n\n");
+        } else if (log == null) {
+            subscriber.println("error " + noHistory(topicId) + " \n\n");
         } else {
-            out.println("exception Topic ID not found. \n\n");
-            System.out.println("Subscriber unsubscribes topic ID not found: " + topicId);
+            long start = replayStart(log, option[0].equals("since"), value);
+            subscriber.println("success\n\n");
+            startThread(() -> replayAndSubscribe(topic, log, start, filter, subscriber));
         }
     }
-    
 
-    private void forwardUnsubscribeToBrokers(String topicId, Socket origin) {
-        for (Socket broker : connectedBrokers) {
-            if (!broker.equals(origin)) {
-                try {
-                    PrintWriter out = new PrintWriter(broker.getOutputStream(), true);
-                    out.println("forwardUnubscribeToBrokers " + topicId);
-                } catch (IOException e) {
-                    System.err.println("[error] Failed to forward unsubscribe for topic: " + topicId + " to broker: " + broker);
-                    e.printStackTrace();
+    // Negative offsets count back from the end of the log, negative times back from now
+    private static long replayStart(TopicLog log, boolean since, long value) {
+        if (since) {
+            return log.offsetAt(value < 0 ? System.currentTimeMillis() + value : value);
+        }
+        return value < 0 ? Math.max(0, log.getEndOffset() + value) : value;
+    }
+
+    // Sends the logged messages from `offset` on, then subscribes. The bulk of the history goes
+    // out without the topic lock, waiting for the subscriber to drain its queue instead of
+    // dropping; the last few records are sent under the lock together with the subscribe, so no
+    // message published meanwhile is missed or sent twice.
+    private void replayAndSubscribe(TopicRegistry.Topic topic, TopicLog log, long offset, MessageFilter filter,
+                                    ClientConnection subscriber) {
+        boolean[] aborted = {false};
+        long[] replayed = {0};
+        long next = offset;
+        while (!aborted[0] && log.getEndOffset() - next > 64) {
+            next = log.read(next, (recordOffset, timestamp, payload) -> {
+                if (!accepts(filter, payload)) {
+                    return true;
                 }
+                if (!subscriber.sendWaiting(replayFrame(topic, timestamp, payload, subscriber))) {
+                    aborted[0] = true;
+                    return false;
+                }
+                replayed[0]++;
+                return true;
+            });
+        }
+        if (aborted[0]) {
+            Log.warn("Replay of topic {} to {} aborted after {} messages", topic.getId(), subscriber, replayed[0]);
+            subscriber.close();
+            return;
+        }
+        boolean[] full = {false};
+        topic.getLock().lock();
+        try {
+            if (topic.isDeleted() || subscriber.isDisconnected()) {
+                return;
             }
+            log.read(next, (recordOffset, timestamp, payload) -> {
+                if (!accepts(filter, payload)) {
+                    return true;
+                }
+                full[0] |= !subscriber.sendUnderLock(replayFrame(topic, timestamp, payload, subscriber));
+                replayed[0]++;
+                return true;
+            });
+            registry.subscribe(topic.getId(), subscriber, filter);
+        } finally {
+            topic.getLock().unlock();
+        }
+        if (full[0]) {
+            subscriber.awaitCapacity();
+        }
+        // A disconnect that raced with the subscribe would leave a dead subscriber behind
+        if (subscriber.isDisconnected()) {
+            registry.unsubscribe(topic.getId(), subscriber);
+        }
+        announceInterest(topic);
+        Log.debug("Subscriber subscribed to topic: {} [ID: {}] after replaying {} messages", topic.getName(),
+            topic.getId(), replayed[0]);
+    }
+
+    private static boolean accepts(MessageFilter filter, ByteBuffer payload) {
+        return filter == null || filter.matches(new MessageFilter.Message(StandardCharsets.UTF_8.decode(payload).toString()));
+    }
+
+    private byte[] replayFrame(TopicRegistry.Topic topic, long timestamp, ByteBuffer payload, ClientConnection subscriber) {
+        if (subscriber.isBinary()) {
+            return deliverFrame(topic, timestamp, payload);
         }
+        return ClientConnection.encode(TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(timestamp)) + " " + topic.getId()
+            + ":" + topic.getName() + ": " + StandardCharsets.UTF_8.decode(payload) + "\n\n");
     }
 
-    private synchronized void listCurrentSubscriptions(Socket clientSocket, PrintWriter out) {
-        Set<String> subscribedTopics = subscriberTopics.get(clientSocket);
+    private void unsubscribeFromTopic(String topicId, ClientConnection client, ClientConnection out) {
+        switch (registry.unsubscribe(topicId, client)) {
+            case UNSUBSCRIBED:
+                Log.debug("Subscriber unsubscribed from topic: {}", topicId);
+                out.println("success\n\n");
+                break;
+            case NOT_SUBSCRIBED:
+                out.println("exception Topic ID was not subscribed.\n\n");
+                Log.debug("Subscriber was not subscribed to topic: {}", topicId);
+                break;
+            case TOPIC_NOT_FOUND:
+                out.println("exception Topic ID not found. \n\n");
+                Log.debug("Subscriber unsubscribes topic ID not found: {}", topicId);
+                break;
+        }
+    }
 
-        if (subscribedTopics != null && !subscribedTopics.isEmpty()) {
+    private void listCurrentSubscriptions(ClientConnection client, ClientConnection out) {
+        Set<String> subscribedTopics = registry.getSubscriptions(client);
+        Set<String> subscribedPatterns = registry.getPatternSubscriptions(client);
+
+        if (!subscribedTopics.isEmpty() || !subscribedPatterns.isEmpty()) {
             for (String topicId : subscribedTopics) {
-                String topicName = topics.get(topicId);
-                if (topicName != null) {
-                    String publisher = topicPublishers.get(topicId).iterator().next();
-                    out.println(topicId + " " + topicName + " " + publisher);
+                TopicRegistry.Topic topic = registry.getTopic(topicId);
+                if (topic != null) {
+                    String publisher = topic.getPublishers().iterator().next();
+                    MessageFilter filter = topic.getFilter(client);
+                    out.println(topicId + " " + topic.getName() + " " + publisher + (filter != null ? " where " + filter : ""));
                 }
             }
-            out.println("\n");
+            for (String pattern : subscribedPatterns) {
+                out.println(pattern + " (wildcard)");
+            }
         } else {
-            out.println("exception No active subscriptions found\n");
+            out.println("exception No active subscriptions found");
         }
+        out.println("");
 
-        System.out.println("Listed current subscriptions");
+        Log.debug("Listed current subscriptions");
     }
 
     public static void main(String[] args) throws IOException {
         int port = Integer.parseInt(args[0]);
         List<String> otherBrokers = new ArrayList<>();
 
-        if (args.length > 1) {
-            otherBrokers.addAll(Arrays.asList(Arrays.copyOfRange(args, 1, args.length)));
-        }
-
-        Broker broker = new Broker(port, otherBrokers);
+        BrokerOptions options = BrokerOptions.parse(Arrays.copyOfRange(args, 1, args.length), otherBrokers);
+        Broker broker = new Broker(port, otherBrokers, options);
         broker.start();
     }
 }
@@ -0,0 +1,269 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// The Broker's counters and latency histograms, shown by the "stats" command and over JMX.
+// Broker-wide counters are LongAdders, which spread contended updates over per-thread cells, so
+// recording allocates nothing and publishers on different topics do not contend on one cache line;
+// per-topic counts live on the topic, under the topic lock the publish already holds. A background
+// thread turns the counts into per-second rates once a second.
+public class BrokerMetrics implements BrokerMetricsMBean {
+    private static final int BACKLOGS_SHOWN = 10;
+
+    private final TopicRegistry registry;
+    private final Collection<PeerLink> peers;
+    private final AdmissionControl admission; // keeps its own throttling counts, like the topics
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private final LongAdder publishes = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder clientCrashes = new LongAdder();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LatencyHistogram crashHandling = new LatencyHistogram();
+    private final LongAdder peerFailures = new LongAdder();
+    private final LatencyHistogram failureDetection = new LatencyHistogram(); // last heartbeat to link closed
+    private final LatencyHistogram linkRecovery = new LatencyHistogram(); // link lost to peer resynced
+    private final long startMillis = System.currentTimeMillis();
+
+    private volatile double publishRate;
+    private volatile double deliveryRate;
+    private volatile Map<TopicRegistry.Topic, double[]> topicRates = Map.of(); // {publishes/s, deliveries/s}
+
+    public BrokerMetrics(TopicRegistry registry, Collection<PeerLink> peers, AdmissionControl admission) {
+        this.registry = registry;
+        this.peers = peers;
+        this.admission = admission;
+    }
+
+    // Registers the JMX bean and starts computing rates
+    public void start(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("pubsub:type=Broker,port=" + port));
+        } catch (JMException e) {
+            Log.warn("Failed to register the Broker's JMX metrics: {}", e.getMessage());
+        }
+        Thread thread = new Thread(this::rateLoop, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void published(int deliveryCount, long fanOutNanos) {
+        publishes.increment();
+        deliveries.add(deliveryCount);
+        fanOut.record(fanOutNanos);
+    }
+
+    public void connectionOpened(ClientConnection connection) {
+        connections.add(connection);
+        connectionsOpened.increment();
+    }
+
+    public void clientCrashHandled(ClientConnection connection, long nanos) {
+        connections.remove(connection);
+        clientCrashes.increment();
+        crashHandling.record(nanos);
+    }
+
+    public void peerFailureDetected(long silentNanos) {
+        peerFailures.increment();
+        failureDetection.record(silentNanos);
+    }
+
+    public void peerRecovered(long nanos) {
+        linkRecovery.record(nanos);
+    }
+
+    private void rateLoop() {
+        long lastTime = System.nanoTime();
+        long lastPublishes = 0;
+        long lastDeliveries = 0;
+        Map<TopicRegistry.Topic, long[]> lastTopicCounts = new HashMap<>();
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            double seconds = (now - lastTime) / 1e9;
+            long publishCount = publishes.sum();
+            long deliveryCount = deliveries.sum();
+            publishRate = (publishCount - lastPublishes) / seconds;
+            deliveryRate = (deliveryCount - lastDeliveries) / seconds;
+
+            Map<TopicRegistry.Topic, long[]> topicCounts = new HashMap<>();
+            Map<TopicRegistry.Topic, double[]> rates = new HashMap<>();
+            for (TopicRegistry.Topic topic : registry.getTopics()) {
+                long[] counts = {topic.getPublishCount(), topic.getDeliveryCount()};
+                long[] last = lastTopicCounts.getOrDefault(topic, new long[2]); // counts start with the topic
+                topicCounts.put(topic, counts);
+                rates.put(topic, new double[] {(counts[0] - last[0]) / seconds, (counts[1] - last[1]) / seconds});
+            }
+            topicRates = rates;
+            lastTime = now;
+            lastPublishes = publishCount;
+            lastDeliveries = deliveryCount;
+            lastTopicCounts = topicCounts;
+        }
+    }
+
+    // The "stats" command
+    public void writeStats(ClientConnection out) {
+        out.println("uptime=" + (System.currentTimeMillis() - startMillis) / 1000 + "s"
+            + " publishes=" + publishes.sum() + String.format(" (%.0f/s)", publishRate)
+            + " deliveries=" + deliveries.sum() + String.format(" (%.0f/s)", deliveryRate));
+        out.println("fan-out us: " + fanOut.summary());
+        out.println("connections=" + connections.size() + " opened=" + connectionsOpened.sum()
+            + " crashes=" + clientCrashes.sum() + " crash handling us: " + crashHandling.summary());
+        for (String line : getTopicStats()) {
+            out.println(line);
+        }
+        List<ClientConnection> backlogged = new ArrayList<>();
+        for (ClientConnection connection : connections) {
+            if (connection.getQueueDepth() > 0) {
+                backlogged.add(connection);
+            }
+        }
+        backlogged.sort(Comparator.comparingInt(ClientConnection::getQueueDepth).reversed());
+        for (ClientConnection connection : backlogged.subList(0, Math.min(BACKLOGS_SHOWN, backlogged.size()))) {
+            out.println("backlog " + connection + " queued=" + connection.getQueueDepth()
+                + " dropped=" + connection.getDroppedCount());
+        }
+        for (PeerLink peer : peers) {
+            out.println("peer " + peer.getAddress() + " queued=" + peer.getQueueSize() + " lag=" + peer.getLagMillis() + "ms");
+        }
+        out.println(String.format("peer failures=%d detection ms: p50=%.0f max=%.0f recovery ms: p50=%.0f max=%.0f",
+            peerFailures.sum(), failureDetection.getPercentile(50) / 1e6, failureDetection.getMax() / 1e6,
+            linkRecovery.getPercentile(50) / 1e6, linkRecovery.getMax() / 1e6));
+        out.println("throttled publisher=" + admission.getThrottled(AdmissionControl.Verdict.PUBLISHER_RATE)
+            + " topic=" + admission.getThrottled(AdmissionControl.Verdict.TOPIC_RATE)
+            + " in-flight=" + admission.getThrottled(AdmissionControl.Verdict.IN_FLIGHT)
+            + " in-flight bytes=" + admission.getInFlightBytes() + " admission wait us: " + admission.getWaits().summary());
+        out.println("END_OF_RESPONSE");
+    }
+
+    @Override
+    public String[] getTopicStats() {
+        Map<TopicRegistry.Topic, double[]> rates = topicRates;
+        List<String> lines = new ArrayList<>();
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            double[] rate = rates.getOrDefault(topic, new double[2]);
+            lines.add("topic " + topic.getId() + " subscribers=" + topic.getSubscriberCount()
+                + " publishes=" + topic.getPublishCount() + String.format(" (%.0f/s)", rate[0])
+                + " deliveries=" + topic.getDeliveryCount() + String.format(" (%.0f/s)", rate[1]));
+        }
+        lines.sort(null);
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public long getPublishes() {
+        return publishes.sum();
+    }
+
+    @Override
+    public long getDeliveries() {
+        return deliveries.sum();
+    }
+
+    @Override
+    public double getPublishRate() {
+        return publishRate;
+    }
+
+    @Override
+    public double getDeliveryRate() {
+        return deliveryRate;
+    }
+
+    @Override
+    public double getFanOutP50Micros() {
+        return fanOut.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutP99Micros() {
+        return fanOut.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutMaxMicros() {
+        return fanOut.getMax() / 1000.0;
+    }
+
+    @Override
+    public int getConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getClientCrashes() {
+        return clientCrashes.sum();
+    }
+
+    @Override
+    public double getCrashHandlingP99Micros() {
+        return crashHandling.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getPeerFailures() {
+        return peerFailures.sum();
+    }
+
+    @Override
+    public double getFailureDetectionMaxMillis() {
+        return failureDetection.getMax() / 1e6;
+    }
+
+    @Override
+    public double getLinkRecoveryP99Millis() {
+        return linkRecovery.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public long getThrottledPublishes() {
+        long throttled = 0;
+        for (AdmissionControl.Verdict verdict : AdmissionControl.Verdict.values()) {
+            throttled += admission.getThrottled(verdict);
+        }
+        return throttled;
+    }
+
+    @Override
+    public long getInFlightBytes() {
+        return admission.getInFlightBytes();
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ClientConnection connection : connections) {
+            max = Math.max(max, connection.getQueueDepth());
+        }
+        return max;
+    }
+
+    @Override
+    public long getMaxPeerLagMillis() {
+        long max = 0;
+        for (PeerLink peer : peers) {
+            max = Math.max(max, peer.getLagMillis());
+        }
+        return max;
+    }
+}
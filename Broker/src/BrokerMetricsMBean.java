@@ -0,0 +1,46 @@
+// What the Broker exposes over JMX as pubsub:type=Broker,port=<port>; rates are per second over
+// the last second, latencies in microseconds
+public interface BrokerMetricsMBean {
+    long getPublishes();
+
+    long getDeliveries();
+
+    double getPublishRate();
+
+    double getDeliveryRate();
+
+    double getFanOutP50Micros();
+
+    double getFanOutP99Micros();
+
+    double getFanOutMaxMicros();
+
+    int getConnections();
+
+    long getConnectionsOpened();
+
+    long getClientCrashes();
+
+    double getCrashHandlingP99Micros();
+
+    // Peer brokers declared dead by the failure detector, how long each had been silent, and the time
+    // from losing a link to having resynced over a new one
+    long getPeerFailures();
+
+    double getFailureDetectionMaxMillis();
+
+    double getLinkRecoveryP99Millis();
+
+    // Client publishes refused by the rate limits or the in-flight budget, and the bytes of
+    // publishes being fanned out right now
+    long getThrottledPublishes();
+
+    long getInFlightBytes();
+
+    int getMaxOutboundBacklog();
+
+    long getMaxPeerLagMillis();
+
+    // One line per topic, as in the stats command
+    String[] getTopicStats();
+}
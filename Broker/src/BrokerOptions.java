@@ -0,0 +1,45 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Startup options passed to the broker as --name=value (or a bare --name for true)
+public class BrokerOptions {
+    private final Map<String, String> values = new HashMap<>();
+
+    // Splits the arguments into options and positional arguments (other broker addresses)
+    public static BrokerOptions parse(String[] args, List<String> positional) {
+        BrokerOptions options = new BrokerOptions();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.values.put(arg.substring(2), "true");
+                } else {
+                    options.values.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        return options;
+    }
+
+    public String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
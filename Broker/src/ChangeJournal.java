@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The topic creates and deletes this broker has forwarded, numbered from 1, with the last
+// `capacity` kept as the encoded lines that were sent. A peer that comes back knowing our changes
+// up to some version is sent the ones after it instead of every topic, as long as they are still
+// here. Numbering a change and queueing it for the peers happen under the journal's lock, which is
+// also held while a peer's link is added, so a link gets every change exactly once: from the journal
+// or live. The lock is a ReentrantLock, so a virtual thread waiting for it does not pin its carrier;
+// nothing is sent while it is held.
+public class ChangeJournal {
+    private final byte[][] lines;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long version; // guarded by lock
+
+    public ChangeJournal(int capacity) {
+        this.lines = new byte[Math.max(1, capacity)][];
+    }
+
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    // Call with the lock held; the line must end with the version it is given
+    public long nextVersion() {
+        return version + 1;
+    }
+
+    public void add(byte[] line) {
+        lock.lock();
+        try {
+            version++;
+            lines[(int) (version % lines.length)] = line;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The lines after `from`, or null if some of them are no longer kept (or `from` is from the future,
+    // such as a previous run of this broker)
+    public List<byte[]> since(long from) {
+        lock.lock();
+        try {
+            if (from < 0 || from > version || version - from > lines.length) {
+                return null;
+            }
+            List<byte[]> missed = new ArrayList<>((int) (version - from));
+            for (long v = from + 1; v <= version; v++) {
+                missed.add(lines[(int) (v % lines.length)]);
+            }
+            return missed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
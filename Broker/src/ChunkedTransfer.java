@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+// One large message on its way through the broker, chunk by chunk (see PUBLISH_CHUNK). Who gets
+// it is settled by its first chunk: the topic's binary subscribers without a filter and the peer
+// brokers interested in the topic at that moment. Every chunk is encoded once per protocol and
+// queued straight to them, so the broker holds one chunk of the message at a time however large
+// it is. Retention, persistence and filters need the whole payload and do not apply.
+public class ChunkedTransfer {
+    private final TopicRegistry.Topic topic;
+    private final int streamId;     // names the message to subscribers
+    private final String messageId; // and to peer brokers
+    private final long timestamp;
+    private final long totalLength;
+    private final ClientConnection[] subscribers;
+    private final List<PeerLink> peers;
+    private long offset; // bytes relayed so far, as sent
+
+    public ChunkedTransfer(TopicRegistry.Topic topic, int streamId, String messageId, long timestamp, long totalLength,
+                           ClientConnection[] subscribers, List<PeerLink> peers) {
+        this.topic = topic;
+        this.streamId = streamId;
+        this.messageId = messageId;
+        this.timestamp = timestamp;
+        this.totalLength = totalLength;
+        this.subscribers = subscribers;
+        this.peers = peers;
+    }
+
+    public TopicRegistry.Topic getTopic() {
+        return topic;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getRecipientCount() {
+        return subscribers.length;
+    }
+
+    // Passes the chunk on; its bytes are copied, so the caller may reuse them afterwards
+    public void relay(byte flags, ByteBuffer chunk) {
+        if (subscribers.length > 0) {
+            BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.DELIVER_CHUNK, 0,
+                33 + chunk.remaining());
+            frame.putInt(topic.getHandle()).putInt(streamId).putByte(flags).putLong(offset);
+            if ((flags & BinaryProtocol.CHUNK_FIRST) != 0) {
+                frame.putLong(timestamp).putLong(totalLength);
+            }
+            byte[] bytes = frame.putBytes(chunk).toByteArray();
+            for (ClientConnection subscriber : subscribers) {
+                subscriber.send(bytes);
+            }
+        }
+        if (!peers.isEmpty()) {
+            // forwardChunkToBrokers <topicId> <messageId> <flags> <totalLength> <base64 bytes>
+            byte[] line = ClientConnection.encode("forwardChunkToBrokers " + topic.getId() + " " + messageId + " "
+                + flags + " " + totalLength + " "
+                + StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(chunk.duplicate())));
+            for (PeerLink peer : peers) {
+                peer.send(line);
+            }
+        }
+        offset += chunk.remaining();
+    }
+
+    // Tells everyone who got part of the message to discard it
+    public void abort() {
+        relay(BinaryProtocol.CHUNK_ABORT, ByteBuffer.allocate(0));
+    }
+}
@@ -0,0 +1,138 @@
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// A publisher, subscriber or peer broker connected to this broker. Replies and deliveries are
+// queued through send/println, whether the connection is served by its own thread or by an NIO
+// event loop.
+public abstract class ClientConnection {
+    // Sink for replies nobody will read, e.g. when cleaning up after a crashed client
+    public static final ClientConnection DISCARD = new ClientConnection() {
+        @Override
+        public void send(byte[] frame) {
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private volatile boolean binary;
+    private volatile String clientName;
+    private volatile boolean disconnected;
+    private volatile Session session;
+    private volatile RateLimiter publishLimiter; // see AdmissionControl
+
+    // Queues an already encoded frame; the bytes must not be modified afterwards
+    public abstract void send(byte[] frame);
+
+    // Like send, but waits for room in the queue instead of applying the overflow policy; false
+    // if the connection is closed or stays full past the block timeout
+    public boolean sendWaiting(byte[] frame) {
+        send(frame);
+        return true;
+    }
+
+    // Queues a delivery from under a topic lock, which every publisher and subscriber of the topic
+    // needs, so it never waits: where send would wait for room under --overflow=block, the frame goes
+    // past the capacity and this returns false. The caller then calls awaitCapacity once it has let
+    // go of the lock, so a slow subscriber holds up only the publish that filled its queue.
+    public boolean sendUnderLock(byte[] frame) {
+        send(frame);
+        return true;
+    }
+
+    // Waits for room in a queue sendUnderLock took past its capacity; a client whose queue stays
+    // full for the block timeout is disconnected, as by send
+    public void awaitCapacity() {
+    }
+
+    // Queues the answer to a command. The client may be blocked waiting for it, so unlike a
+    // delivery it is never dropped by the overflow policy (see OutboundQueue.offerReply).
+    public void reply(byte[] frame) {
+        send(frame);
+    }
+
+    // Queues a line of routing control for a peer broker, such as a heartbeat or a change of
+    // interest. A lost line would leave the peer forwarding the wrong topics for good, and a wait
+    // would hold up the announcing thread, so it is neither dropped nor held back: the queue goes
+    // past its capacity instead (see OutboundQueue.offerOverCapacity). A peer reads everything it is
+    // sent, so the excess only lasts until its socket catches up.
+    public void sendControl(byte[] frame) {
+        reply(frame);
+    }
+
+    public void println(String line) {
+        reply(encode(line));
+    }
+
+    // Encodes one protocol line as UTF-8, ended with '\n' whatever the platform, the same as the
+    // blank lines inside replies and the lines of a TEXT frame
+    public static byte[] encode(String line) {
+        return (line + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    public abstract Socket getSocket();
+
+    // True once the client has switched to the binary protocol with "binary <name>"
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    public final void switchToBinary(String clientName) {
+        this.clientName = clientName;
+        this.binary = true;
+    }
+
+    public abstract void close();
+
+    // The session this connection carries, if the client opened one with "session"; commands on
+    // the connection then act for the session
+    public Session getSession() {
+        return session;
+    }
+
+    public void setSession(Session session) {
+        this.session = session;
+        switchToBinary(session.getClientName());
+    }
+
+    public RateLimiter getPublishLimiter() {
+        return publishLimiter;
+    }
+
+    public void setPublishLimiter(RateLimiter publishLimiter) {
+        this.publishLimiter = publishLimiter;
+    }
+
+    // Set when crash handling starts, so work finishing on another thread can tell it is too late
+    // to register the connection anywhere
+    public void markDisconnected() {
+        disconnected = true;
+    }
+
+    public boolean isDisconnected() {
+        return disconnected;
+    }
+
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    public long getDroppedCount() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(getSocket());
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Decides which broker owns a topic under --sharding. Every broker is placed on a 64-bit hash ring
+// at `virtualNodes` points, and a topic belongs to the broker of the first point at or after the
+// topic's own hash, wrapping around. A broker joining or leaving only takes over or hands back the
+// topics just before its points, about 1/n of them, and the many points per broker keep the shares
+// close to even. Lookups read an immutable snapshot and take no lock.
+public class ConsistentHashRing {
+    private final int virtualNodes;
+    private final Set<String> members = new TreeSet<>(); // guarded by this
+    private volatile TreeMap<Long, String> points = new TreeMap<>(); // replaced, never modified
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    // False if the broker was already a member
+    public synchronized boolean add(String brokerId) {
+        if (!members.add(brokerId)) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+    public synchronized boolean remove(String brokerId) {
+        if (!members.remove(brokerId)) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+
+    public synchronized Set<String> getMembers() {
+        return new TreeSet<>(members);
+    }
+
+    // Null while the ring is empty
+    public String owner(String topicId) {
+        TreeMap<Long, String> ring = points;
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(topicId));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    private void rebuild() {
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // Where two points collide the smaller broker ID wins, the same on every broker
+                ring.merge(hash(member + "#" + i), member, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        points = ring;
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a finalizer that spreads similar keys across the ring
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
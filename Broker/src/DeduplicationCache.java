@@ -0,0 +1,116 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// IDs of messages recently forwarded to this broker, so a message that arrives a second time, over
+// another link or a longer path, is dropped instead of delivered again. An ID is <brokerId>/<sequence>,
+// and each origin broker has a stripe of its own, so messages from different brokers never wait for
+// each other. Within a stripe entries expire after a time-to-live and, when more arrive within it
+// than fit, the oldest are evicted first.
+public class DeduplicationCache {
+    private final int capacity; // per origin
+    private final long ttlNanos;
+    private final Map<String, Stripe> stripes = new ConcurrentHashMap<>(); // by origin broker ID
+    private final LongAdder duplicates = new LongAdder();
+
+    // The sequence numbers seen from one origin; a ReentrantLock, so a virtual thread waiting for it
+    // does not pin its carrier
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        boolean removed; // from stripes, when it had expired entirely
+        final LinkedHashMap<Long, Long> seen = new LinkedHashMap<>() { // sequence -> nanoTime, oldest first
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        // Call with the lock held
+        void expire(long now) {
+            Iterator<Long> oldest = seen.values().iterator();
+            while (oldest.hasNext() && now - oldest.next() > ttlNanos) {
+                oldest.remove();
+            }
+        }
+    }
+
+    public DeduplicationCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    // Records the ID and returns true the first time it is seen, false for a duplicate. An ID not
+    // in the <brokerId>/<sequence> form cannot be told apart from others and counts as new.
+    public boolean firstSeen(String messageId) {
+        int slash = messageId.lastIndexOf('/');
+        long sequence;
+        try {
+            sequence = Long.parseLong(messageId.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        String origin = messageId.substring(0, Math.max(slash, 0));
+        while (true) {
+            Stripe stripe = stripes.get(origin);
+            if (stripe == null) {
+                // A broker we have not heard from lately; stripes of brokers gone quiet go first
+                expireIdleStripes();
+                stripe = stripes.computeIfAbsent(origin, id -> new Stripe());
+            }
+            long now = System.nanoTime();
+            stripe.lock.lock();
+            try {
+                if (stripe.removed) {
+                    continue; // expired just now; its successor is the one to record in
+                }
+                stripe.expire(now);
+                if (stripe.seen.putIfAbsent(sequence, now) != null) {
+                    duplicates.increment();
+                    return false;
+                }
+                return true;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    // Broker IDs are random unless configured, so every restart of a peer starts a new stripe
+    private void expireIdleStripes() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Stripe> entry : stripes.entrySet()) {
+            Stripe stripe = entry.getValue();
+            stripe.lock.lock();
+            try {
+                stripe.expire(now);
+                if (stripe.seen.isEmpty()) {
+                    stripe.removed = true;
+                    stripes.remove(entry.getKey(), stripe);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes.values()) {
+            stripe.lock.lock();
+            try {
+                size += stripe.seen.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+}
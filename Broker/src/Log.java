@@ -0,0 +1,229 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The Broker's log. A call below the current level returns at once; one at or above it copies its
+// level, time, format and arguments into a preallocated ring buffer, and a background thread builds
+// and prints the line, so no caller waits for the console or builds a string. "{}" in the format
+// stands for the next argument. A full buffer drops new lines rather than holding up the caller,
+// and the appender reports how many it lost. Arguments are turned into text on the appender
+// thread, so pass values that do not change afterwards.
+public final class Log {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 8192; // lines
+    private static final int MAX_ARGUMENTS = 3;
+    private static final int CHUNK_CHARS = 8192;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("dd/MM HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+
+    // Ring buffer, guarded by lock; entries are written at tail and appended from head
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition notEmpty = lock.newCondition();
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final String[] formats = new String[CAPACITY];
+    private static final Object[] arguments = new Object[CAPACITY * MAX_ARGUMENTS];
+    private static long head;
+    private static long tail;
+    private static long dropped;
+
+    static {
+        Thread appender = new Thread(Log::appendLoop, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    // For callers that would have to box or compute arguments: check first, then log
+    public static boolean isEnabled(Level at) {
+        return at.compareTo(level) >= 0;
+    }
+
+    public static void trace(String format, Object arg1, Object arg2) {
+        log(Level.TRACE, format, arg1, arg2, null);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null, null, null);
+    }
+
+    public static void debug(String format, Object arg) {
+        log(Level.DEBUG, format, arg, null, null);
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, arg1, arg2, null);
+    }
+
+    public static void debug(String format, Object arg1, Object arg2, Object arg3) {
+        log(Level.DEBUG, format, arg1, arg2, arg3);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null, null, null);
+    }
+
+    public static void info(String format, Object arg) {
+        log(Level.INFO, format, arg, null, null);
+    }
+
+    public static void info(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, arg1, arg2, null);
+    }
+
+    public static void info(String format, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, format, arg1, arg2, arg3);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null, null);
+    }
+
+    public static void warn(String format, Object arg) {
+        log(Level.WARN, format, arg, null, null);
+    }
+
+    public static void warn(String format, Object arg1, Object arg2) {
+        log(Level.WARN, format, arg1, arg2, null);
+    }
+
+    public static void warn(String format, Object arg1, Object arg2, Object arg3) {
+        log(Level.WARN, format, arg1, arg2, arg3);
+    }
+
+    private static void log(Level at, String format, Object arg1, Object arg2, Object arg3) {
+        if (!isEnabled(at)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (tail - head == CAPACITY) {
+                dropped++;
+                return;
+            }
+            int slot = (int) (tail % CAPACITY);
+            levels[slot] = at;
+            times[slot] = now;
+            formats[slot] = format;
+            arguments[slot * MAX_ARGUMENTS] = arg1;
+            arguments[slot * MAX_ARGUMENTS + 1] = arg2;
+            arguments[slot * MAX_ARGUMENTS + 2] = arg3;
+            if (tail++ == head) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void appendLoop() {
+        StringBuilder lines = new StringBuilder();
+        while (true) {
+            lock.lock();
+            try {
+                while (tail == head && dropped == 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            drain(lines);
+        }
+    }
+
+    // Writes everything buffered so far; also run at exit so the last lines are not lost
+    private static void flush() {
+        drain(new StringBuilder());
+    }
+
+    // Lines are collected and printed in chunks rather than one console write each
+    private static synchronized void drain(StringBuilder lines) {
+        PrintStream out = System.out;
+        long lastSecond = -1;
+        String timestamp = "";
+        while (true) {
+            Level at;
+            long time;
+            String format;
+            Object arg1;
+            Object arg2;
+            Object arg3;
+            long lost;
+            lock.lock();
+            try {
+                lost = dropped;
+                dropped = 0;
+                if (tail == head && lost == 0) {
+                    break;
+                }
+                at = null;
+                time = 0;
+                format = null;
+                arg1 = arg2 = arg3 = null;
+                if (tail != head) {
+                    int slot = (int) (head % CAPACITY);
+                    at = levels[slot];
+                    time = times[slot];
+                    format = formats[slot];
+                    arg1 = arguments[slot * MAX_ARGUMENTS];
+                    arg2 = arguments[slot * MAX_ARGUMENTS + 1];
+                    arg3 = arguments[slot * MAX_ARGUMENTS + 2];
+                    formats[slot] = null;
+                    arguments[slot * MAX_ARGUMENTS] = null;
+                    arguments[slot * MAX_ARGUMENTS + 1] = null;
+                    arguments[slot * MAX_ARGUMENTS + 2] = null;
+                    head++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (lost > 0) {
+                lines.append(lost).append(" log lines dropped, the log buffer was full").append(LINE_SEPARATOR);
+            }
+            if (format != null) {
+                if (time / 1000 != lastSecond) {
+                    lastSecond = time / 1000;
+                    timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(time));
+                }
+                lines.append(timestamp).append(' ').append(at).append(' ');
+                format(lines, format, arg1, arg2, arg3);
+                lines.append(LINE_SEPARATOR);
+            }
+            if (lines.length() >= CHUNK_CHARS) {
+                out.print(lines);
+                lines.setLength(0);
+            }
+        }
+        out.print(lines);
+        lines.setLength(0);
+        out.flush();
+    }
+
+    private static void format(StringBuilder line, String format, Object arg1, Object arg2, Object arg3) {
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = format.indexOf("{}", start)) >= 0 && argument < MAX_ARGUMENTS) {
+            line.append(format, start, placeholder);
+            line.append(argument == 0 ? arg1 : argument == 1 ? arg2 : arg3);
+            argument++;
+            start = placeholder + 2;
+        }
+        line.append(format, start, format.length());
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The topic logs kept under the broker's --persist directory. Publishers never wait for the disk:
+// one background thread commits whatever every log gained since its last pass (group commit) and
+// trims logs past their retention limits.
+public class LogManager {
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long fsyncMillis;
+    private final Map<String, TopicLog> logs = new ConcurrentHashMap<>();
+
+    public LogManager(Path directory, int segmentBytes, long retentionBytes, long retentionMillis, long fsyncMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncMillis = fsyncMillis;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::flushLoop, "log-flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Opens the topic's log, picking up where a previous run of the broker left it
+    public synchronized TopicLog open(String topicId) throws IOException {
+        TopicLog log = logs.get(topicId);
+        if (log == null) {
+            log = new TopicLog(directory.resolve(directoryName(topicId)), segmentBytes);
+            logs.put(topicId, log);
+        }
+        return log;
+    }
+
+    // The topic is gone, and its history with it
+    public synchronized void delete(String topicId) throws IOException {
+        TopicLog log = logs.remove(topicId);
+        if (log != null) {
+            log.delete();
+        }
+    }
+
+    // Topic IDs may hold any character except spaces, so directories are named by their hex bytes
+    private static String directoryName(String topicId) {
+        return HexFormat.of().formatHex(topicId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void flushLoop() {
+        long lastRetention = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(fsyncMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean trim = System.nanoTime() - lastRetention > 1_000_000_000L;
+            for (Map.Entry<String, TopicLog> entry : logs.entrySet()) {
+                try {
+                    entry.getValue().force();
+                    if (trim) {
+                        entry.getValue().applyRetention(retentionBytes, retentionMillis);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Failed to flush the log of topic {}: {}", entry.getKey(), e);
+                }
+            }
+            if (trim) {
+                lastRetention = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A compiled "where" clause of a subscription, evaluated by the broker so messages a subscriber
+// does not want are never sent. Messages are read as space-separated key=value fields, e.g.
+// "severity=WARN host=db1 latency=87"; the whole text is also available as the field "payload".
+//
+//   expr       := term ("or" term)*
+//   term       := factor ("and" factor)*
+//   factor     := "not" factor | "(" expr ")" | comparison
+//   comparison := field ("=" | "!=" | "<" | "<=" | ">" | ">=" | "~") value
+//
+// Values are words or "quoted strings". Two numbers compare as numbers, two log levels (TRACE,
+// DEBUG, INFO, WARN, ERROR, FATAL) by severity, anything else as text; "~" tests for a substring.
+// A comparison on a missing field is false, except for "!=". Constants are parsed once here, and
+// toString gives a canonical form so subscribers with the same filter can share one evaluation.
+public final class MessageFilter {
+    private static final List<String> LEVELS = List.of("TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL");
+
+    // The fields of one message, split on first use and shared by every filter evaluated on it
+    public static final class Message {
+        private final String text;
+        private Map<String, String> fields;
+
+        public Message(String text) {
+            this.text = text;
+        }
+
+        String get(String field) {
+            if (fields == null) {
+                fields = new HashMap<>();
+                for (String pair : text.split(" ")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        fields.putIfAbsent(pair.substring(0, equals), pair.substring(equals + 1));
+                    }
+                }
+            }
+            String value = fields.get(field);
+            return value == null && field.equals("payload") ? text : value;
+        }
+    }
+
+    private interface Node {
+        boolean matches(Message message);
+    }
+
+    private final Node root;
+    private final String canonical;
+
+    private MessageFilter(Node root) {
+        this.root = root;
+        this.canonical = root.toString();
+    }
+
+    // Throws IllegalArgumentException describing the first error
+    public static MessageFilter compile(String expression) {
+        Parser parser = new Parser(tokenize(expression));
+        Node root = parser.expression();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("unexpected '" + parser.tokens.get(parser.position) + "'");
+        }
+        return new MessageFilter(root);
+    }
+
+    public boolean matches(Message message) {
+        return root.matches(message);
+    }
+
+    @Override
+    public String toString() {
+        return canonical;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MessageFilter && ((MessageFilter) other).canonical.equals(canonical);
+    }
+
+    @Override
+    public int hashCode() {
+        return canonical.hashCode();
+    }
+
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')' || c == '~' || c == '=') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '<' || c == '>' || c == '!') {
+                boolean withEquals = i + 1 < expression.length() && expression.charAt(i + 1) == '=';
+                if (c == '!' && !withEquals) {
+                    throw new IllegalArgumentException("expected '!='");
+                }
+                tokens.add(withEquals ? c + "=" : String.valueOf(c));
+                i += withEquals ? 2 : 1;
+            } else if (c == '"') {
+                int end = expression.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("unterminated string");
+                }
+                tokens.add(expression.substring(i, end + 1));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < expression.length() && !Character.isWhitespace(expression.charAt(i))
+                    && "()~=<>!\"".indexOf(expression.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(expression.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static final class Parser {
+        final List<String> tokens;
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        String peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        String next(String expected) {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("expected " + expected + " at the end");
+            }
+            return tokens.get(position++);
+        }
+
+        Node expression() {
+            Node left = term();
+            while ("or".equals(peek())) {
+                position++;
+                Node l = left;
+                Node r = term();
+                left = new Node() {
+                    public boolean matches(Message message) {
+                        return l.matches(message) || r.matches(message);
+                    }
+
+                    public String toString() {
+                        return "(" + l + " or " + r + ")";
+                    }
+                };
+            }
+            return left;
+        }
+
+        Node term() {
+            Node left = factor();
+            while ("and".equals(peek())) {
+                position++;
+                Node l = left;
+                Node r = factor();
+                left = new Node() {
+                    public boolean matches(Message message) {
+                        return l.matches(message) && r.matches(message);
+                    }
+
+                    public String toString() {
+                        return "(" + l + " and " + r + ")";
+                    }
+                };
+            }
+            return left;
+        }
+
+        Node factor() {
+            String token = next("a comparison");
+            if (token.equals("not")) {
+                Node inner = factor();
+                return new Node() {
+                    public boolean matches(Message message) {
+                        return !inner.matches(message);
+                    }
+
+                    public String toString() {
+                        return "not " + inner;
+                    }
+                };
+            }
+            if (token.equals("(")) {
+                Node inner = expression();
+                if (!")".equals(next("')'"))) {
+                    throw new IllegalArgumentException("expected ')'");
+                }
+                return inner;
+            }
+            if (!isWord(token)) {
+                throw new IllegalArgumentException("expected a field name, not '" + token + "'");
+            }
+            String operator = next("an operator");
+            if (!List.of("=", "!=", "<", "<=", ">", ">=", "~").contains(operator)) {
+                throw new IllegalArgumentException("expected an operator after " + token + ", not '" + operator + "'");
+            }
+            String value = next("a value");
+            if (value.startsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            } else if (!isWord(value)) {
+                throw new IllegalArgumentException("expected a value, not '" + value + "'");
+            }
+            return new Comparison(token, operator, value);
+        }
+
+        static boolean isWord(String token) {
+            return !token.isEmpty() && "()~=<>!\"".indexOf(token.charAt(0)) < 0;
+        }
+    }
+
+    private static final class Comparison implements Node {
+        private final String field;
+        private final String operator;
+        private final String value;
+        private final Double number; // the value as a number, if it is one
+        private final int level;     // the value's log level rank, or -1
+
+        Comparison(String field, String operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+            this.number = parseNumber(value);
+            this.level = LEVELS.indexOf(value.toUpperCase());
+        }
+
+        @Override
+        public boolean matches(Message message) {
+            String actual = message.get(field);
+            if (actual == null) {
+                return operator.equals("!=");
+            }
+            if (operator.equals("~")) {
+                return actual.contains(value);
+            }
+            int order;
+            Double actualNumber;
+            int actualLevel;
+            if (number != null && (actualNumber = parseNumber(actual)) != null) {
+                order = Double.compare(actualNumber, number);
+            } else if (level >= 0 && (actualLevel = LEVELS.indexOf(actual.toUpperCase())) >= 0) {
+                order = Integer.compare(actualLevel, level);
+            } else {
+                order = actual.compareTo(value);
+            }
+            switch (operator) {
+                case "=": return order == 0;
+                case "!=": return order != 0;
+                case "<": return order < 0;
+                case "<=": return order <= 0;
+                case ">": return order > 0;
+                default: return order >= 0;
+            }
+        }
+
+        private static Double parseNumber(String text) {
+            if (text.isEmpty() || !(Character.isDigit(text.charAt(0)) || text.charAt(0) == '-' || text.charAt(0) == '.')) {
+                return null;
+            }
+            try {
+                return Double.valueOf(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + operator + " \"" + value + "\"";
+        }
+    }
+}
@@ -0,0 +1,466 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Serves clients from a small pool of selector loops instead of one thread per socket.
+// Speaks the same line protocol as Broker.handleClient, so idle connections only cost
+// their channel and a few small objects.
+public class NioServer {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE));
+    private static final ThreadLocal<Boolean> ON_LOOP = ThreadLocal.withInitial(() -> false);
+    // How often a loop with clients paused for a backlogged peer link checks whether it has drained
+    private static final long PAUSE_CHECK_MILLIS = 10;
+
+    private final Broker broker;
+    private final int port;
+    private final EventLoop[] loops;
+
+    public NioServer(Broker broker, int port, int ioThreads) throws IOException {
+        this.broker = broker;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    // True on a selector loop, where nothing may wait for a full queue
+    static boolean isLoopThread() {
+        return ON_LOOP.get();
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "broker-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioConnection connection = new NioConnection(channel, broker.newOutboundQueue());
+                broker.getMetrics().connectionOpened(connection);
+                loops[next++ % loops.length].register(connection);
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> closes = new ConcurrentLinkedQueue<>();
+        // Only touched by the loop thread, shared by all of its connections
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        // Connections not read until the peer links drain, loop thread only
+        private final List<NioConnection> paused = new ArrayList<>();
+        private volatile Thread thread;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(NioConnection connection) {
+            connection.loop = this;
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void requestClose(NioConnection connection) {
+            closes.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            ON_LOOP.set(true);
+            while (true) {
+                try {
+                    selector.select(paused.isEmpty() ? 0 : PAUSE_CHECK_MILLIS);
+                } catch (IOException e) {
+                    Log.warn("Selector failed: {}", e.getMessage());
+                    return;
+                }
+
+                NioConnection connection;
+                while ((connection = registrations.poll()) != null) {
+                    try {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        if (!connection.queue.isEmpty()) {
+                            connection.requestWrite();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                while ((connection = closes.poll()) != null) {
+                    disconnect(connection);
+                }
+                if (!paused.isEmpty() && !broker.isPeerBacklogged()) {
+                    for (NioConnection resumed : paused) {
+                        setReadPaused(resumed, false);
+                    }
+                    paused.clear();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                            if (!connection.closed && broker.isPeerBacklogged()) {
+                                // Whatever it sent is forwarded to peers that cannot take more yet
+                                setReadPaused(connection, true);
+                                paused.add(connection);
+                            }
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushPending(true);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        disconnect(connection);
+                    } catch (RuntimeException e) {
+                        // A command or frame the Broker could not handle ends that connection, not the loop
+                        Log.warn("Closing {} after a failed command: {}", connection, e);
+                        disconnect(connection);
+                    }
+                }
+            }
+        }
+
+        private void read(NioConnection connection) throws IOException {
+            readBuffer.clear();
+            int n = connection.channel.read(readBuffer);
+            if (n < 0) {
+                disconnect(connection);
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (connection.isBinary()) {
+                    BinaryProtocol.Frame frame = connection.readFrame(readBuffer);
+                    if (frame != null) {
+                        broker.handleFrame(frame, connection);
+                    }
+                    continue;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    String command = connection.takeLine();
+                    broker.handleCommand(command, connection);
+                } else {
+                    connection.appendToLine(b);
+                }
+            }
+        }
+
+        private void setReadPaused(NioConnection connection, boolean readPaused) {
+            connection.readPaused = readPaused;
+            try {
+                connection.updateReadInterest();
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile; crash handling is queued already
+            }
+        }
+
+        private void disconnect(NioConnection connection) {
+            if (connection.crashHandled) {
+                return;
+            }
+            connection.crashHandled = true;
+            connection.close();
+            broker.handleClientCrash(connection);
+        }
+    }
+
+    private final class NioConnection extends ClientConnection {
+        private final SocketChannel channel;
+        private final String description;
+        private final OutboundQueue queue;
+        // Bytes taken off the queue but not yet accepted by the socket, guarded by the queue lock
+        private byte[] unsent;
+        private boolean writeRequested; // OP_WRITE is set for what is queued, guarded by the queue lock
+        private byte[] writing;
+        private int writingOffset;
+        private ByteArrayOutputStream line; // partial command, allocated only while one is buffered
+        // Partial binary frame: length prefix bytes seen so far, then the body being filled
+        private int lengthBytesRead;
+        private int frameLength;
+        private byte[] frameBody;
+        private int frameBodyRead;
+        private EventLoop loop;
+        private SelectionKey key;
+        private volatile boolean closed;
+        private volatile boolean readPaused; // set by the loop while a peer link is backlogged
+        private boolean crashHandled; // loop thread only
+
+        NioConnection(SocketChannel channel, OutboundQueue queue) {
+            this.channel = channel;
+            this.description = channel.socket().toString();
+            this.queue = queue;
+            queue.setOnFull(this::requestWrite);
+        }
+
+        void appendToLine(byte b) {
+            if (line == null) {
+                line = new ByteArrayOutputStream(64);
+            }
+            line.write(b);
+        }
+
+        String takeLine() {
+            if (line == null) {
+                return "";
+            }
+            byte[] bytes = line.toByteArray();
+            line = null;
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, 0, length);
+        }
+
+        // Consumes bytes of the current frame; returns it once complete, otherwise null
+        BinaryProtocol.Frame readFrame(ByteBuffer in) throws IOException {
+            while (lengthBytesRead < 4) {
+                if (!in.hasRemaining()) {
+                    return null;
+                }
+                frameLength = (frameLength << 8) | (in.get() & 0xFF);
+                lengthBytesRead++;
+            }
+            if (frameBody == null) {
+                BinaryProtocol.checkLength(frameLength);
+                frameBody = new byte[frameLength];
+                frameBodyRead = 0;
+            }
+            int n = Math.min(in.remaining(), frameLength - frameBodyRead);
+            in.get(frameBody, frameBodyRead, n);
+            frameBodyRead += n;
+            if (frameBodyRead < frameLength) {
+                return null;
+            }
+            BinaryProtocol.Frame frame = BinaryProtocol.decode(frameBody);
+            frameBody = null;
+            lengthBytesRead = 0;
+            frameLength = 0;
+            return frame;
+        }
+
+        @Override
+        public void send(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            if (!queue.offer(frame)) {
+                Log.warn("Disconnecting slow consumer: {}", description);
+                loop.requestClose(this);
+                return;
+            }
+            flushQueued();
+        }
+
+        // Never waits, as the loop would stall every other connection: a client that does not read
+        // its replies stops being read instead, until its queue drains
+        @Override
+        public void reply(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            queue.offerOverCapacity(frame);
+            flushQueued();
+        }
+
+        // The connection's own loop writes straight away when the socket has room, as nothing else
+        // would before its next select. Any other thread only queues and wakes the loop: during
+        // fan-out it holds the topic lock, and a write of its own to every subscriber would hold up
+        // each publisher to the topic for one system call per subscriber.
+        private void flushQueued() {
+            if (Thread.currentThread() != loop.thread) {
+                requestWrite();
+                return;
+            }
+            try {
+                flushPending(false);
+            } catch (IOException | CancelledKeyException e) {
+                // Let the loop tear the connection down so crash handling runs on one thread
+                loop.requestClose(this);
+            }
+        }
+
+        // Sets OP_WRITE for what is queued, once until the loop has written it
+        void requestWrite() {
+            queue.getLock().lock();
+            try {
+                if (!writeRequested && key != null) {
+                    writeRequested = true;
+                    setInterest(readInterest() | SelectionKey.OP_WRITE);
+                }
+            } catch (CancelledKeyException e) {
+                // Let the loop tear the connection down so crash handling runs on one thread
+                loop.requestClose(this);
+            } finally {
+                queue.getLock().unlock();
+            }
+        }
+
+        // Only a thread of its own, such as a history replay, waits for space; on the loop the frame is
+        // queued like a reply
+        @Override
+        public boolean sendWaiting(byte[] frame) {
+            if (closed) {
+                return false;
+            }
+            if (Thread.currentThread() == loop.thread) {
+                queue.offerOverCapacity(frame);
+            } else if (!queue.offerWaiting(frame)) {
+                return false;
+            }
+            flushQueued();
+            return true;
+        }
+
+        // Run by the loop only: writes queued frames until the queue is empty or the socket buffer
+        // is full, in which case OP_WRITE stays set to finish once the socket is writable again. Runs
+        // under the queue lock so the interest ops always match what is left to write, and whether
+        // the queue is over capacity, when the client's commands are not read. Frames are shared
+        // between subscribers, so they are copied into the loop's direct buffer rather than wrapped,
+        // which also coalesces small frames into one write. Until the socket is writable again,
+        // frames are only queued: trying to write would copy what is left over and over.
+        void flushPending(boolean writable) throws IOException {
+            queue.getLock().lock();
+            try {
+                if (unsent != null && !writable) {
+                    setInterest(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                ByteBuffer scratch = WRITE_BUFFER.get();
+                while (true) {
+                    scratch.clear();
+                    if (unsent != null) {
+                        scratch.put(unsent);
+                        unsent = null;
+                    }
+                    fill(scratch);
+                    if (scratch.position() == 0) {
+                        writeRequested = false;
+                        setInterest(readInterest());
+                        return;
+                    }
+                    scratch.flip();
+                    channel.write(scratch);
+                    if (scratch.hasRemaining()) {
+                        unsent = new byte[scratch.remaining()];
+                        scratch.get(unsent);
+                        writeRequested = true;
+                        setInterest(readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } finally {
+                queue.getLock().unlock();
+            }
+        }
+
+        private int readInterest() {
+            return readPaused || queue.isOverCapacity() ? 0 : SelectionKey.OP_READ;
+        }
+
+        // Called by the loop after pausing or resuming reads; a pending write keeps its interest
+        void updateReadInterest() {
+            queue.getLock().lock();
+            try {
+                setInterest((key.interestOps() & SelectionKey.OP_WRITE) | readInterest());
+            } finally {
+                queue.getLock().unlock();
+            }
+        }
+
+        private void setInterest(int ops) {
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+                key.selector().wakeup();
+            }
+        }
+
+        private void fill(ByteBuffer scratch) {
+            while (scratch.hasRemaining()) {
+                if (writing == null) {
+                    writing = queue.poll();
+                    writingOffset = 0;
+                    if (writing == null) {
+                        return;
+                    }
+                }
+                int length = Math.min(writing.length - writingOffset, scratch.remaining());
+                scratch.put(writing, writingOffset, length);
+                writingOffset += length;
+                if (writingOffset == writing.length) {
+                    writing = null;
+                }
+            }
+        }
+
+        @Override
+        public Socket getSocket() {
+            return channel.socket();
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            // A closed channel raises no more events, so the loop is told to run crash handling, as
+            // the reading thread would notice for a socket closed under it
+            if (loop != null) {
+                loop.requestClose(this);
+            }
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return queue.getDropped();
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
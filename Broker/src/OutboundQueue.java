@@ -0,0 +1,323 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of encoded frames waiting to be written to one connection. Producers (publish
+// fan-out, command replies) only enqueue; a writer drains it, so a slow consumer fills its own
+// queue instead of stalling the broker. The overflow policy only ever drops deliveries: replies to
+// the client's commands are kept, as the client may be blocked waiting for one.
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, DROP_NEWEST, DISCONNECT;
+
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // A reply in the queue; deliveries are queued as they are, so they cost no extra allocation
+    private static final class Reply {
+        private final byte[] frame;
+
+        Reply(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final ArrayDeque<Object> frames = new ArrayDeque<>(); // byte[] or Reply
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private Runnable onFull; // wakes a writer that has no thread of its own to drain the queue
+    private int deliveries; // frames in the queue that are not replies
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    public void setOnFull(Runnable onFull) {
+        this.onFull = onFull;
+    }
+
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
+    public long getBlockTimeoutNanos() {
+        return blockTimeoutNanos;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    // Returns false when the connection has to be disconnected because of the overflow policy
+    public boolean offer(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        dropped++;
+                        return true;
+                    case DROP_OLDEST:
+                        if (!dropOldestDelivery()) {
+                            // Nothing but replies queued
+                            dropped++;
+                            return true;
+                        }
+                        break;
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                    case BLOCK:
+                        if (!awaitSpace()) {
+                            dropped++;
+                            return false;
+                        }
+                        break;
+                }
+            }
+            frames.addLast(frame);
+            deliveries++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A reply to a command. A full queue makes room by dropping its oldest delivery under DROP_OLDEST,
+    // otherwise the reply waits for space like offerWaiting, which holds up only that client's own
+    // commands. Returns false if it cannot be queued, when the connection has to be disconnected:
+    // the client is not reading its replies.
+    public boolean offerReply(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (frames.size() >= capacity && !(policy == OverflowPolicy.DROP_OLDEST && dropOldestDelivery())
+                && !awaitSpace()) {
+                return false;
+            }
+            if (!closed) {
+                frames.addLast(new Reply(frame));
+                notEmpty.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For writers that must never wait, such as a selector loop: queues a reply, or a frame that must
+    // not be lost, like offerReply but past the capacity when nothing can be dropped. The caller then
+    // stops reading from the client until isOverCapacity() turns false, so the excess stays bounded.
+    public void offerOverCapacity(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (frames.size() >= capacity && policy == OverflowPolicy.DROP_OLDEST) {
+                dropOldestDelivery();
+            }
+            frames.addLast(new Reply(frame));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For a BLOCK producer holding a lock others need, such as a fan-out under a topic lock: queues
+    // the delivery even into a full queue instead of waiting there. Returns false if the queue is now
+    // over its capacity; the producer then waits in awaitCapacity once it has let go of the lock, as
+    // offer would have waited before queueing, so the excess is what producers queue between waits.
+    public boolean offerPastCapacity(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            frames.addLast(frame);
+            deliveries++;
+            notEmpty.signal();
+            return frames.size() <= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for a queue that offerPastCapacity took past its capacity to have room again; false if
+    // it stays full for the block timeout, when the connection has to be disconnected
+    public boolean awaitCapacity() {
+        lock.lock();
+        try {
+            return awaitSpace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isOverCapacity() {
+        lock.lock();
+        try {
+            return frames.size() > capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Usually the head of the queue, unless replies are waiting in front of it
+    private boolean dropOldestDelivery() {
+        if (deliveries == 0) {
+            return false; // saves walking a queue of replies
+        }
+        Iterator<Object> queued = frames.iterator();
+        while (queued.hasNext()) {
+            if (!(queued.next() instanceof Reply)) {
+                queued.remove();
+                deliveries--;
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Waits for space whatever the overflow policy, for frames that must not be lost such as a
+    // replayed history; false if the queue closes or stays full for the block timeout
+    public boolean offerWaiting(byte[] frame) {
+        lock.lock();
+        try {
+            if (closed || (frames.size() >= capacity && !awaitSpace()) || closed) {
+                return false;
+            }
+            frames.addLast(frame);
+            deliveries++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean awaitSpace() {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        try {
+            while (frames.size() >= capacity && !closed) {
+                if (onFull != null) {
+                    onFull.run();
+                    if (frames.size() < capacity) {
+                        break;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // awaitNanos counts down only the slice it was given, not the whole timeout
+                notFull.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Waits for the next frame; null once the queue is closed
+    public byte[] take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] poll() {
+        lock.lock();
+        try {
+            Object frame = frames.pollFirst();
+            if (frame instanceof byte[]) {
+                deliveries--;
+            }
+            if (frame != null) {
+                notFull.signal();
+            }
+            return unwrap(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] peek() {
+        lock.lock();
+        try {
+            return unwrap(frames.peekFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] unwrap(Object frame) {
+        return frame instanceof Reply ? ((Reply) frame).frame : (byte[]) frame;
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            deliveries = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Outgoing link to another broker. Forwarders on any thread only enqueue encoded commands; the
+// link's own sender writes them, putting everything that queued up meanwhile into a single flush,
+// so lines from different threads never interleave and a burst costs one write instead of one
+// per message and peer.
+public class PeerLink {
+    static final String HELLO = "peer"; // peer <brokerId> <incarnation>
+    static final String ADD_INTEREST = "addInterest ";
+    static final String REMOVE_INTEREST = "removeInterest ";
+    // The answer to HELLO: member <brokerId> <version>, the peer's ID and the last of our changes
+    // it still holds, or -1 if it needs all of our topics
+    static final String MEMBER = "member ";
+    static final String HEARTBEAT = "heartbeat";
+
+    private final Socket socket;
+    private final String address;
+    private final OutputStream out;
+    private final OutboundQueue queue;
+    private final Consumer<PeerLink> onIdentified;
+    private final Consumer<String> onInterest; // a topic or pattern the peer started or stopped wanting
+    private final Consumer<PeerLink> onClose;
+    private volatile String brokerId; // null until the peer has said
+    private volatile long peerVersion = -1;
+    private final PhiAccrualDetector detector;
+    private final ThreadFactory threadFactory;
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+    private volatile boolean duplicate;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile long oldestQueuedNanos; // when the sender last fell behind; 0 while caught up
+    private long backloggedSince; // nanoTime the queue was first seen over capacity, guarded by its lock
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Set<String> interests = ConcurrentHashMap.newKeySet(); // topics the peer has subscribers for
+    private final SubscriptionTrie<String> patternInterests = new SubscriptionTrie<>(); // guarded by itself
+    private volatile boolean hasPatternInterests;
+
+    public PeerLink(Socket socket, String address, OutboundQueue queue, ThreadFactory threadFactory,
+                    PhiAccrualDetector detector, Consumer<PeerLink> onIdentified, Consumer<String> onInterest,
+                    Consumer<PeerLink> onClose) throws IOException {
+        this.socket = socket;
+        this.address = address;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        this.queue = queue;
+        this.detector = detector;
+        this.onIdentified = onIdentified;
+        this.onInterest = onInterest;
+        this.onClose = onClose;
+        this.threadFactory = threadFactory;
+    }
+
+    // Starts the sender and reader threads; lines sent before then wait in the queue
+    public void start() {
+        threadFactory.newThread(this::sendLoop).start();
+        threadFactory.newThread(this::readLoop).start();
+    }
+
+    // A full queue holds the caller up, except on an NIO loop, which must never wait: there the line
+    // goes past the capacity, and the loop stops reading its clients until isBacklogged() turns false
+    public void send(byte[] line) {
+        boolean accepted = true;
+        ReentrantLock lock = queue.getLock();
+        lock.lock();
+        try {
+            if (queue.isEmpty()) {
+                oldestQueuedNanos = System.nanoTime();
+            }
+            if (NioServer.isLoopThread()) {
+                queue.offerOverCapacity(line);
+            } else {
+                accepted = queue.offer(line);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!accepted) {
+            Log.warn("Disconnecting stalled broker link: {}", address);
+            close();
+        }
+    }
+
+    // True while the queue is over capacity with lines NIO loops could not wait to queue. A link that
+    // stays that way for the block timeout is closed, as it would be if a sender had waited on it.
+    public boolean isBacklogged() {
+        boolean stalled;
+        ReentrantLock lock = queue.getLock();
+        lock.lock();
+        try {
+            if (!queue.isOverCapacity()) {
+                backloggedSince = 0;
+                return false;
+            }
+            long now = System.nanoTime();
+            if (backloggedSince == 0) {
+                backloggedSince = now;
+            }
+            stalled = now - backloggedSince > queue.getBlockTimeoutNanos();
+        } finally {
+            lock.unlock();
+        }
+        if (stalled) {
+            Log.warn("Disconnecting stalled broker link: {}", address);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    private void sendLoop() {
+        try {
+            byte[] line;
+            while ((line = queue.take()) != null) {
+                int batch = 0;
+                do {
+                    out.write(line);
+                    batch++;
+                } while ((line = pollOrCaughtUp()) != null);
+                out.flush();
+                sent.addAndGet(batch);
+                flushes.incrementAndGet();
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    private byte[] pollOrCaughtUp() {
+        ReentrantLock lock = queue.getLock();
+        lock.lock();
+        try {
+            byte[] line = queue.poll();
+            if (line == null) {
+                oldestQueuedNanos = 0;
+            }
+            return line;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The peer tells us on this socket who it is, which topics it has subscribers for and that it is
+    // alive. Anything else it sends is ignored, but has to be read so the peer never blocks on it;
+    // EOF means the peer is gone.
+    private void readLoop() {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals(HEARTBEAT)) {
+                    detector.heartbeat();
+                } else if (line.startsWith(ADD_INTEREST)) {
+                    addInterest(line.substring(ADD_INTEREST.length()));
+                    onInterest.accept(line.substring(ADD_INTEREST.length()));
+                } else if (line.startsWith(REMOVE_INTEREST)) {
+                    removeInterest(line.substring(REMOVE_INTEREST.length()));
+                    onInterest.accept(line.substring(REMOVE_INTEREST.length()));
+                } else if (line.startsWith(MEMBER) && brokerId == null) {
+                    String[] member = line.split(" ");
+                    peerVersion = member.length > 2 ? Long.parseLong(member[2]) : -1;
+                    brokerId = member[1];
+                    onIdentified.accept(this);
+                }
+            }
+        } catch (IOException e) {
+            // Closed locally or reset by the peer
+        }
+        close();
+    }
+
+    // A wildcard pattern stands for every matching topic, including ones created later
+    private void addInterest(String topicId) {
+        if (!SubscriptionTrie.isPattern(topicId)) {
+            interests.add(topicId);
+            return;
+        }
+        synchronized (patternInterests) {
+            patternInterests.add(topicId, topicId);
+            hasPatternInterests = true;
+        }
+    }
+
+    private void removeInterest(String topicId) {
+        if (!SubscriptionTrie.isPattern(topicId)) {
+            interests.remove(topicId);
+            return;
+        }
+        synchronized (patternInterests) {
+            patternInterests.remove(topicId, topicId);
+            hasPatternInterests = !patternInterests.isEmpty();
+        }
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        queue.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        onClose.accept(this);
+        closedLatch.countDown();
+    }
+
+    // Another link to the same broker was there first
+    public void closeAsDuplicate() {
+        duplicate = true;
+        close();
+    }
+
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public void awaitClose() throws InterruptedException {
+        closedLatch.await();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getBrokerId() {
+        return brokerId;
+    }
+
+    public long getPeerVersion() {
+        return peerVersion;
+    }
+
+    public double getPhi() {
+        return detector.phi();
+    }
+
+    public long getMillisSinceHeartbeat() {
+        return detector.getMillisSinceHeartbeat();
+    }
+
+    // Publishes are only forwarded for topics the peer has subscribers for, directly or by pattern
+    public boolean isInterested(String topicId) {
+        if (interests.contains(topicId)) {
+            return true;
+        }
+        if (!hasPatternInterests) {
+            return false;
+        }
+        synchronized (patternInterests) {
+            return patternInterests.matches(topicId);
+        }
+    }
+
+    public int getInterestCount() {
+        synchronized (patternInterests) {
+            return interests.size() + patternInterests.getPatterns().size();
+        }
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    // Age of the oldest forwarded command not yet written to the peer
+    public long getLagMillis() {
+        long oldest = oldestQueuedNanos;
+        return oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    public long getDroppedCount() {
+        return queue.getDropped();
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
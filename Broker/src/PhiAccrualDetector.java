@@ -0,0 +1,62 @@
+import java.util.concurrent.TimeUnit;
+
+// Suspicion that a peer broker is down, from the gaps between its heartbeats (the phi accrual
+// failure detector of Hayashibara et al.). Rather than a fixed timeout it learns the usual interval
+// and its jitter from the last `window` heartbeats, and phi is how unlikely the current silence
+// would be if the peer were alive: phi 8 means a 1 in 10^8 chance. A steady link is judged dead
+// soon after its heartbeats stop, a jittery one gets more slack. `pauseMillis` is added to the
+// expected interval so a GC pause on either side is not taken for a failure.
+public class PhiAccrualDetector {
+    private final long[] intervals; // milliseconds, a ring of the last heartbeat gaps
+    private final long minStdDevMillis;
+    private final long pauseMillis;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastNanos;
+
+    // Starts as if heartbeats had been arriving every expectedMillis, give or take a quarter
+    public PhiAccrualDetector(int window, long expectedMillis, long pauseMillis) {
+        this.intervals = new long[Math.max(2, window)];
+        this.minStdDevMillis = Math.max(1, expectedMillis / 4);
+        this.pauseMillis = pauseMillis;
+        this.lastNanos = System.nanoTime();
+        add(expectedMillis - expectedMillis / 4);
+        add(expectedMillis + expectedMillis / 4);
+    }
+
+    public synchronized void heartbeat() {
+        long now = System.nanoTime();
+        add(TimeUnit.NANOSECONDS.toMillis(now - lastNanos));
+        lastNanos = now;
+    }
+
+    public synchronized long getMillisSinceHeartbeat() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastNanos);
+    }
+
+    public synchronized double phi() {
+        double mean = sum / count + pauseMillis;
+        double variance = sumOfSquares / count - (sum / count) * (sum / count);
+        double stdDev = Math.max(Math.sqrt(Math.max(0, variance)), minStdDevMillis);
+        // Logistic approximation of the normal distribution's tail, as in Akka's detector
+        double y = (getMillisSinceHeartbeat() - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            sumOfSquares -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+}
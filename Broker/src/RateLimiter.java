@@ -0,0 +1,41 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket of `burst` tokens refilled at `ratePerSecond`, kept as the single time at which
+// the bucket will be full again (the generic cell rate algorithm): taking n tokens pushes that time
+// n intervals further out, and is allowed while it stays within `burst` intervals of now. So it is
+// one compare-and-set on one long, with no lock, no refill thread and no allocation.
+public class RateLimiter {
+    private final long intervalNanos; // per token
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2); // nanoTime the bucket is full again
+
+    public RateLimiter(double ratePerSecond, long burst) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    // Takes `tokens` if they are there, or will be within maxWaitNanos. Returns how long the caller
+    // has to wait before going ahead (0 for at once), or -1 if that would be longer, in which case
+    // nothing is taken. More tokens than the burst are only given out when the bucket is full.
+    public long reserve(int tokens, long maxWaitNanos) {
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long from = Math.max(current, now);
+            long next = from + intervalNanos * tokens;
+            long wait = current <= now ? 0 : Math.max(0, next - now - burstNanos);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return wait;
+            }
+        }
+    }
+
+    // Gives back tokens taken by reserve when the publish did not go ahead after all
+    public void refund(int tokens) {
+        fullAt.addAndGet(-intervalNanos * tokens);
+    }
+}
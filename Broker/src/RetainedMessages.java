@@ -0,0 +1,58 @@
+// The last messages published to a topic, kept so a subscriber that joins later gets the current
+// state straight away. The slots are allocated with the topic and a publish only stores a
+// reference to the payload the broker already holds, so retaining allocates nothing per message.
+// Bounded by a message count and a byte budget; guarded by the topic lock.
+public class RetainedMessages {
+    @FunctionalInterface
+    public interface MessageConsumer {
+        void accept(long timestamp, byte[] payload);
+    }
+
+    private final byte[][] payloads;
+    private final long[] timestamps;
+    private final long maxBytes;
+    private int oldest; // slot of the oldest message
+    private int count;
+    private long bytes;
+
+    public RetainedMessages(int capacity, long maxBytes) {
+        this.payloads = new byte[capacity][];
+        this.timestamps = new long[capacity];
+        this.maxBytes = maxBytes;
+    }
+
+    // Evicts the oldest messages to make room; a payload larger than the whole budget only clears
+    // the older ones, which it supersedes
+    public void add(long timestamp, byte[] payload) {
+        while (count > 0 && (count == payloads.length || bytes + payload.length > maxBytes)) {
+            bytes -= payloads[oldest].length;
+            payloads[oldest] = null;
+            oldest = (oldest + 1) % payloads.length;
+            count--;
+        }
+        if (payload.length > maxBytes) {
+            return;
+        }
+        int slot = (oldest + count) % payloads.length;
+        payloads[slot] = payload;
+        timestamps[slot] = timestamp;
+        bytes += payload.length;
+        count++;
+    }
+
+    // Oldest first
+    public void forEach(MessageConsumer consumer) {
+        for (int i = 0; i < count; i++) {
+            int slot = (oldest + i) % payloads.length;
+            consumer.accept(timestamps[slot], payloads[slot]);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getByteCount() {
+        return bytes;
+    }
+}
@@ -0,0 +1,210 @@
+import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A binary client that outlives its connection. Subscriptions and topics belong to the session, not
+// the socket, so a client that drops and comes back within the grace period finds them untouched and
+// nothing is torn down or announced to peers in between. Every frame sent to the session is
+// numbered from 1 and kept in a ring of the last `backlog` frames; a client resuming with the
+// number of frames it has received gets the ones it missed, then the live stream. Frames are
+// shared, not copied, so the ring costs one reference per frame.
+public final class Session extends ClientConnection {
+    private final String id;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[][] backlog; // guarded by lock, as are the fields below
+    private long nextSequence = 1;
+    private volatile ClientConnection attached; // null while the client is away; read without the lock
+    private ClientConnection replaying; // resuming, but not caught up with the backlog yet
+    private long detachedAt;
+    private boolean expired;
+
+    public Session(String id, String clientName, int backlog) {
+        this.id = id;
+        this.backlog = new byte[backlog][];
+        switchToBinary(clientName);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // Numbered and remembered even while detached, so a resuming client gets it late
+    @Override
+    public void send(byte[] frame) {
+        send(frame, false, false);
+    }
+
+    @Override
+    public boolean sendUnderLock(byte[] frame) {
+        return send(frame, false, true);
+    }
+
+    @Override
+    public void awaitCapacity() {
+        ClientConnection live = attached;
+        if (live != null) {
+            live.awaitCapacity();
+        }
+    }
+
+    @Override
+    public void reply(byte[] frame) {
+        send(frame, true, false);
+    }
+
+    // False if the live connection's queue went past its capacity (see sendUnderLock)
+    private boolean send(byte[] frame, boolean reply, boolean underLock) {
+        boolean room = true;
+        lock.lock();
+        try {
+            backlog[(int) (nextSequence++ % backlog.length)] = frame;
+            if (attached != null) {
+                ClientConnection live = attached;
+                long dropped = live.getDroppedCount();
+                if (reply) {
+                    live.reply(frame);
+                } else if (underLock) {
+                    room = live.sendUnderLock(frame);
+                } else {
+                    live.send(frame);
+                }
+                if (live.getDroppedCount() != dropped) {
+                    // The client would miscount what it received; it resumes from the backlog instead
+                    Log.warn("Disconnecting session {} that fell behind: {}", id, live);
+                    attached = null;
+                    detachedAt = System.currentTimeMillis();
+                    live.close();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return room;
+    }
+
+    // Replays the frames after the last one the client received, then attaches the connection.
+    // Returns the number of the first frame the client gets, which is later than it asked for if
+    // the backlog has moved past it, or -1 if the session has expired.
+    public long resume(ClientConnection connection, long lastReceived) {
+        long from;
+        lock.lock();
+        try {
+            if (expired) {
+                return -1;
+            }
+            if (attached != null) {
+                attached.close();
+                attached = null;
+                detachedAt = System.currentTimeMillis();
+            }
+            if (replaying != null) {
+                replaying.close();
+            }
+            replaying = connection;
+            long oldest = Math.max(1, nextSequence - backlog.length);
+            from = Math.max(Math.min(lastReceived + 1, nextSequence), oldest);
+            connection.setSession(this);
+            connection.println("session ok " + from);
+        } finally {
+            lock.unlock();
+        }
+        // The backlog can be longer than the connection's queue, and a dropped frame would throw the
+        // client's count off, so the replay waits for room. It waits without the lock, which publishers
+        // need for send, and catches up with what they sent meanwhile until no gap is left.
+        long sequence = from;
+        while (true) {
+            byte[][] frames;
+            lock.lock();
+            try {
+                if (replaying != connection) {
+                    return from; // taken over by a newer resume, or disconnected
+                }
+                if (sequence == nextSequence) {
+                    replaying = null;
+                    attached = connection;
+                    return from;
+                }
+                if (nextSequence - sequence > backlog.length) {
+                    // Overwritten before the replay got to them
+                    replaying = null;
+                    detachedAt = System.currentTimeMillis();
+                    frames = null;
+                } else {
+                    frames = new byte[(int) (nextSequence - sequence)][];
+                    for (int i = 0; i < frames.length; i++) {
+                        frames[i] = backlog[(int) ((sequence + i) % backlog.length)];
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (frames == null) {
+                Log.warn("Disconnecting session {} that fell behind its backlog: {}", id, connection);
+                connection.close();
+                return from;
+            }
+            for (byte[] frame : frames) {
+                if (!connection.sendWaiting(frame)) {
+                    Log.warn("Disconnecting session {} that did not take its backlog: {}", id, connection);
+                    detach(connection);
+                    connection.close();
+                    return from;
+                }
+            }
+            sequence += frames.length;
+        }
+    }
+
+    // The connection is gone; the session waits for the client to resume
+    public void detach(ClientConnection connection) {
+        lock.lock();
+        try {
+            if (attached == connection || replaying == connection) {
+                attached = null;
+                replaying = null;
+                detachedAt = System.currentTimeMillis();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Marks the session expired if it has been detached for the whole grace period; after that
+    // it cannot be resumed and the caller cleans it up like a crashed client
+    public boolean expireIfIdle(long graceMillis) {
+        lock.lock();
+        try {
+            if (!expired && attached == null && replaying == null
+                && System.currentTimeMillis() - detachedAt >= graceMillis) {
+                expired = true;
+            }
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        ClientConnection live = attached;
+        return live == null ? null : live.getSocket();
+    }
+
+    @Override
+    public void close() {
+        ClientConnection live = attached;
+        if (live != null) {
+            live.close();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        ClientConnection live = attached;
+        return live == null ? 0 : live.getQueueDepth();
+    }
+
+    @Override
+    public String toString() {
+        return "session " + id;
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+// Connection served by a blocking socket, a dedicated reader thread and a writer thread that
+// drains the outbound queue
+public class SocketConnection extends ClientConnection {
+    private final Socket socket;
+    private final OutputStream out;
+    private final OutboundQueue queue;
+    private final ThreadFactory threadFactory;
+
+    public SocketConnection(Socket socket, OutboundQueue queue, ThreadFactory threadFactory) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.queue = queue;
+        this.threadFactory = threadFactory;
+    }
+
+    // Starts the writer thread; frames sent before then wait in the queue
+    public void start() {
+        threadFactory.newThread(this::writeLoop).start();
+    }
+
+    private void writeLoop() {
+        try {
+            byte[] frame;
+            while ((frame = queue.take()) != null) {
+                out.write(frame);
+                // Coalesce whatever queued up meanwhile into the same flush
+                while ((frame = queue.poll()) != null) {
+                    out.write(frame);
+                }
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closing the socket wakes the reader thread, which runs the crash handling
+            close();
+        }
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        if (!queue.offer(frame)) {
+            Log.warn("Disconnecting slow consumer: {}", socket);
+            close();
+        }
+    }
+
+    @Override
+    public boolean sendUnderLock(byte[] frame) {
+        if (queue.getPolicy() != OutboundQueue.OverflowPolicy.BLOCK) {
+            send(frame); // never waits
+            return true;
+        }
+        return queue.offerPastCapacity(frame);
+    }
+
+    @Override
+    public void awaitCapacity() {
+        if (!queue.awaitCapacity()) {
+            Log.warn("Disconnecting slow consumer: {}", socket);
+            close();
+        }
+    }
+
+    @Override
+    public void reply(byte[] frame) {
+        if (!queue.offerReply(frame)) {
+            Log.warn("Disconnecting client that does not read its replies: {}", socket);
+            close();
+        }
+    }
+
+    @Override
+    public void sendControl(byte[] frame) {
+        queue.offerOverCapacity(frame);
+    }
+
+    @Override
+    public boolean sendWaiting(byte[] frame) {
+        return queue.offerWaiting(frame);
+    }
+
+    @Override
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return queue.getDropped();
+    }
+}
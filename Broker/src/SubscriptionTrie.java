@@ -0,0 +1,129 @@
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Subscriptions to topic patterns. Topic IDs are paths of '/'-separated levels, and a pattern level
+// may be '+' (any one level) or, as the last level, '#' (any number of levels, including none).
+// Finding the subscribers of a topic follows at most one exact, one '+' and one '#' branch per
+// level, so it costs in proportion to the topic's depth, not to the number of subscriptions.
+// Not thread-safe.
+public class SubscriptionTrie<T> {
+    private static final class Node<T> {
+        final Map<String, Node<T>> children = new HashMap<>();
+        final Set<T> subscribers = new LinkedHashSet<>();
+    }
+
+    private final Node<T> root = new Node<>();
+    private final Map<String, Node<T>> patterns = new HashMap<>(); // patterns with subscribers
+    private long version; // changes whenever a pattern gains or loses a subscriber
+
+    // True if some level of the ID is a wildcard
+    public static boolean isPattern(String topicId) {
+        for (String level : topicId.split("/", -1)) {
+            if (level.equals("+") || level.equals("#")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // '#' may only be the last level, and wildcards must fill a whole level
+    public static boolean isValidPattern(String pattern) {
+        String[] levels = pattern.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if ((level.equals("#") && i != levels.length - 1)
+                || (level.length() > 1 && (level.contains("+") || level.contains("#")))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns true if the pattern had no subscribers before
+    public boolean add(String pattern, T subscriber) {
+        Node<T> node = root;
+        for (String level : pattern.split("/", -1)) {
+            node = node.children.computeIfAbsent(level, key -> new Node<>());
+        }
+        boolean first = node.subscribers.isEmpty();
+        if (node.subscribers.add(subscriber)) {
+            patterns.put(pattern, node);
+            version++;
+        }
+        return first;
+    }
+
+    // Returns true if the subscriber was the pattern's last one
+    public boolean remove(String pattern, T subscriber) {
+        Node<T> node = patterns.get(pattern);
+        if (node == null || !node.subscribers.remove(subscriber)) {
+            return false;
+        }
+        version++;
+        if (node.subscribers.isEmpty()) {
+            patterns.remove(pattern);
+            prune(root, pattern.split("/", -1), 0);
+            return true;
+        }
+        return false;
+    }
+
+    // Drops the nodes left without subscribers or children; true if this node is now empty
+    private boolean prune(Node<T> node, String[] levels, int depth) {
+        if (depth < levels.length) {
+            Node<T> child = node.children.get(levels[depth]);
+            if (child != null && prune(child, levels, depth + 1)) {
+                node.children.remove(levels[depth]);
+            }
+        }
+        return node.children.isEmpty() && node.subscribers.isEmpty();
+    }
+
+    // Calls the consumer for the subscribers of every pattern matching the topic; a subscriber
+    // with several matching patterns is passed once for each
+    public void match(String topicId, Consumer<T> consumer) {
+        if (!patterns.isEmpty()) {
+            match(root, topicId.split("/", -1), 0, consumer);
+        }
+    }
+
+    private void match(Node<T> node, String[] levels, int depth, Consumer<T> consumer) {
+        Node<T> rest = node.children.get("#");
+        if (rest != null) {
+            rest.subscribers.forEach(consumer);
+        }
+        if (depth == levels.length) {
+            node.subscribers.forEach(consumer);
+            return;
+        }
+        Node<T> exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            match(exact, levels, depth + 1, consumer);
+        }
+        Node<T> any = node.children.get("+");
+        if (any != null) {
+            match(any, levels, depth + 1, consumer);
+        }
+    }
+
+    public boolean matches(String topicId) {
+        boolean[] found = {false};
+        match(topicId, subscriber -> found[0] = true);
+        return found[0];
+    }
+
+    public Set<String> getPatterns() {
+        return patterns.keySet();
+    }
+
+    public boolean isEmpty() {
+        return patterns.isEmpty();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
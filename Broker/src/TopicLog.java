@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Append-only log of one topic's messages, split into memory-mapped segment files named after the
+// offset of their first record. A segment is mapped only as far as it has been written, doubling
+// up to segmentBytes as it fills, and keeps no file open: the channel is closed once mapped, which
+// leaves the mapping valid. Each record is
+//
+//   int length | int crc32c(payload) | long offset | long timestamp millis | payload
+//
+// where the length, written last, counts the whole record; a zero or implausible length (or a bad
+// checksum) marks the end when a log is reopened. Appends come from one thread at a time (the
+// topic lock); readers run concurrently and see records up to the end offset they read first.
+public class TopicLog {
+    private static final int HEADER_LENGTH = 24;
+    private static final int INITIAL_MAPPING_BYTES = 64 * 1024;
+
+    @FunctionalInterface
+    public interface RecordConsumer {
+        // The payload is a read-only view of the mapped segment; return false to stop after this record
+        boolean accept(long offset, long timestamp, ByteBuffer payload);
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long baseOffset;
+        // Replaced by a larger mapping as the segment grows, before the records that need it are
+        // published through endOffset, so readers who read endOffset first see a mapping holding them
+        volatile MappedByteBuffer buffer;
+        volatile long lastTimestamp;
+        int position; // end of the last complete record; written by the appending thread only
+
+        Segment(Path path, long baseOffset, MappedByteBuffer buffer) {
+            this.path = path;
+            this.baseOffset = baseOffset;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>(); // oldest first
+    private final CRC32C crc = new CRC32C(); // appending thread only
+    private volatile Segment active;
+    private volatile long endOffset; // offset the next record will get
+    private volatile boolean dirty;
+
+    // Opens the log in the directory, recovering any segments a previous run left there
+    public TopicLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().forEach(files::add);
+        }
+        long next = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - 4)), map(file, 0));
+            next = recover(segment);
+            segments.add(segment);
+        }
+        endOffset = next;
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+    }
+
+    // Maps at least minimumBytes of the file, and all of what is there already; mapping past the end
+    // extends the file with zeros
+    private MappedByteBuffer map(Path path, long minimumBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), minimumBytes));
+        }
+    }
+
+    // Finds the end of the valid records and returns the offset after the last one
+    private long recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        long next = segment.baseOffset;
+        int position = 0;
+        while (position + HEADER_LENGTH <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < HEADER_LENGTH || position + length > buffer.capacity()
+                || buffer.getLong(position + 8) != next) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(position + HEADER_LENGTH, length - HEADER_LENGTH));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            segment.lastTimestamp = buffer.getLong(position + 16);
+            position += length;
+            next++;
+        }
+        // Zero whatever a torn append left behind so it cannot be mistaken for a record later
+        for (int i = position; i < Math.min(buffer.capacity(), position + HEADER_LENGTH); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        segment.position = position;
+        return next;
+    }
+
+    private void roll(int minimumBytes) throws IOException {
+        long baseOffset = endOffset;
+        Path path = directory.resolve(String.format("%020d.log", baseOffset));
+        Segment segment = new Segment(path, baseOffset,
+            map(path, Math.max(Math.min(segmentBytes, INITIAL_MAPPING_BYTES), minimumBytes)));
+        if (active != null) {
+            active.buffer.force();
+        }
+        segments.add(segment);
+        active = segment;
+    }
+
+    // Appends a message and returns its offset; call from one thread at a time
+    public long append(long timestamp, byte[] payload) throws IOException {
+        int length = HEADER_LENGTH + payload.length;
+        int needed = active.position + length;
+        if (needed > active.buffer.capacity()) {
+            if (needed > segmentBytes && active.position > 0) {
+                roll(length);
+            } else {
+                // Doubling keeps the number of remaps per segment small
+                long size = Math.max(needed, Math.min(segmentBytes, 2L * active.buffer.capacity()));
+                active.buffer = map(active.path, size);
+            }
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.position;
+        long offset = endOffset;
+        crc.reset();
+        crc.update(payload);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putLong(position + 8, offset);
+        buffer.putLong(position + 16, timestamp);
+        buffer.put(position + HEADER_LENGTH, payload);
+        buffer.putInt(position, length);
+        active.position = position + length;
+        active.lastTimestamp = timestamp;
+        dirty = true;
+        endOffset = offset + 1; // publishes the record to readers
+        return offset;
+    }
+
+    // Reads records from `offset` up to the end as it is now and returns the offset to continue
+    // from; offsets before the oldest retained record start at the oldest
+    public long read(long offset, RecordConsumer consumer) {
+        long end = endOffset;
+        Segment[] snapshot = segments.toArray(new Segment[0]);
+        int index = segmentIndex(snapshot, offset);
+        if (index < 0) {
+            return offset;
+        }
+        offset = Math.max(offset, snapshot[index].baseOffset);
+        for (int i = index; i < snapshot.length && offset < end; i++) {
+            ByteBuffer buffer = snapshot[i].buffer.duplicate();
+            int position = 0;
+            while (offset < end && position + HEADER_LENGTH <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length < HEADER_LENGTH) {
+                    break; // end of this segment
+                }
+                long recordOffset = buffer.getLong(position + 8);
+                if (recordOffset >= offset) {
+                    ByteBuffer payload = buffer.slice(position + HEADER_LENGTH, length - HEADER_LENGTH).asReadOnlyBuffer();
+                    if (!consumer.accept(recordOffset, buffer.getLong(position + 16), payload)) {
+                        return recordOffset + 1;
+                    }
+                    offset = recordOffset + 1;
+                }
+                position += length;
+            }
+        }
+        return offset;
+    }
+
+    // Last segment whose first record is at or before the offset, or the oldest one
+    private static int segmentIndex(Segment[] segments, long offset) {
+        if (segments.length == 0) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].baseOffset <= offset) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // Offset of the first retained record at or after the time
+    public long offsetAt(long timestamp) {
+        long[] found = {endOffset};
+        for (Segment segment : segments) {
+            if (segment.lastTimestamp >= timestamp) {
+                read(segment.baseOffset, (offset, recordTimestamp, payload) -> {
+                    if (recordTimestamp >= timestamp) {
+                        found[0] = offset;
+                        return false;
+                    }
+                    return true;
+                });
+                break;
+            }
+        }
+        return found[0];
+    }
+
+    public long getStartOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    public long getSizeBytes() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    // Group commit: writes everything appended since the last call to disk
+    public void force() {
+        if (dirty) {
+            dirty = false;
+            active.buffer.force();
+        }
+    }
+
+    // Drops the oldest segments while the log is over maxBytes or they hold only records older
+    // than maxAgeMillis; the segment being appended to always stays
+    public void applyRetention(long maxBytes, long maxAgeMillis) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (getSizeBytes() <= maxBytes && oldest.lastTimestamp >= cutoff) {
+                break;
+            }
+            segments.remove(0);
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    public void close() {
+        force();
+    }
+
+    // Removes the log's files; the mappings go once nothing reads them any more
+    public void delete() throws IOException {
+        for (Segment segment : segments) {
+            Files.deleteIfExists(segment.path);
+        }
+        segments.clear();
+        Files.deleteIfExists(directory);
+    }
+}
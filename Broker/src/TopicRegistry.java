@@ -0,0 +1,749 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Topics, their publishers and subscribers. Lookups never lock: the maps are concurrent and each
+// topic's subscribers are a copy-on-write array. Changes to one topic take only that topic's
+// lock, so publishes, subscribes and deletes on different topics run in parallel. Wildcard
+// subscriptions live in one trie behind their own lock, which is always taken after a topic lock.
+// Listings read sorted skip-list indexes (by ID, by name, by publisher name) a page at a time, so
+// a page costs the same with a hundred topics or a million.
+public class TopicRegistry {
+    public enum UnsubscribeResult { UNSUBSCRIBED, NOT_SUBSCRIBED, TOPIC_NOT_FOUND }
+
+    private static final ClientConnection[] NO_SUBSCRIBERS = new ClientConnection[0];
+    private static final FilterGroup[] NO_FILTER_GROUPS = new FilterGroup[0];
+
+    // Subscribers of a topic that share one filter, which runs once per message for all of them
+    public static final class FilterGroup {
+        private final MessageFilter filter;
+        private final ClientConnection[] subscribers;
+
+        FilterGroup(MessageFilter filter, ClientConnection[] subscribers) {
+            this.filter = filter;
+            this.subscribers = subscribers;
+        }
+
+        public MessageFilter getFilter() {
+            return filter;
+        }
+
+        public ClientConnection[] getSubscribers() {
+            return subscribers;
+        }
+    }
+
+    // Topics in key order, and the key to go on from when there are more than fit in the page
+    public static final class Page {
+        private final List<Topic> topics;
+        private final String next;
+
+        Page(List<Topic> topics, String next) {
+            this.topics = topics;
+            this.next = next;
+        }
+
+        public List<Topic> getTopics() {
+            return topics;
+        }
+
+        // null on the last page
+        public String getNext() {
+            return next;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+    // The listing indexes; entries are added and removed under the topic's lock
+    private final ConcurrentSkipListMap<String, Topic> topicsById = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Topic> topicsByName = new ConcurrentSkipListMap<>(); // name \0 ID
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<String, Topic>> topicsByPublisher =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Topic> topicsByHandle = new ConcurrentHashMap<>();
+    private final AtomicInteger nextHandle = new AtomicInteger();
+    private final int retainedMessages; // per topic, 0 to retain none
+    private final long retainedBytes;
+    private final double topicRate; // publishes per second and topic, 0 for no limit
+    private final long topicBurst;
+    private final ConcurrentHashMap<ClientConnection, Set<String>> subscriberTopics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ClientConnection, Set<String>> publisherTopics = new ConcurrentHashMap<>();
+    private final SubscriptionTrie<ClientConnection> patterns = new SubscriptionTrie<>(); // guarded by patternLock
+    private final ReentrantLock patternLock = new ReentrantLock();
+    private volatile long patternVersion;
+    private final ConcurrentHashMap<ClientConnection, Set<String>> subscriberPatterns = new ConcurrentHashMap<>();
+
+    public static final class Topic {
+        private final String id;
+        private final int handle;
+        private final String name;
+        private volatile ClientConnection creator; // changed under lock
+        private final Set<String> publishers = ConcurrentHashMap.newKeySet();
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile ClientConnection[] subscribers = NO_SUBSCRIBERS; // unfiltered
+        private volatile FilterGroup[] filterGroups = NO_FILTER_GROUPS;
+        private volatile TopicLog log; // null unless the broker runs with --persist
+        private RetainedMessages retained; // null unless the broker runs with --retain; guarded by lock
+        private final RateLimiter publishLimiter; // null unless the broker runs with --topic-rate
+        private boolean deleted; // guarded by lock
+        private String interestAnnouncedTo; // guarded by lock
+        // Written under the lock; read without it for metrics, which may see them a little stale
+        private long publishCount;
+        private long deliveryCount;
+        // Exact and wildcard subscribers, rebuilt when either changes; guarded by lock
+        private ClientConnection[] recipients = NO_SUBSCRIBERS;
+        private ClientConnection[] recipientsSubscribers = NO_SUBSCRIBERS;
+        private long recipientsPatternVersion;
+        // The filter groups less those recipients, rebuilt when either changes; guarded by lock
+        private FilterGroup[] filterRecipients = NO_FILTER_GROUPS;
+        private FilterGroup[] filterRecipientsGroups = NO_FILTER_GROUPS;
+        private ClientConnection[] filterRecipientsExcluded = NO_SUBSCRIBERS;
+
+        Topic(String id, int handle, String name, ClientConnection creator, RetainedMessages retained,
+              RateLimiter publishLimiter) {
+            this.id = id;
+            this.handle = handle;
+            this.name = name;
+            this.creator = creator;
+            this.retained = retained;
+            this.publishLimiter = publishLimiter;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        // Interned ID that binary protocol clients use instead of the topic ID string
+        public int getHandle() {
+            return handle;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isPublisher(String publisherName) {
+            return publishers.contains(publisherName);
+        }
+
+        public ClientConnection getCreator() {
+            return creator;
+        }
+
+        public RateLimiter getPublishLimiter() {
+            return publishLimiter;
+        }
+
+        public Set<String> getPublishers() {
+            return Collections.unmodifiableSet(publishers);
+        }
+
+        // Snapshot that stays valid while subscribers come and go; never modify it
+        public ClientConnection[] getSubscribers() {
+            return subscribers;
+        }
+
+        // Subscribers with a filter, grouped by filter; a snapshot like getSubscribers
+        public FilterGroup[] getFilterGroups() {
+            return filterGroups;
+        }
+
+        public int getSubscriberCount() {
+            int count = subscribers.length;
+            for (FilterGroup group : filterGroups) {
+                count += group.subscribers.length;
+            }
+            return count;
+        }
+
+        // The subscriber's filter, or null if it is unfiltered or not subscribed
+        public MessageFilter getFilter(ClientConnection subscriber) {
+            for (FilterGroup group : filterGroups) {
+                if (indexOf(group.subscribers, subscriber) >= 0) {
+                    return group.filter;
+                }
+            }
+            return null;
+        }
+
+        // Takes the subscriber out of the unfiltered list and its filter group; with the lock held
+        private boolean remove(ClientConnection subscriber) {
+            int index = indexOf(subscribers, subscriber);
+            if (index >= 0) {
+                subscribers = without(subscribers, index);
+                return true;
+            }
+            FilterGroup[] groups = filterGroups;
+            for (int g = 0; g < groups.length; g++) {
+                index = indexOf(groups[g].subscribers, subscriber);
+                if (index >= 0) {
+                    if (groups[g].subscribers.length == 1) {
+                        filterGroups = groups.length == 1 ? NO_FILTER_GROUPS : withoutGroup(groups, g);
+                    } else {
+                        FilterGroup[] updated = groups.clone();
+                        updated[g] = new FilterGroup(groups[g].filter, without(groups[g].subscribers, index));
+                        filterGroups = updated;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // With the lock held
+        private void add(ClientConnection subscriber, MessageFilter filter) {
+            if (filter == null) {
+                subscribers = with(subscribers, subscriber);
+                return;
+            }
+            FilterGroup[] groups = filterGroups;
+            for (int g = 0; g < groups.length; g++) {
+                if (groups[g].filter.equals(filter)) {
+                    FilterGroup[] updated = groups.clone();
+                    updated[g] = new FilterGroup(groups[g].filter, with(groups[g].subscribers, subscriber));
+                    filterGroups = updated;
+                    return;
+                }
+            }
+            FilterGroup[] updated = Arrays.copyOf(groups, groups.length + 1);
+            updated[groups.length] = new FilterGroup(filter, new ClientConnection[] {subscriber});
+            filterGroups = updated;
+        }
+
+        // Held while fanning out so every subscriber sees the topic's messages in the same order
+        public ReentrantLock getLock() {
+            return lock;
+        }
+
+        // Call with the lock held
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        // Which peer brokers were last told this broker wants the topic's messages, as the Broker
+        // names them, or null for none; call with the lock held. Returns the previous value.
+        public String setInterestAnnouncedTo(String announcedTo) {
+            String previous = interestAnnouncedTo;
+            interestAnnouncedTo = announcedTo;
+            return previous;
+        }
+
+        public String getInterestAnnouncedTo() {
+            return interestAnnouncedTo;
+        }
+
+        public TopicLog getLog() {
+            return log;
+        }
+
+        public void setLog(TopicLog log) {
+            this.log = log;
+        }
+
+        // Use with the lock held
+        public RetainedMessages getRetained() {
+            return retained;
+        }
+
+        // Use with the lock held
+        public void setRetained(RetainedMessages retained) {
+            this.retained = retained;
+        }
+
+        // Use with the lock held
+        public void countPublish(int deliveries) {
+            publishCount++;
+            deliveryCount += deliveries;
+        }
+
+        public long getPublishCount() {
+            return publishCount;
+        }
+
+        public long getDeliveryCount() {
+            return deliveryCount;
+        }
+    }
+
+    public TopicRegistry() {
+        this(0, 0, 0, 0);
+    }
+
+    // Every topic keeps its last retainedMessages messages, up to retainedBytes of payload, and
+    // takes at most topicRate publishes a second from clients, in bursts of up to topicBurst
+    public TopicRegistry(int retainedMessages, long retainedBytes, double topicRate, long topicBurst) {
+        this.retainedMessages = retainedMessages;
+        this.retainedBytes = retainedBytes;
+        this.topicRate = topicRate;
+        this.topicBurst = topicBurst;
+    }
+
+    // Returns false if the topic ID is already in use
+    public boolean createTopic(String topicId, String topicName, String publisherName, ClientConnection publisher) {
+        Topic topic = new Topic(topicId, nextHandle.incrementAndGet(), topicName, publisher, newRetainedMessages(),
+            topicRate > 0 ? new RateLimiter(topicRate, topicBurst) : null);
+        topic.publishers.add(publisherName);
+        if (topics.putIfAbsent(topicId, topic) != null) {
+            return false;
+        }
+        topic.lock.lock();
+        try {
+            // Unless a delete got to it first
+            if (!topic.deleted) {
+                topicsByHandle.put(topic.handle, topic);
+                addTo(publisherTopics, publisher, topicId);
+                topicsById.put(topicId, topic);
+                topicsByName.put(nameKey(topic), topic);
+                // compute, like addTo, so deleting the publisher's last other topic cannot drop the index
+                topicsByPublisher.compute(publisherName, (k, index) -> {
+                    if (index == null) {
+                        index = new ConcurrentSkipListMap<>();
+                    }
+                    index.put(topicId, topic);
+                    return index;
+                });
+            }
+        } finally {
+            topic.lock.unlock();
+        }
+        return true;
+    }
+
+    // Empty retained messages for a topic, or null when topics retain none
+    public RetainedMessages newRetainedMessages() {
+        return retainedMessages > 0 ? new RetainedMessages(retainedMessages, retainedBytes) : null;
+    }
+
+    public Topic getTopic(String topicId) {
+        return topics.get(topicId);
+    }
+
+    public Topic getTopic(int handle) {
+        return topicsByHandle.get(handle);
+    }
+
+    public boolean isPublisher(String topicId, String publisherName) {
+        Topic topic = topics.get(topicId);
+        return topic != null && topic.isPublisher(publisherName);
+    }
+
+    // Weakly consistent view: never torn, may or may not reflect concurrent changes
+    public Collection<Topic> getTopics() {
+        return Collections.unmodifiableCollection(topics.values());
+    }
+
+    public boolean isEmpty() {
+        return topics.isEmpty();
+    }
+
+    // Up to `limit` topics whose IDs start with `prefix`, in ID order, after the key `after` (null
+    // to start at the beginning). Pages are weakly consistent like getTopics: a topic created or
+    // deleted while a client pages through may or may not be listed.
+    public Page getTopicPage(String prefix, String after, int limit) {
+        return page(topicsById, prefix, after, limit);
+    }
+
+    // The same for topics whose names start with `namePrefix`, in name order
+    public Page getTopicPageByName(String namePrefix, String after, int limit) {
+        return page(topicsByName, namePrefix, after, limit);
+    }
+
+    // The same for the topics one publisher created, by ID
+    public Page getPublisherTopicPage(String publisherName, String prefix, String after, int limit) {
+        ConcurrentSkipListMap<String, Topic> index = topicsByPublisher.get(publisherName);
+        return index == null ? new Page(Collections.emptyList(), null) : page(index, prefix, after, limit);
+    }
+
+    private static Page page(ConcurrentSkipListMap<String, Topic> index, String prefix, String after, int limit) {
+        String end = prefixEnd(prefix);
+        NavigableMap<String, Topic> range;
+        if (after != null && after.compareTo(prefix) >= 0) {
+            if (end != null && after.compareTo(end) >= 0) {
+                return new Page(Collections.emptyList(), null);
+            }
+            range = end == null ? index.tailMap(after, false) : index.subMap(after, false, end, false);
+        } else {
+            range = end == null ? index.tailMap(prefix, true) : index.subMap(prefix, true, end, false);
+        }
+        List<Topic> page = new ArrayList<>(Math.min(limit, 256));
+        String last = null;
+        for (Map.Entry<String, Topic> entry : range.entrySet()) {
+            if (page.size() == limit) {
+                return new Page(page, last);
+            }
+            page.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page(page, null);
+    }
+
+    // The first string after every string starting with prefix, or null if there is none
+    private static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    // Names are not unique, so the ID makes the key unique and orders topics of the same name
+    private static String nameKey(Topic topic) {
+        return topic.name + '\0' + topic.id;
+    }
+
+    // Returns the subscribed topic, or null if it does not exist
+    public Topic subscribe(String topicId, ClientConnection subscriber) {
+        return subscribe(topicId, subscriber, null);
+    }
+
+    // Subscribing again replaces the subscriber's filter; null means every message
+    public Topic subscribe(String topicId, ClientConnection subscriber, MessageFilter filter) {
+        Topic topic = topics.get(topicId);
+        if (topic == null) {
+            return null;
+        }
+        topic.lock.lock();
+        try {
+            if (topic.deleted) {
+                return null;
+            }
+            if (filter != null || indexOf(topic.subscribers, subscriber) < 0) {
+                topic.remove(subscriber);
+                topic.add(subscriber, filter);
+            }
+            addTo(subscriberTopics, subscriber, topicId);
+            return topic;
+        } finally {
+            topic.lock.unlock();
+        }
+    }
+
+    public UnsubscribeResult unsubscribe(String topicId, ClientConnection subscriber) {
+        Topic topic = topics.get(topicId);
+        if (topic == null) {
+            return UnsubscribeResult.TOPIC_NOT_FOUND;
+        }
+        topic.lock.lock();
+        try {
+            if (!topic.remove(subscriber)) {
+                return UnsubscribeResult.NOT_SUBSCRIBED;
+            }
+            removeFrom(subscriberTopics, subscriber, topicId);
+            return UnsubscribeResult.UNSUBSCRIBED;
+        } finally {
+            topic.lock.unlock();
+        }
+    }
+
+    // Removes the topic and returns it with its last subscribers, or null if it did not exist. The
+    // ID is freed only once the topic is out of every index, under its lock, so a topic created
+    // again with the same ID cannot have its index entries undone by this delete.
+    public Topic deleteTopic(String topicId) {
+        while (true) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                return null;
+            }
+            topic.lock.lock();
+            if (!topic.deleted) {
+                return delete(topic);
+            }
+            topic.lock.unlock(); // another delete got to it; look again
+        }
+    }
+
+    // Call with the topic lock held; releases it
+    private Topic delete(Topic topic) {
+        String topicId = topic.id;
+        try {
+            topic.deleted = true;
+            topicsByHandle.remove(topic.handle);
+            removeFrom(publisherTopics, topic.creator, topicId);
+            topicsById.remove(topicId, topic);
+            topicsByName.remove(nameKey(topic), topic);
+            for (String publisherName : topic.publishers) {
+                topicsByPublisher.computeIfPresent(publisherName, (k, index) -> {
+                    index.remove(topicId, topic);
+                    return index.isEmpty() ? null : index;
+                });
+            }
+            for (ClientConnection subscriber : topic.subscribers) {
+                removeFrom(subscriberTopics, subscriber, topicId);
+            }
+            for (FilterGroup group : topic.filterGroups) {
+                for (ClientConnection subscriber : group.subscribers) {
+                    removeFrom(subscriberTopics, subscriber, topicId);
+                }
+            }
+            topics.remove(topicId, topic);
+        } finally {
+            topic.lock.unlock();
+        }
+        return topic;
+    }
+
+    // Exact and wildcard subscribers of the topic, each once. Call with the topic lock held; the
+    // array is reused for every publish until a subscription that affects the topic changes.
+    public ClientConnection[] getRecipients(Topic topic) {
+        ClientConnection[] subscribers = topic.subscribers;
+        if (topic.recipientsSubscribers == subscribers && topic.recipientsPatternVersion == patternVersion) {
+            return topic.recipients;
+        }
+        patternLock.lock();
+        try {
+            ClientConnection[] recipients = subscribers;
+            if (!patterns.isEmpty()) {
+                Set<ClientConnection> matched = new LinkedHashSet<>(List.of(subscribers));
+                patterns.match(topic.id, matched::add);
+                recipients = matched.size() == subscribers.length ? subscribers : matched.toArray(NO_SUBSCRIBERS);
+            }
+            topic.recipients = recipients;
+            topic.recipientsSubscribers = subscribers;
+            topic.recipientsPatternVersion = patterns.getVersion();
+            return recipients;
+        } finally {
+            patternLock.unlock();
+        }
+    }
+
+    // The topic's filter groups without the connections getRecipients returns, so one with an
+    // unfiltered wildcard and a filtered exact subscription gets each message once, unfiltered.
+    // Call with the topic lock held; reused like getRecipients.
+    public FilterGroup[] getFilterRecipients(Topic topic) {
+        ClientConnection[] recipients = getRecipients(topic);
+        FilterGroup[] groups = topic.filterGroups;
+        if (topic.filterRecipientsGroups == groups && topic.filterRecipientsExcluded == recipients) {
+            return topic.filterRecipients;
+        }
+        FilterGroup[] filtered = groups;
+        // An exact subscription is filtered or not, never both, so only wildcard matches overlap
+        if (recipients != topic.subscribers && groups.length > 0) {
+            Set<ClientConnection> excluded = new HashSet<>(List.of(recipients));
+            List<FilterGroup> kept = new ArrayList<>(groups.length);
+            boolean changed = false;
+            for (FilterGroup group : groups) {
+                List<ClientConnection> subscribers = new ArrayList<>(group.subscribers.length);
+                for (ClientConnection subscriber : group.subscribers) {
+                    if (!excluded.contains(subscriber)) {
+                        subscribers.add(subscriber);
+                    }
+                }
+                if (subscribers.size() == group.subscribers.length) {
+                    kept.add(group);
+                    continue;
+                }
+                changed = true;
+                if (!subscribers.isEmpty()) {
+                    kept.add(new FilterGroup(group.filter, subscribers.toArray(NO_SUBSCRIBERS)));
+                }
+            }
+            if (changed) {
+                filtered = kept.toArray(NO_FILTER_GROUPS);
+            }
+        }
+        topic.filterRecipients = filtered;
+        topic.filterRecipientsGroups = groups;
+        topic.filterRecipientsExcluded = recipients;
+        return filtered;
+    }
+
+    // Held while wildcard subscriptions change, and by the broker while it tells peers about them,
+    // so the announcements go out in the order the changes happened
+    public ReentrantLock getPatternLock() {
+        return patternLock;
+    }
+
+    // Returns false if the subscriber already had the pattern
+    public boolean subscribePattern(String pattern, ClientConnection subscriber) {
+        patternLock.lock();
+        try {
+            if (getPatternSubscriptions(subscriber).contains(pattern)) {
+                return false;
+            }
+            patterns.add(pattern, subscriber);
+            addTo(subscriberPatterns, subscriber, pattern);
+            patternVersion = patterns.getVersion();
+            return true;
+        } finally {
+            patternLock.unlock();
+        }
+    }
+
+    // Returns false if the subscriber did not have the pattern
+    public boolean unsubscribePattern(String pattern, ClientConnection subscriber) {
+        patternLock.lock();
+        try {
+            if (!getPatternSubscriptions(subscriber).contains(pattern)) {
+                return false;
+            }
+            patterns.remove(pattern, subscriber);
+            removeFrom(subscriberPatterns, subscriber, pattern);
+            patternVersion = patterns.getVersion();
+            return true;
+        } finally {
+            patternLock.unlock();
+        }
+    }
+
+    public boolean hasPatternSubscribers(String pattern) {
+        patternLock.lock();
+        try {
+            return patterns.getPatterns().contains(pattern);
+        } finally {
+            patternLock.unlock();
+        }
+    }
+
+    // Subscribers with a pattern matching the topic, each once
+    public Set<ClientConnection> getPatternSubscribers(String topicId) {
+        Set<ClientConnection> matched = new LinkedHashSet<>();
+        patternLock.lock();
+        try {
+            patterns.match(topicId, matched::add);
+        } finally {
+            patternLock.unlock();
+        }
+        return matched;
+    }
+
+    public List<Topic> getMatchingTopics(String pattern) {
+        SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+        trie.add(pattern, pattern);
+        List<Topic> matching = new ArrayList<>();
+        for (Topic topic : topics.values()) {
+            if (trie.matches(topic.id)) {
+                matching.add(topic);
+            }
+        }
+        return matching;
+    }
+
+    public Set<String> getPatternSubscriptions(ClientConnection subscriber) {
+        Set<String> patternSet = subscriberPatterns.get(subscriber);
+        return patternSet == null ? Collections.emptySet() : Collections.unmodifiableSet(patternSet);
+    }
+
+    // Drops all of the connection's wildcard subscriptions and returns their patterns
+    public Set<String> removePatternSubscriber(ClientConnection subscriber) {
+        patternLock.lock();
+        try {
+            Set<String> removed = subscriberPatterns.remove(subscriber);
+            if (removed == null) {
+                return Collections.emptySet();
+            }
+            for (String pattern : removed) {
+                patterns.remove(pattern, subscriber);
+            }
+            patternVersion = patterns.getVersion();
+            return removed;
+        } finally {
+            patternLock.unlock();
+        }
+    }
+
+    public Set<String> getSubscriptions(ClientConnection subscriber) {
+        Set<String> topicIds = subscriberTopics.get(subscriber);
+        return topicIds == null ? Collections.emptySet() : Collections.unmodifiableSet(topicIds);
+    }
+
+    // Forgets the connection as a publisher and returns the topics it had created
+    public Set<String> removePublisher(ClientConnection publisher) {
+        Set<String> topicIds = publisherTopics.remove(publisher);
+        return topicIds == null ? Collections.emptySet() : topicIds;
+    }
+
+    public Set<String> getPublisherTopics(ClientConnection publisher) {
+        Set<String> topicIds = publisherTopics.get(publisher);
+        return topicIds == null ? Collections.emptySet() : Collections.unmodifiableSet(topicIds);
+    }
+
+    // Hands the topics one connection created over to another, as when a peer broker's link is replaced
+    public void transferPublisher(ClientConnection from, ClientConnection to) {
+        for (String topicId : removePublisher(from)) {
+            Topic topic = topics.get(topicId);
+            if (topic == null) {
+                continue;
+            }
+            topic.lock.lock();
+            try {
+                if (!topic.deleted && topic.creator == from) {
+                    topic.creator = to;
+                    addTo(publisherTopics, to, topicId);
+                }
+            } finally {
+                topic.lock.unlock();
+            }
+        }
+    }
+
+    // Forgets the connection as a subscriber and returns the topics it was subscribed to
+    public Set<String> removeSubscriber(ClientConnection subscriber) {
+        Set<String> topicIds = subscriberTopics.remove(subscriber);
+        return topicIds == null ? Collections.emptySet() : topicIds;
+    }
+
+    // compute rather than computeIfAbsent().add() so a concurrent removeFrom cannot drop the
+    // set this adds to
+    private static void addTo(ConcurrentHashMap<ClientConnection, Set<String>> index,
+                              ClientConnection connection, String topicId) {
+        index.compute(connection, (k, topicIds) -> {
+            if (topicIds == null) {
+                topicIds = ConcurrentHashMap.newKeySet();
+            }
+            topicIds.add(topicId);
+            return topicIds;
+        });
+    }
+
+    private static void removeFrom(ConcurrentHashMap<ClientConnection, Set<String>> index,
+                                   ClientConnection connection, String topicId) {
+        index.computeIfPresent(connection, (k, topicIds) -> {
+            topicIds.remove(topicId);
+            return topicIds.isEmpty() ? null : topicIds;
+        });
+    }
+
+    private static int indexOf(ClientConnection[] subscribers, ClientConnection subscriber) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == subscriber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ClientConnection[] with(ClientConnection[] subscribers, ClientConnection subscriber) {
+        ClientConnection[] updated = Arrays.copyOf(subscribers, subscribers.length + 1);
+        updated[subscribers.length] = subscriber;
+        return updated;
+    }
+
+    private static FilterGroup[] withoutGroup(FilterGroup[] groups, int index) {
+        FilterGroup[] updated = new FilterGroup[groups.length - 1];
+        System.arraycopy(groups, 0, updated, 0, index);
+        System.arraycopy(groups, index + 1, updated, index, groups.length - index - 1);
+        return updated;
+    }
+
+    private static ClientConnection[] without(ClientConnection[] subscribers, int index) {
+        if (subscribers.length == 1) {
+            return NO_SUBSCRIBERS;
+        }
+        ClientConnection[] updated = new ClientConnection[subscribers.length - 1];
+        System.arraycopy(subscribers, 0, updated, 0, index);
+        System.arraycopy(subscribers, index + 1, updated, index, subscribers.length - index - 1);
+        return updated;
+    }
+}
@@ -0,0 +1,132 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.Socket;
+import org.junit.jupiter.api.Test;
+
+// The "where" clause language of subscriptions, and how the registry groups subscribers by the
+// canonical form of their filters.
+class MessageFilterTest {
+    @Test
+    void comparesNumbersLevelsAndText() {
+        assertTrue(matches("latency > 50", "latency=87"));
+        assertFalse(matches("latency > 50", "latency=9"));    // 9 < 50 as numbers, not as text
+        assertTrue(matches("severity >= WARN", "severity=error"));
+        assertFalse(matches("severity >= WARN", "severity=INFO"));
+        assertTrue(matches("host = db1", "host=db1 latency=3"));
+        assertTrue(matches("host < db2", "host=db10"));
+        assertTrue(matches("payload ~ \"disk full\"", "the disk full again"));
+    }
+
+    @Test
+    void missingFieldsOnlyMatchNotEquals() {
+        assertFalse(matches("host = db1", "latency=3"));
+        assertFalse(matches("latency < 5", "host=db1"));
+        assertTrue(matches("host != db1", "latency=3"));
+    }
+
+    @Test
+    void andBindsTighterThanOr() {
+        String filter = "host = a or host = b and latency > 10";
+        assertTrue(matches(filter, "host=a latency=1"));
+        assertFalse(matches(filter, "host=b latency=1"));
+        assertTrue(matches(filter, "host=b latency=11"));
+        assertFalse(matches("(host = a or host = b) and latency > 10", "host=a latency=1"));
+        assertTrue(matches("not host = a", "host=b"));
+        assertFalse(matches("not (host = a or host = b)", "host=b"));
+    }
+
+    @Test
+    void rejectsMalformedExpressions() {
+        for (String expression : new String[] {"", "host", "host =", "host ! a", "host = \"a", "(host = a",
+                                               "host = a)", "host = a and", "= a", "host = a b"}) {
+            assertThrows(IllegalArgumentException.class, () -> MessageFilter.compile(expression), expression);
+        }
+    }
+
+    @Test
+    void equivalentSpellingsShareACanonicalForm() {
+        MessageFilter spaced = MessageFilter.compile("host=db1   and (latency > 5)");
+        MessageFilter quoted = MessageFilter.compile("host = \"db1\" and latency > \"5\"");
+        assertEquals(spaced.toString(), quoted.toString());
+        assertEquals(spaced, quoted);
+        assertEquals(spaced.hashCode(), quoted.hashCode());
+        assertNotEquals(spaced, MessageFilter.compile("host = db1 or latency > 5"));
+    }
+
+    @Test
+    void subscribersWithEquivalentFiltersShareAGroup() {
+        TopicRegistry registry = new TopicRegistry();
+        registry.createTopic("a/b", "Topic", "p", new StubConnection());
+        TopicRegistry.Topic topic = registry.getTopic("a/b");
+        StubConnection first = new StubConnection();
+        StubConnection second = new StubConnection();
+        StubConnection other = new StubConnection();
+        registry.subscribe("a/b", first, MessageFilter.compile("severity >= WARN"));
+        registry.subscribe("a/b", second, MessageFilter.compile("severity>=\"WARN\""));
+        registry.subscribe("a/b", other, MessageFilter.compile("severity >= ERROR"));
+
+        TopicRegistry.FilterGroup[] groups = topic.getFilterGroups();
+        assertEquals(2, groups.length);
+        assertArrayEquals(new ClientConnection[] {first, second}, groups[0].getSubscribers());
+        assertArrayEquals(new ClientConnection[] {other}, groups[1].getSubscribers());
+
+        // Subscribing again without a filter moves the subscriber out of its group
+        registry.subscribe("a/b", second);
+        assertEquals(2, topic.getFilterGroups().length);
+        assertArrayEquals(new ClientConnection[] {first}, topic.getFilterGroups()[0].getSubscribers());
+        assertArrayEquals(new ClientConnection[] {second}, topic.getSubscribers());
+    }
+
+    // A connection with an unfiltered wildcard and a filtered exact subscription must be sent each
+    // message once, as the wildcard asks for all of them
+    @Test
+    void unfilteredWildcardSubscribersLeaveTheirFilterGroups() {
+        TopicRegistry registry = new TopicRegistry();
+        registry.createTopic("a/b", "Topic", "p", new StubConnection());
+        TopicRegistry.Topic topic = registry.getTopic("a/b");
+        StubConnection both = new StubConnection();
+        StubConnection filtered = new StubConnection();
+        registry.subscribe("a/b", both, MessageFilter.compile("host = db1"));
+        registry.subscribe("a/b", filtered, MessageFilter.compile("host = db1"));
+        registry.subscribePattern("a/+", both);
+
+        topic.getLock().lock();
+        try {
+            assertArrayEquals(new ClientConnection[] {both}, registry.getRecipients(topic));
+            TopicRegistry.FilterGroup[] groups = registry.getFilterRecipients(topic);
+            assertEquals(1, groups.length);
+            assertArrayEquals(new ClientConnection[] {filtered}, groups[0].getSubscribers());
+
+            registry.unsubscribePattern("a/+", both);
+            assertEquals(0, registry.getRecipients(topic).length);
+            assertArrayEquals(new ClientConnection[] {both, filtered},
+                registry.getFilterRecipients(topic)[0].getSubscribers());
+        } finally {
+            topic.getLock().unlock();
+        }
+    }
+
+    private static boolean matches(String filter, String message) {
+        return MessageFilter.compile(filter).matches(new MessageFilter.Message(message));
+    }
+
+    private static final class StubConnection extends ClientConnection {
+        @Override
+        public void send(byte[] frame) {
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import org.junit.jupiter.api.Test;
+
+// Under --overflow=block a publisher waits for a slow subscriber's queue, but only after letting go
+// of the topic lock: everyone else using the topic carries on while it waits.
+class OverflowBlockTest {
+    private static final long BLOCK_MILLIS = 30_000;
+
+    @Test
+    void slowSubscriberDoesNotHoldTheTopic() throws Exception {
+        Broker broker = new Broker(0, new ArrayList<>(), BrokerOptions.parse(new String[] {
+            "--overflow=block", "--outbound-queue=2", "--overflow-block-ms=" + BLOCK_MILLIS}, new ArrayList<>()));
+        broker.handleCommand("create t Topic p", ClientConnection.DISCARD);
+
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort());
+             Socket accepted = server.accept()) {
+            // The writer is never started, so the subscriber never takes anything off its queue
+            SocketConnection slow = new SocketConnection(accepted, broker.newOutboundQueue(), Thread::new);
+            broker.handleCommand("subscribe t", slow);
+
+            Thread publisher = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2; i++) {
+                        broker.handleCommand("publish t p message" + i, ClientConnection.DISCARD);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            publisher.start();
+            long deadline = System.currentTimeMillis() + BLOCK_MILLIS;
+            while (slow.getQueueDepth() <= 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, slow.getQueueDepth());
+
+            // The publisher is now waiting for the slow subscriber; the topic is not
+            long start = System.nanoTime();
+            broker.handleCommand("subscribe t", ClientConnection.DISCARD);
+            broker.handleCommand("unsubscribe t", ClientConnection.DISCARD);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(publisher.isAlive(), "the publisher should still be waiting");
+            assertTrue(millis < BLOCK_MILLIS / 6, "subscribe waited " + millis + " ms");
+
+            slow.close();
+            publisher.join(BLOCK_MILLIS);
+            assertTrue(!publisher.isAlive());
+        }
+    }
+}
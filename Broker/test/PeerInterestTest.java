@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+// Routing control sent on a peer broker's link to us must get through a queue far smaller than
+// what is announced, whatever the overflow policy: a lost addInterest would stop this broker's
+// publishes being forwarded to the peer for good.
+class PeerInterestTest {
+    private static final int QUEUE = 4;
+    private static final int TOPICS = 100;
+
+    @Test
+    void announcesMoreTopicsThanTheQueueHolds() throws Exception {
+        for (String policy : new String[] {"drop-oldest", "drop-newest", "disconnect"}) {
+            // With --retain every topic is of interest, as it keeps a history
+            Broker broker = new Broker(0, new ArrayList<>(), BrokerOptions.parse(new String[] {
+                "--retain=1", "--outbound-queue=" + QUEUE, "--overflow=" + policy}, new ArrayList<>()));
+            for (int t = 0; t < TOPICS; t++) {
+                broker.handleCommand("create t" + t + " Topic p", ClientConnection.DISCARD);
+            }
+
+            try (ServerSocket server = new ServerSocket(0);
+                 Socket peer = new Socket("localhost", server.getLocalPort());
+                 Socket accepted = server.accept()) {
+                peer.setSoTimeout(5000);
+                SocketConnection link = new SocketConnection(accepted, broker.newOutboundQueue(), Thread::new);
+                // The writer is not started yet, so nothing drains the queue during the announcement
+                broker.handleCommand(PeerLink.HELLO + " other 1", link);
+                assertEquals(0, link.getDroppedCount(), policy);
+                assertFalse(accepted.isClosed(), policy);
+
+                link.start();
+                BufferedReader in = new BufferedReader(new InputStreamReader(peer.getInputStream()));
+                Set<String> announced = new HashSet<>();
+                String line;
+                while (announced.size() < TOPICS && (line = in.readLine()) != null) {
+                    if (line.startsWith(PeerLink.ADD_INTEREST)) {
+                        announced.add(line.substring(PeerLink.ADD_INTEREST.length()));
+                    }
+                }
+                assertEquals(TOPICS, announced.size(), policy);
+                link.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+// A client that resumes its session after a disconnect gets exactly the frames after the last one
+// it counted, and its subscriptions carry on without subscribing again.
+class SessionResumeTest {
+    // Keeps what the broker sends it
+    private static final class RecordingConnection extends ClientConnection {
+        final List<byte[]> sent = new ArrayList<>();
+
+        @Override
+        public synchronized void send(byte[] frame) {
+            sent.add(frame);
+        }
+
+        synchronized List<byte[]> frames() {
+            return new ArrayList<>(sent);
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void replaysOnlyWhatFollowsTheLastFrameReceived() throws Exception {
+        Broker broker = new Broker(0, new ArrayList<>(), BrokerOptions.parse(new String[0], new ArrayList<>()));
+        broker.handleCommand("create t Topic p", ClientConnection.DISCARD);
+
+        RecordingConnection first = new RecordingConnection();
+        broker.handleCommand("session s1 alice 0", first);
+        byte[] subscribe = new BinaryProtocol.FrameBuilder(BinaryProtocol.SUBSCRIBE, 1).putString("t").toByteArray();
+        broker.handleFrame(BinaryProtocol.decode(Arrays.copyOfRange(subscribe, 4, subscribe.length)), first);
+        for (int i = 1; i <= 3; i++) {
+            broker.handleCommand("publish t p m" + i, ClientConnection.DISCARD);
+        }
+        // session ok, then frame 1 is the subscribe reply and frames 2 to 4 the messages
+        List<byte[]> before = first.frames();
+        assertEquals("session ok 1\n", new String(before.get(0), StandardCharsets.UTF_8));
+        assertEquals(5, before.size());
+        assertEquals(BinaryProtocol.OK, decode(before.get(1)).getOpcode());
+
+        broker.handleClientCrash(first);
+        broker.handleCommand("publish t p m4", ClientConnection.DISCARD);
+        broker.handleCommand("publish t p m5", ClientConnection.DISCARD);
+
+        // The client had received frames 1 to 3 when the connection dropped
+        RecordingConnection second = new RecordingConnection();
+        broker.handleCommand("session s1 alice 3", second);
+        broker.handleCommand("publish t p m6", ClientConnection.DISCARD);
+
+        assertEquals(5, first.frames().size());
+        List<byte[]> after = second.frames();
+        assertEquals("session ok 4\n", new String(after.get(0), StandardCharsets.UTF_8));
+        List<String> messages = new ArrayList<>();
+        for (byte[] frame : after.subList(1, after.size())) {
+            messages.add(payload(frame));
+        }
+        assertEquals(List.of("m3", "m4", "m5", "m6"), messages);
+    }
+
+    private static BinaryProtocol.Frame decode(byte[] frame) {
+        return BinaryProtocol.decode(Arrays.copyOfRange(frame, 4, frame.length));
+    }
+
+    private static String payload(byte[] bytes) {
+        BinaryProtocol.Frame frame = decode(bytes);
+        assertEquals(BinaryProtocol.DELIVER, frame.getOpcode());
+        frame.getInt();
+        frame.getLong();
+        return new String(frame.getRemaining(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+// With --retain every broker keeps every topic's history, so each publish goes to every other
+// broker. Under --sharding only a topic's owner keeps it: a publish goes to the owner, which passes
+// it on to the brokers with subscribers, and those subscribers still get every message once.
+class ShardingTest {
+    private static final int BROKERS = 4;
+    private static final int TOPICS = 20;
+    private static final int ROUNDS = 10;
+    private static final Pattern MESSAGE = Pattern.compile("m-\\d+-\\d+-\\d+");
+
+    // Keeps the messages delivered to it
+    private static final class RecordingConnection extends ClientConnection {
+        private final List<String> messages = new ArrayList<>();
+
+        @Override
+        public synchronized void send(byte[] frame) {
+            Matcher matcher = MESSAGE.matcher(new String(frame, StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                messages.add(matcher.group());
+            }
+        }
+
+        synchronized List<String> messages() {
+            return new ArrayList<>(messages);
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void shardingForwardsFewerMessagesBetweenBrokers() throws Exception {
+        long flooded = forwardedLines(false);
+        long sharded = forwardedLines(true);
+        // About 3 lines per publish against at most 2, and fewer when the owner or subscriber publishes
+        assertTrue(sharded * 3 < flooded * 2, "sharded " + sharded + " flooded " + flooded);
+    }
+
+    // Publishes from every broker to topics subscribed on one of them; returns the lines the
+    // brokers sent each other for it
+    private static long forwardedLines(boolean sharding) throws Exception {
+        int[] ports = new int[BROKERS];
+        for (int i = 0; i < BROKERS; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+        }
+        Broker[] brokers = new Broker[BROKERS];
+        for (int i = 0; i < BROKERS; i++) {
+            List<String> options = new ArrayList<>(List.of("--broker-id=b" + i, "--retain=1", "--log-level=warn"));
+            if (sharding) {
+                options.add("--sharding");
+            }
+            for (int j = 0; j < BROKERS; j++) {
+                if (j != i) {
+                    options.add("localhost:" + ports[j]);
+                }
+            }
+            List<String> peers = new ArrayList<>();
+            brokers[i] = new Broker(ports[i], peers, BrokerOptions.parse(options.toArray(new String[0]), peers));
+            Broker broker = brokers[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    broker.start();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for (Broker broker : brokers) {
+            awaitTrue(() -> broker.getPeerLinks().size() == BROKERS - 1);
+        }
+        for (int t = 0; t < TOPICS; t++) {
+            brokers[0].handleCommand("create t" + t + " Topic p", ClientConnection.DISCARD);
+        }
+        for (Broker broker : brokers) {
+            awaitTrue(() -> broker.getRegistry().getTopics().size() == TOPICS);
+        }
+        RecordingConnection subscriber = new RecordingConnection();
+        for (int t = 0; t < TOPICS; t++) {
+            brokers[1].handleCommand("subscribe t" + t, subscriber);
+        }
+
+        // Interest takes a moment to spread: publish until one message from every broker to every
+        // topic has arrived
+        Set<String> warmUp = new HashSet<>();
+        for (int i = 0; i < BROKERS; i++) {
+            for (int t = 0; t < TOPICS; t++) {
+                warmUp.add("m-0-" + i + "-" + t);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!subscriber.messages().containsAll(warmUp) && System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < BROKERS; i++) {
+                for (int t = 0; t < TOPICS; t++) {
+                    if (!subscriber.messages().contains("m-0-" + i + "-" + t)) {
+                        brokers[i].handleCommand("publish t" + t + " p m-0-" + i + "-" + t, ClientConnection.DISCARD);
+                    }
+                }
+            }
+            Thread.sleep(200);
+        }
+        assertTrue(subscriber.messages().containsAll(warmUp));
+        long before = settledSentLines(brokers);
+        int received = subscriber.messages().size();
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (int i = 0; i < BROKERS; i++) {
+                for (int t = 0; t < TOPICS; t++) {
+                    brokers[i].handleCommand("publish t" + t + " p m-" + round + "-" + i + "-" + t,
+                        ClientConnection.DISCARD);
+                }
+            }
+        }
+        int expected = received + ROUNDS * BROKERS * TOPICS;
+        awaitTrue(() -> subscriber.messages().size() >= expected);
+        Thread.sleep(200);
+        List<String> messages = subscriber.messages();
+        assertEquals(expected, messages.size());
+        assertEquals(messages.size(), new HashSet<>(messages).size(), "a message was delivered twice");
+        return settledSentLines(brokers) - before;
+    }
+
+    // Once the links have written everything queued
+    private static long settledSentLines(Broker[] brokers) throws InterruptedException {
+        long previous = -1;
+        while (true) {
+            long sent = 0;
+            for (Broker broker : brokers) {
+                for (PeerLink link : broker.getPeerLinks()) {
+                    sent += link.getSentCount();
+                }
+            }
+            if (sent == previous) {
+                return sent;
+            }
+            previous = sent;
+            Thread.sleep(100);
+        }
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private static void awaitTrue(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.holds()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.api.Test;
+
+// The races the per-topic locks of TopicRegistry close, run for a moment from several threads at
+// once: deletes against subscribes, and publishes from many threads against fan-out. The same
+// checks as Tools/src/RegistryStress, small enough for every build.
+class TopicRegistryConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int TOPICS = 4;
+    private static final long MILLIS = 1000;
+
+    // A subscribe that loses the race with a delete must not be left in the subscriber's index,
+    // and the listing indexes must hold exactly the topics left at the end
+    @Test
+    void deletesRacingSubscribesLeaveConsistentIndexes() throws Exception {
+        TopicRegistry registry = new TopicRegistry();
+        List<RecordingConnection> subscribers = new ArrayList<>();
+        for (int i = 0; i < THREADS * 2; i++) {
+            subscribers.add(new RecordingConnection());
+        }
+        RecordingConnection publisher = new RecordingConnection();
+        for (int t = 0; t < TOPICS; t++) {
+            registry.createTopic("t" + t, "Topic", "p", publisher);
+        }
+
+        run(worker -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String topicId = "t" + random.nextInt(TOPICS);
+            ClientConnection subscriber = subscribers.get(random.nextInt(subscribers.size()));
+            switch (random.nextInt(4)) {
+                case 0 -> registry.subscribe(topicId, subscriber);
+                case 1 -> registry.unsubscribe(topicId, subscriber);
+                case 2 -> registry.deleteTopic(topicId);
+                default -> registry.createTopic(topicId, "Topic", "p", publisher);
+            }
+        });
+
+        for (RecordingConnection subscriber : subscribers) {
+            for (String topicId : registry.getSubscriptions(subscriber)) {
+                TopicRegistry.Topic topic = registry.getTopic(topicId);
+                assertTrue(topic != null && List.of(topic.getSubscribers()).contains(subscriber),
+                    "stale subscription to " + topicId);
+            }
+        }
+        Set<String> live = new HashSet<>();
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            live.add(topic.getId());
+            for (ClientConnection subscriber : topic.getSubscribers()) {
+                assertTrue(registry.getSubscriptions(subscriber).contains(topic.getId()),
+                    "subscriber of " + topic.getId() + " missing from its index");
+            }
+        }
+        Set<String> listed = new HashSet<>();
+        for (TopicRegistry.Topic topic : registry.getTopicPage("", null, Integer.MAX_VALUE).getTopics()) {
+            assertSame(registry.getTopic(topic.getId()), topic, "stale listing of " + topic.getId());
+            listed.add(topic.getId());
+        }
+        assertEquals(live, listed);
+        assertEquals(live.size(), registry.getPublisherTopicPage("p", "", null, Integer.MAX_VALUE).getTopics().size());
+    }
+
+    // Publishes to a topic from many threads at once reach every subscriber in one order, in which
+    // each publisher's messages are in the order it sent them
+    @Test
+    void publishesFromManyThreadsArriveInOneOrder() throws Exception {
+        Broker broker = new Broker(0, new ArrayList<>());
+        RecordingConnection first = new RecordingConnection();
+        RecordingConnection second = new RecordingConnection();
+        for (int t = 0; t < TOPICS; t++) {
+            broker.handleCommand("create t" + t + " Topic p", new RecordingConnection());
+            broker.handleCommand("subscribe t" + t, first);
+            broker.handleCommand("subscribe t" + t, second);
+        }
+        long[] sequences = new long[THREADS];
+
+        run(worker -> broker.handleCommand("publish t" + ThreadLocalRandom.current().nextInt(TOPICS) + " p "
+            + worker + " " + sequences[worker]++, new RecordingConnection()));
+
+        Map<String, List<String>> received = messagesByTopic(first);
+        assertEquals(received, messagesByTopic(second));
+        long delivered = 0;
+        for (List<String> messages : received.values()) {
+            Map<String, Long> last = new HashMap<>();
+            for (String message : messages) {
+                String[] fields = message.split(" ");
+                long sequence = Long.parseLong(fields[1]);
+                Long previous = last.put(fields[0], sequence);
+                assertTrue(previous == null || previous < sequence,
+                    "worker " + fields[0] + ": " + previous + " then " + sequence);
+                delivered++;
+            }
+        }
+        long published = 0;
+        for (long sequence : sequences) {
+            published += sequence;
+        }
+        assertEquals(published, delivered);
+    }
+
+    // "<worker> <sequence>" of each message, by topic
+    private static Map<String, List<String>> messagesByTopic(RecordingConnection subscriber) {
+        Map<String, List<String>> messages = new HashMap<>();
+        for (byte[] frame : subscriber.frames) {
+            // <dd/MM> <HH:mm:ss> <topicId>:<topicName>: <worker> <sequence>
+            String line = new String(frame).trim();
+            if (!line.contains(": ")) {
+                continue; // a subscribe's "success"
+            }
+            String rest = line.substring(line.indexOf(' ', line.indexOf(' ') + 1) + 1);
+            messages.computeIfAbsent(rest.substring(0, rest.indexOf(':')), k -> new ArrayList<>())
+                .add(rest.substring(rest.indexOf(": ") + 2));
+        }
+        return messages;
+    }
+
+    private interface Step {
+        void run(int worker) throws Exception;
+    }
+
+    // Runs the step over and over on every thread, started together, and rethrows the first failure
+    private static void run(Step step) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < THREADS; w++) {
+            int worker = w;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + MILLIS * 1_000_000;
+                    while (System.nanoTime() < deadline) {
+                        step.run(worker);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+    }
+
+    // Keeps every frame the Broker sends it
+    private static final class RecordingConnection extends ClientConnection {
+        private final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public synchronized void send(byte[] frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Length-prefixed binary framing shared by the Broker, Publisher and Subscriber.
+//
+// A client opts in by sending the text line "binary <name>" and waiting for "binary ok"; from then
+// on both directions carry frames:
+//
+//   int length | byte opcode | int requestId | body      (length counts everything after itself)
+//
+// Strings in a body are a short length plus UTF-8 bytes, topics are referred to by the int handle
+// the broker returns from create, subscribe and resolve (or announces with TOPIC_INFO to wildcard
+// subscribers, whose SUBSCRIBE is answered with handle -1), and payloads and TEXT replies are raw
+// bytes running to the end of the frame (or, inside a batch, an int length plus bytes). Replies
+// echo the requestId of the request and deliveries use 0, so a client may keep several requests
+// in flight and match the replies up as they arrive.
+//
+// Messages too large for one frame are sent as a stream of PUBLISH_CHUNK frames, which the broker
+// relays one by one as DELIVER_CHUNK without ever holding the whole message. A stream starts with
+// a CHUNK_FIRST chunk declaring the total length and ends with CHUNK_LAST or CHUNK_ABORT; each chunk
+// may be deflated on its own (CHUNK_COMPRESSED). Deliveries carry the offset of the chunk within
+// the stream as sent, so a subscriber can tell when one was dropped and discard the message.
+public final class BinaryProtocol {
+    public static final String HANDSHAKE = "binary";
+    public static final String HANDSHAKE_OK = "binary ok";
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final int HEADER_LENGTH = 5; // opcode + requestId
+    public static final int CHUNK_SIZE = 256 * 1024; // payload bytes per chunk the clients send
+
+    // Client to broker
+    public static final byte CREATE = 1;       // str topicId, str topicName -> OK(handle)
+    public static final byte PUBLISH = 2;      // int handle, payload -> OK or THROTTLED
+    public static final byte DELETE = 3;       // int handle -> OK
+    public static final byte SUBSCRIBE = 4;    // str topicId [byte REPLAY_*, long value [str filter]] -> OK(handle, str topicName)
+    public static final byte UNSUBSCRIBE = 5;  // int handle -> OK
+    public static final byte LIST = 6;         // [str options] -> TEXT
+    public static final byte CURRENT = 7;      // -> TEXT
+    public static final byte SHOW = 8;         // str topicId (empty for all) [str options] -> TEXT
+    public static final byte RESOLVE = 9;      // str topicId -> OK(handle, str topicName)
+    public static final byte PUBLISH_BATCH = 10; // int count, count * (int handle, bytes payload) -> OK(count) or THROTTLED
+    public static final byte UNSUBSCRIBE_PATTERN = 11; // str pattern -> OK
+    public static final byte PUBLISH_CHUNK = 12; // int handle, int streamId, byte CHUNK_*, [long totalLength], bytes -> OK (THROTTLED for a first chunk)
+
+    // Flags of a chunk; totalLength and, in deliveries, the timestamp follow only on the first
+    public static final byte CHUNK_FIRST = 1;
+    public static final byte CHUNK_LAST = 2;
+    public static final byte CHUNK_COMPRESSED = 4; // this chunk's bytes are deflated
+    public static final byte CHUNK_ABORT = 8;      // the message is abandoned; no bytes
+
+    // Where a SUBSCRIBE starts replaying a persisted topic's history before live delivery
+    public static final byte REPLAY_NONE = 0;   // live messages only, e.g. when only a filter follows
+    public static final byte REPLAY_OFFSET = 1; // from this log offset; negative for the last n messages
+    public static final byte REPLAY_SINCE = 2;  // from this epoch millis; negative for that many ms ago
+
+    // Broker to client
+    public static final byte OK = 64;            // int handle (-1 when none) or batch count, optional str
+    public static final byte ERROR = 65;         // str message
+    public static final byte TEXT = 66;          // UTF-8 to the end of the frame: the text protocol reply
+    public static final byte DELIVER = 67;       // int handle, long timestamp millis, payload
+    public static final byte TOPIC_DELETED = 68; // int handle
+    public static final byte TOPIC_INFO = 69;    // int handle, str topicId, str topicName: matches a wildcard subscription
+    public static final byte DELIVER_CHUNK = 70; // int handle, int streamId, byte CHUNK_*, long offset, [long timestamp, long totalLength], bytes
+    public static final byte THROTTLED = 71;     // str message: a publish refused by the Broker's limits, to be retried later
+
+    private BinaryProtocol() {
+    }
+
+    // A decoded frame; the body is read in order with the get methods
+    public static final class Frame {
+        private final byte opcode;
+        private final int requestId;
+        private final ByteBuffer body;
+
+        public Frame(byte opcode, int requestId, ByteBuffer body) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.body = body;
+        }
+
+        public byte getOpcode() {
+            return opcode;
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public byte getByte() {
+            return body.get();
+        }
+
+        public int getInt() {
+            return body.getInt();
+        }
+
+        public long getLong() {
+            return body.getLong();
+        }
+
+        public String getString() {
+            int length = body.getShort() & 0xFFFF;
+            String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+            body.position(body.position() + length);
+            return value;
+        }
+
+        // An int length followed by that many bytes
+        public byte[] getBytes() {
+            int length = body.getInt();
+            if (length < 0 || length > body.remaining()) {
+                throw new IllegalArgumentException("Invalid byte string length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            return bytes;
+        }
+
+        public boolean hasRemaining() {
+            return body.hasRemaining();
+        }
+
+        public int remaining() {
+            return body.remaining();
+        }
+
+        // The rest of the body, e.g. a message payload
+        public byte[] getRemaining() {
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            return bytes;
+        }
+
+        // The rest of the body without copying it
+        public ByteBuffer getRemainingBuffer() {
+            ByteBuffer rest = body.slice();
+            body.position(body.limit());
+            return rest;
+        }
+    }
+
+    // Builds one frame into a growable array; the length prefix is filled in by toByteArray
+    public static final class FrameBuilder {
+        private final int requestId;
+        private byte[] buffer;
+        private int position;
+
+        public FrameBuilder(byte opcode, int requestId) {
+            this(opcode, requestId, 64);
+        }
+
+        public FrameBuilder(byte opcode, int requestId, int expectedBodyLength) {
+            this.requestId = requestId;
+            buffer = new byte[4 + HEADER_LENGTH + expectedBodyLength];
+            position = 4;
+            buffer[position++] = opcode;
+            putInt(requestId);
+        }
+
+        public FrameBuilder putByte(byte value) {
+            ensure(1);
+            buffer[position++] = value;
+            return this;
+        }
+
+        public FrameBuilder putInt(int value) {
+            ensure(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+            return this;
+        }
+
+        public FrameBuilder putLong(long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        public FrameBuilder putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("String too long for a frame: " + bytes.length + " bytes");
+            }
+            ensure(2 + bytes.length);
+            buffer[position++] = (byte) (bytes.length >>> 8);
+            buffer[position++] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            return this;
+        }
+
+        // Length-prefixed, for payloads that do not run to the end of the frame
+        public FrameBuilder putLengthAndBytes(byte[] bytes) {
+            putInt(bytes.length);
+            return putBytes(bytes);
+        }
+
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public int length() {
+            return position - 4;
+        }
+
+        public FrameBuilder putBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+            return this;
+        }
+
+        // Copies the buffer's remaining bytes without moving its position
+        public FrameBuilder putBytes(ByteBuffer bytes) {
+            int length = bytes.remaining();
+            ensure(length);
+            bytes.get(bytes.position(), buffer, position, length);
+            position += length;
+            return this;
+        }
+
+        // Just the frame built so far, with a length prefix that also counts the given number of
+        // bytes the caller writes after it, e.g. straight from a file
+        public byte[] toHeader(int followingBytes) {
+            putLength(position - 4 + followingBytes);
+            return Arrays.copyOf(buffer, position);
+        }
+
+        public byte[] toByteArray() {
+            putLength(position - 4);
+            return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+        }
+
+        private void putLength(int length) {
+            buffer[0] = (byte) (length >>> 24);
+            buffer[1] = (byte) (length >>> 16);
+            buffer[2] = (byte) (length >>> 8);
+            buffer[3] = (byte) length;
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+    }
+
+    // Blocking read of the next frame; null at end of stream
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame);
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    // Decodes a frame without its length prefix
+    public static Frame decode(byte[] frame) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        byte opcode = buffer.get();
+        int requestId = buffer.getInt();
+        return new Frame(opcode, requestId, buffer.slice());
+    }
+
+    // The chunk deflated, or null when that saves less than a tenth of it and it should go as is
+    public static byte[] deflate(Deflater deflater, byte[] chunk, int length) {
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+        byte[] compressed = new byte[length - length / 10];
+        int size = 0;
+        while (!deflater.finished() && size < compressed.length) {
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        return deflater.finished() ? Arrays.copyOf(compressed, size) : null;
+    }
+
+    // Undoes deflate for one chunk
+    public static byte[] inflate(Inflater inflater, ByteBuffer chunk) throws IOException {
+        inflater.reset();
+        inflater.setInput(chunk);
+        byte[] bytes = new byte[Math.max(64, chunk.remaining() * 4)];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                int n = inflater.inflate(bytes, size, bytes.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed chunk");
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+        }
+        return Arrays.copyOf(bytes, size);
+    }
+
+    public static void write(OutputStream out, byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
+}
@@ -0,0 +1,535 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A programmatic publisher and subscriber on one binary protocol connection, for embedding a
+// client in other programs. Requests return futures that complete with the broker's reply, or
+// exceptionally with an IOException carrying the broker's error text (a ThrottledException when a
+// publish was refused by its limits); up to `window` of them may await replies at once, after
+// which the calling thread waits for a free slot. Messages and topic deletions are passed to the
+// Listener on the connection's reader thread, in the order the broker sent them, so a listener
+// must not block.
+public class BrokerClient implements Closeable {
+    public interface Listener {
+        void onMessage(String topicId, long timestamp, byte[] payload);
+
+        default void onTopicDeleted(String topicId) {
+        }
+
+        // A piece of a message published with publishLarge, in order; messages from different
+        // publishers may interleave. Ignored unless overridden.
+        default void onChunk(Chunk chunk) {
+        }
+
+        // The broker closed the connection or it failed; not called after close()
+        default void onDisconnected(IOException cause) {
+        }
+    }
+
+    // A publish the broker refused because the publisher, the topic or the broker is over its
+    // limits; sending it again later may succeed
+    public static final class ThrottledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ThrottledException(String message) {
+            super(message);
+        }
+    }
+
+    // Part of a large message, already decompressed. The message is complete after the chunk that
+    // isLast; one that isAborted carries no data and means the rest is not coming, because the
+    // publisher gave up or this subscriber fell behind and the broker dropped a chunk.
+    public static final class Chunk {
+        private final String topicId;
+        private final int messageId;
+        private final long timestamp;
+        private final long totalLength;
+        private final long offset;
+        private final byte[] data;
+        private final boolean last;
+        private final boolean aborted;
+
+        Chunk(String topicId, int messageId, long timestamp, long totalLength, long offset, byte[] data, boolean last,
+              boolean aborted) {
+            this.topicId = topicId;
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+            this.totalLength = totalLength;
+            this.offset = offset;
+            this.data = data;
+            this.last = last;
+            this.aborted = aborted;
+        }
+
+        public String getTopicId() {
+            return topicId;
+        }
+
+        // Tells apart messages whose chunks interleave
+        public int getMessageId() {
+            return messageId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getTotalLength() {
+            return totalLength;
+        }
+
+        // Where data belongs in the whole message
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isLast() {
+            return last;
+        }
+
+        public boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    // A large message being received: what its first chunk said and how far it has got
+    private static final class Incoming {
+        final String topicId;
+        final long timestamp;
+        final long totalLength;
+        long sentOffset; // as the broker counts it, compressed
+        long offset;     // decompressed
+
+        Incoming(String topicId, long timestamp, long totalLength) {
+            this.topicId = topicId;
+            this.timestamp = timestamp;
+            this.totalLength = totalLength;
+        }
+    }
+
+    // Writes one request to the connection
+    private interface RequestWriter {
+        void write() throws IOException;
+    }
+
+    // A request awaiting its reply; the conversion runs on the reader thread before anything the
+    // broker sent after the reply is handled
+    private static final class Pending<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Function<BinaryProtocol.Frame, T> onReply;
+
+        Pending(Function<BinaryProtocol.Frame, T> onReply) {
+            this.onReply = onReply;
+        }
+
+        void complete(BinaryProtocol.Frame reply) {
+            if (reply.getOpcode() == BinaryProtocol.ERROR) {
+                future.completeExceptionally(new IOException(reply.getString()));
+            } else if (reply.getOpcode() == BinaryProtocol.THROTTLED) {
+                future.completeExceptionally(new ThrottledException(reply.getString()));
+            } else {
+                try {
+                    future.complete(onReply.apply(reply));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final Listener listener;
+    private final OutputStream out;
+    private final Semaphore inFlightPermits;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, Pending<?>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Integer> topicHandles = new ConcurrentHashMap<>(); // topicId -> handle
+    private final Map<Integer, String> handleTopics = new ConcurrentHashMap<>(); // handle -> topicId
+    private final AtomicInteger nextStreamId = new AtomicInteger();
+    private final Map<Integer, Incoming> incoming = new HashMap<>(); // streamId -> message; reader thread only
+    private final Inflater inflater = new Inflater(); // reader thread only
+    private volatile boolean closed;
+
+    private BrokerClient(SocketChannel channel, Listener listener, int window) throws IOException {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.listener = listener;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.inFlightPermits = new Semaphore(window);
+    }
+
+    public static BrokerClient connect(String host, int port, String name, Listener listener) throws IOException {
+        return connect(host, port, name, listener, 64);
+    }
+
+    // The name identifies the client as the publisher of the topics it creates
+    public static BrokerClient connect(String host, int port, String name, Listener listener, int window)
+        throws IOException {
+        // Opened as a channel so large messages can be sent straight from a file
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        Socket socket = channel.socket();
+        try {
+            socket.setTcpNoDelay(true);
+            PrintWriter handshake = new PrintWriter(socket.getOutputStream(), true);
+            handshake.println(BinaryProtocol.HANDSHAKE + " " + name);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (!BinaryProtocol.HANDSHAKE_OK.equals(in.readLine())) {
+                throw new IOException("Broker does not support the binary protocol.");
+            }
+            BrokerClient client = new BrokerClient(channel, listener, window);
+            // The broker sends nothing after "binary ok" until it gets a frame, so the reader
+            // above has nothing buffered
+            DataInputStream frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> client.readFrames(frames), "broker-client-" + name);
+            reader.setDaemon(true);
+            reader.start();
+            return client;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Void> create(String topicId, String topicName) throws IOException {
+        return send(new BinaryProtocol.FrameBuilder(BinaryProtocol.CREATE, nextRequestId())
+            .putString(topicId).putString(topicName), reply -> {
+                remember(topicId, reply.getInt());
+                return null;
+            });
+    }
+
+    // Resolves the topic's handle first if this client has not created or subscribed to it
+    public CompletableFuture<Void> publish(String topicId, byte[] payload) throws IOException {
+        int handle = resolve(topicId);
+        return send(new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH, nextRequestId(), 4 + payload.length)
+            .putInt(handle).putBytes(payload), reply -> null);
+    }
+
+    // Publishes a message of any size up to the broker's --max-message-bytes as a stream of chunks
+    // that subscribers receive through Listener.onChunk. Uncompressed chunks of a file go from the
+    // file to the socket without passing through the heap (FileChannel.transferTo). With compress,
+    // each chunk is deflated, unless the first one turns out not to be worth it. Completes when the
+    // broker has taken every chunk; the window bounds how many are in flight.
+    public CompletableFuture<Void> publishFile(String topicId, Path file, boolean compress) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            return publishLarge(topicId, source, source.size(), compress);
+        }
+    }
+
+    // Sends exactly length bytes read from the source
+    public CompletableFuture<Void> publishLarge(String topicId, ReadableByteChannel source, long length,
+                                                boolean compress) throws IOException {
+        int handle = resolve(topicId);
+        int streamId = nextStreamId.incrementAndGet();
+        FileChannel file = source instanceof FileChannel && !compress ? (FileChannel) source : null;
+        long position = file == null ? 0 : file.position();
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        ByteBuffer buffer = file == null ? ByteBuffer.allocate((int) Math.min(BinaryProtocol.CHUNK_SIZE, length)) : null;
+        List<CompletableFuture<Void>> replies = new ArrayList<>();
+        try {
+            long sent = 0;
+            do {
+                int size = (int) Math.min(BinaryProtocol.CHUNK_SIZE, length - sent);
+                byte flags = (byte) ((sent == 0 ? BinaryProtocol.CHUNK_FIRST : 0)
+                    | (sent + size == length ? BinaryProtocol.CHUNK_LAST : 0));
+                BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH_CHUNK,
+                    nextRequestId(), 17).putInt(handle).putInt(streamId);
+                if (file != null) {
+                    frame.putByte(flags);
+                    if (sent == 0) {
+                        frame.putLong(length);
+                    }
+                    long from = position + sent;
+                    byte[] header = frame.toHeader(size);
+                    replies.add(send(frame.getRequestId(), () -> {
+                        BinaryProtocol.write(out, header);
+                        for (long done = 0; done < size; ) {
+                            done += file.transferTo(from + done, size - done, channel);
+                        }
+                    }, reply -> null));
+                } else {
+                    buffer.clear().limit(size);
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0) {
+                            throw new IOException("Message ended after " + (sent + buffer.position()) + " of " + length + " bytes");
+                        }
+                    }
+                    byte[] compressed = deflater == null ? null : BinaryProtocol.deflate(deflater, buffer.array(), size);
+                    if (compressed == null && deflater != null && sent == 0) {
+                        deflater.end();
+                        deflater = null;
+                    }
+                    frame.putByte((byte) (flags | (compressed != null ? BinaryProtocol.CHUNK_COMPRESSED : 0)));
+                    if (sent == 0) {
+                        frame.putLong(length);
+                    }
+                    replies.add(send(compressed != null ? frame.putBytes(compressed) : frame.putBytes(buffer.flip()),
+                        reply -> null));
+                }
+                sent += size;
+            } while (sent < length && !replies.get(replies.size() - 1).isCompletedExceptionally());
+        } catch (IOException e) {
+            abandon(handle, streamId);
+            throw e;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Tells the broker a large message is not coming after all; subscribers discard what they got
+    private void abandon(int handle, int streamId) {
+        try {
+            send(new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH_CHUNK, nextRequestId())
+                .putInt(handle).putInt(streamId).putByte(BinaryProtocol.CHUNK_ABORT), reply -> null);
+        } catch (IOException e) {
+            // The connection is gone, which abandons it as well
+        }
+    }
+
+    public CompletableFuture<Void> delete(String topicId) throws IOException {
+        int handle = resolve(topicId);
+        return send(new BinaryProtocol.FrameBuilder(BinaryProtocol.DELETE, nextRequestId()).putInt(handle), reply -> {
+            forget(topicId);
+            return null;
+        });
+    }
+
+    // Topic IDs with '+' or '#' levels subscribe to every matching topic
+    public CompletableFuture<Void> subscribe(String topicId) throws IOException {
+        return subscribe(topicId, null);
+    }
+
+    // Only messages matching the filter (see the README) are delivered; null for all of them
+    public CompletableFuture<Void> subscribe(String topicId, String filter) throws IOException {
+        BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.SUBSCRIBE, nextRequestId())
+            .putString(topicId);
+        if (filter != null) {
+            frame.putByte(BinaryProtocol.REPLAY_NONE).putLong(0).putString(filter);
+        }
+        return send(frame, reply -> {
+            int handle = reply.getInt();
+            if (handle != -1) {
+                remember(topicId, handle);
+            }
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> unsubscribe(String topicId) throws IOException {
+        Integer handle = topicHandles.get(topicId);
+        if (handle == null) {
+            return send(new BinaryProtocol.FrameBuilder(BinaryProtocol.UNSUBSCRIBE_PATTERN, nextRequestId())
+                .putString(topicId), reply -> null);
+        }
+        return send(new BinaryProtocol.FrameBuilder(BinaryProtocol.UNSUBSCRIBE, nextRequestId()).putInt(handle),
+            reply -> null);
+    }
+
+    // The same text the "list" command shows
+    public CompletableFuture<String> list() throws IOException {
+        return list("");
+    }
+
+    // One page, with the options "list" takes, such as "prefix=sensors/ limit=100" or "after=<cursor>"
+    public CompletableFuture<String> list(String options) throws IOException {
+        return send(new BinaryProtocol.FrameBuilder(BinaryProtocol.LIST, nextRequestId()).putString(options),
+            reply -> new String(reply.getRemaining(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+    }
+
+    private int resolve(String topicId) throws IOException {
+        Integer handle = topicHandles.get(topicId);
+        if (handle == null) {
+            handle = await(send(new BinaryProtocol.FrameBuilder(BinaryProtocol.RESOLVE, nextRequestId())
+                .putString(topicId), reply -> {
+                    int resolved = reply.getInt();
+                    remember(topicId, resolved);
+                    return resolved;
+                }));
+        }
+        return handle;
+    }
+
+    private void remember(String topicId, int handle) {
+        topicHandles.put(topicId, handle);
+        handleTopics.put(handle, topicId);
+    }
+
+    private void forget(String topicId) {
+        Integer handle = topicHandles.remove(topicId);
+        if (handle != null) {
+            handleTopics.remove(handle);
+        }
+    }
+
+    private int nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    // Waits for a free slot in the window, then writes the request without waiting for the reply
+    private <T> CompletableFuture<T> send(BinaryProtocol.FrameBuilder frame, Function<BinaryProtocol.Frame, T> onReply)
+        throws IOException {
+        byte[] bytes = frame.toByteArray();
+        return send(frame.getRequestId(), () -> BinaryProtocol.write(out, bytes), onReply);
+    }
+
+    private <T> CompletableFuture<T> send(int requestId, RequestWriter writer, Function<BinaryProtocol.Frame, T> onReply)
+        throws IOException {
+        Pending<T> pending = new Pending<>(onReply);
+        inFlightPermits.acquireUninterruptibly();
+        inFlight.put(requestId, pending);
+        try {
+            if (socket.isClosed()) {
+                throw new IOException("Connection is closed");
+            }
+            synchronized (out) {
+                writer.write();
+            }
+        } catch (IOException e) {
+            if (inFlight.remove(requestId) != null) {
+                inFlightPermits.release();
+            }
+            throw e;
+        }
+        return pending.future;
+    }
+
+    private void readFrames(DataInputStream in) {
+        IOException failure = new IOException("Broker closed the connection");
+        try {
+            BinaryProtocol.Frame frame;
+            while ((frame = BinaryProtocol.read(in)) != null) {
+                switch (frame.getOpcode()) {
+                    case BinaryProtocol.DELIVER:
+                        String topicId = handleTopics.get(frame.getInt());
+                        long timestamp = frame.getLong();
+                        if (topicId != null) {
+                            listener.onMessage(topicId, timestamp, frame.getRemaining());
+                        }
+                        break;
+                    case BinaryProtocol.DELIVER_CHUNK:
+                        deliverChunk(frame);
+                        break;
+                    case BinaryProtocol.TOPIC_INFO:
+                        // A topic matching one of our wildcard subscriptions
+                        int handle = frame.getInt();
+                        handleTopics.put(handle, frame.getString());
+                        break;
+                    case BinaryProtocol.TOPIC_DELETED:
+                        String deleted = handleTopics.remove(frame.getInt());
+                        if (deleted != null) {
+                            topicHandles.remove(deleted);
+                            listener.onTopicDeleted(deleted);
+                        }
+                        break;
+                    default:
+                        Pending<?> pending = inFlight.remove(frame.getRequestId());
+                        if (pending != null) {
+                            inFlightPermits.release();
+                            pending.complete(frame);
+                        }
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (Integer requestId : inFlight.keySet()) {
+            Pending<?> pending = inFlight.remove(requestId);
+            if (pending != null) {
+                inFlightPermits.release();
+                pending.future.completeExceptionally(failure);
+            }
+        }
+        if (!closed) {
+            listener.onDisconnected(failure);
+        }
+    }
+
+    // Decompresses the chunk and hands it to the listener; a chunk that does not follow on from
+    // the previous one means some were dropped, and the message is given up
+    private void deliverChunk(BinaryProtocol.Frame frame) throws IOException {
+        String topicId = handleTopics.get(frame.getInt());
+        int streamId = frame.getInt();
+        byte flags = frame.getByte();
+        long sentOffset = frame.getLong();
+        Incoming message = incoming.get(streamId);
+        if ((flags & BinaryProtocol.CHUNK_FIRST) != 0) {
+            message = new Incoming(topicId, frame.getLong(), frame.getLong());
+            if (topicId != null) {
+                incoming.put(streamId, message);
+            }
+        }
+        if (message == null || topicId == null) {
+            return;
+        }
+        boolean aborted = (flags & BinaryProtocol.CHUNK_ABORT) != 0 || sentOffset != message.sentOffset;
+        ByteBuffer bytes = frame.getRemainingBuffer();
+        message.sentOffset += bytes.remaining();
+        byte[] data;
+        if (aborted) {
+            data = new byte[0];
+        } else if ((flags & BinaryProtocol.CHUNK_COMPRESSED) != 0) {
+            data = BinaryProtocol.inflate(inflater, bytes);
+        } else {
+            data = new byte[bytes.remaining()];
+            bytes.get(data);
+        }
+        boolean last = !aborted && (flags & BinaryProtocol.CHUNK_LAST) != 0;
+        if (aborted || last) {
+            incoming.remove(streamId);
+        }
+        listener.onChunk(new Chunk(message.topicId, streamId, message.timestamp, message.totalLength, message.offset,
+            data, last, aborted));
+        message.offset += data.length;
+    }
+
+    // Waits for a request's reply, rethrowing the broker's error as an IOException
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+}
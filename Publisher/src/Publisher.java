@@ -1,31 +1,72 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 public class Publisher {
     private String publisherName;
     private String brokerIp;
     private int brokerPort;
+    private boolean binary;
+
+    // Text protocol
+    private PrintWriter out;
+    private BufferedReader in;
+
+    // Binary protocol: up to `window` requests in flight, replies matched to them by requestId
+    private OutputStream binaryOut;
+    private Map<String, Integer> topicHandles = new ConcurrentHashMap<>(); // topicId -> broker handle
+    private Map<Integer, CompletableFuture<BinaryProtocol.Frame>> inFlight = new ConcurrentHashMap<>();
+    private Semaphore inFlightPermits;
+    private AtomicInteger nextRequestId = new AtomicInteger();
+    private AtomicInteger nextStreamId = new AtomicInteger();
 
     public Publisher(String publisherName, String brokerIp, int brokerPort) {
+        this(publisherName, brokerIp, brokerPort, false, 1);
+    }
+
+    public Publisher(String publisherName, String brokerIp, int brokerPort, boolean binary) {
+        this(publisherName, brokerIp, brokerPort, binary, 64);
+    }
+
+    public Publisher(String publisherName, String brokerIp, int brokerPort, boolean binary, int window) {
         this.publisherName = publisherName;
         this.brokerIp = brokerIp;
         this.brokerPort = brokerPort;
+        this.binary = binary;
+        this.inFlightPermits = new Semaphore(window);
     }
 
     public void start() {
         try (Socket socket = new Socket(brokerIp, brokerPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in))) {
 
+            connect(socket);
             System.out.println("Connected to Broker.");
 
             String input;
             while (true) {
-                System.out.print("Please select command: create, publish, show, delete \n");
+                System.out.print("Please select command: create, publish, publishBatch, publishFile, show, delete \n");
                 input = consoleInput.readLine();
                 String[] commands = input.split(" ", 2);
                 String action = commands[0];
@@ -41,8 +82,7 @@ public class Publisher {
                             } else {
                                 String topicId = createParts[0];
                                 String topicName = createParts[1];
-                                out.println("create " + topicId + " " + topicName + " " + publisherName);
-                                System.out.println(in.readLine());
+                                create(topicId, topicName);
                             }
                         }
                         break;
@@ -60,34 +100,45 @@ public class Publisher {
                                 if (message.length() > 100) {
                                     System.out.println("Message is too long. Max 100 characters.");
                                 } else {
-                                    out.println("publish " + topicId + " " + publisherName + " " + message);
-                                    System.out.println(in.readLine());
+                                    System.out.println(await(publishAsync(topicId, message)));
                                 }
                             }
                         }
                         break;
-                        
-                    case "show":
-                        if (commands.length == 1) {
-                            out.println("showAll " + publisherName);
-                            String response;
-                            while (!(response = in.readLine()).equals("END_OF_RESPONSE")) {
-                                System.out.println(response);
-                            }
+
+                    case "publishBatch":
+                        List<String[]> messages = parseBatch(commands.length < 2 ? "" : commands[1]);
+                        if (messages != null) {
+                            System.out.println(await(publishBatch(messages)));
+                        }
+                        break;
+
+                    case "publishFile":
+                        String[] fileParts = commands.length < 2 ? new String[0] : commands[1].split(" ");
+                        if (fileParts.length < 2 || (fileParts.length == 3 && !fileParts[2].equals("compress"))
+                            || fileParts.length > 3) {
+                            System.out.println("Usage: publishFile {topic_id} {path} [compress]");
+                        } else if (!binary) {
+                            System.out.println("publishFile needs --binary.");
                         } else {
-                            String topicId = commands[1];
-                            out.println("show " + topicId + " " + publisherName);
-                            System.out.println(in.readLine());
+                            try {
+                                System.out.println(await(publishFile(fileParts[0], Path.of(fileParts[1]), fileParts.length == 3)));
+                            } catch (NoSuchFileException e) {
+                                System.out.println("error No such file: " + e.getMessage());
+                            }
                         }
                         break;
 
+                    case "show":
+                        show(commands.length == 1 ? null : commands[1]);
+                        break;
+
                     case "delete":
                         if (commands.length < 2) {
                             System.out.println("Usage: delete {topic_id}");
                         } else {
                             String deleteTopicId = commands[1];
-                            out.println("delete " + deleteTopicId + " " + publisherName);
-                            System.out.println(in.readLine());
+                            delete(deleteTopicId);
                         }
                         break;
 
@@ -101,15 +152,312 @@ public class Publisher {
         }
     }
 
+    // Sets up the streams; in binary mode also starts the thread that completes in-flight requests
+    public void connect(Socket socket) throws IOException {
+        out = new PrintWriter(socket.getOutputStream(), true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        if (binary) {
+            // Switch protocols, then read frames straight from the socket
+            out.println(BinaryProtocol.HANDSHAKE + " " + publisherName);
+            if (!BinaryProtocol.HANDSHAKE_OK.equals(in.readLine())) {
+                throw new IOException("Broker does not support the binary protocol.");
+            }
+            binaryOut = new BufferedOutputStream(socket.getOutputStream());
+            DataInputStream binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread replies = new Thread(() -> readReplies(binaryIn), "publisher-replies");
+            replies.setDaemon(true);
+            replies.start();
+        }
+    }
+
+    // "{topic_id} {message} | {topic_id} {message} ..."; null (after printing why) if malformed
+    private static List<String[]> parseBatch(String batch) {
+        List<String[]> messages = new ArrayList<>();
+        for (String entry : batch.split("\\|")) {
+            String[] parts = entry.trim().split(" ", 2);
+            if (parts.length < 2 || parts[1].trim().isEmpty()) {
+                System.out.println("Usage: publishBatch {topic_id} {message} | {topic_id} {message} ...");
+                return null;
+            }
+            if (parts[1].trim().length() > 100) {
+                System.out.println("Message is too long. Max 100 characters.");
+                return null;
+            }
+            messages.add(new String[] {parts[0], parts[1].trim()});
+        }
+        return messages;
+    }
+
+    private void create(String topicId, String topicName) throws IOException {
+        if (!binary) {
+            out.println("create " + topicId + " " + topicName + " " + publisherName);
+            System.out.println(in.readLine());
+            return;
+        }
+        BinaryProtocol.Frame reply = request(new BinaryProtocol.FrameBuilder(BinaryProtocol.CREATE, nextRequestId())
+            .putString(topicId).putString(topicName));
+        if (reply.getOpcode() == BinaryProtocol.OK) {
+            topicHandles.put(topicId, reply.getInt());
+        }
+        System.out.println(replyText(reply));
+    }
+
+    // Returns as soon as the publish is written; completes with the broker's reply. In binary mode
+    // up to `window` publishes may be awaiting replies at once, in text mode the call blocks.
+    public CompletableFuture<String> publishAsync(String topicId, String message) throws IOException {
+        if (!binary) {
+            out.println("publish " + topicId + " " + publisherName + " " + message);
+            return CompletableFuture.completedFuture(in.readLine());
+        }
+        Integer handle = resolve(topicId);
+        if (handle == null) {
+            return CompletableFuture.completedFuture("error Topic ID not found.");
+        }
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        return sendAsync(new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH, nextRequestId(), 4 + payload.length)
+            .putInt(handle).putBytes(payload)).thenApply(Publisher::replyText);
+    }
+
+    // Publishes {topicId, message} pairs with one frame and one acknowledgement; the broker
+    // publishes all of them or, if any is rejected, none. Text mode pipelines plain publishes.
+    public CompletableFuture<String> publishBatch(List<String[]> messages) throws IOException {
+        if (!binary) {
+            for (String[] message : messages) {
+                out.println("publish " + message[0] + " " + publisherName + " " + message[1]);
+            }
+            String result = "success";
+            for (int i = 0; i < messages.size(); i++) {
+                String reply = in.readLine();
+                if (!"success".equals(reply) && result.equals("success")) {
+                    result = reply;
+                }
+            }
+            return CompletableFuture.completedFuture(result);
+        }
+        BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH_BATCH, nextRequestId(),
+            4 + messages.size() * 64);
+        frame.putInt(messages.size());
+        for (String[] message : messages) {
+            Integer handle = resolve(message[0]);
+            if (handle == null) {
+                return CompletableFuture.completedFuture("error Topic ID " + message[0] + " not found.");
+            }
+            frame.putInt(handle).putLengthAndBytes(message[1].getBytes(StandardCharsets.UTF_8));
+        }
+        if (frame.length() > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Batch too large for one frame: " + frame.length() + " bytes");
+        }
+        return sendAsync(frame).thenApply(Publisher::replyText);
+    }
+
+    // Sends a file of any size up to the broker's --max-message-bytes as a stream of chunks, read
+    // one at a time, so it never has to fit in memory. With compress each chunk is deflated, unless
+    // the first one shows the file does not compress. Binary mode only.
+    public CompletableFuture<String> publishFile(String topicId, Path file, boolean compress) throws IOException {
+        Integer handle = resolve(topicId);
+        if (handle == null) {
+            return CompletableFuture.completedFuture("error Topic ID not found.");
+        }
+        int streamId = nextStreamId.incrementAndGet();
+        CompletableFuture<String> result = CompletableFuture.completedFuture("success");
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = source.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BinaryProtocol.CHUNK_SIZE, length));
+            long sent = 0;
+            do {
+                int size = (int) Math.min(BinaryProtocol.CHUNK_SIZE, length - sent);
+                buffer.clear().limit(size);
+                while (buffer.hasRemaining() && source.read(buffer) >= 0) {
+                }
+                if (buffer.hasRemaining()) {
+                    if (sent > 0) {
+                        // Subscribers discard what they have of it
+                        sendAsync(new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH_CHUNK, nextRequestId())
+                            .putInt(handle).putInt(streamId).putByte(BinaryProtocol.CHUNK_ABORT));
+                    }
+                    throw new IOException("File shrank while being sent: " + file);
+                }
+                byte[] compressed = deflater == null ? null : BinaryProtocol.deflate(deflater, buffer.array(), size);
+                if (compressed == null && deflater != null && sent == 0) {
+                    deflater.end();
+                    deflater = null;
+                }
+                byte flags = (byte) ((sent == 0 ? BinaryProtocol.CHUNK_FIRST : 0)
+                    | (sent + size == length ? BinaryProtocol.CHUNK_LAST : 0)
+                    | (compressed != null ? BinaryProtocol.CHUNK_COMPRESSED : 0));
+                BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder(BinaryProtocol.PUBLISH_CHUNK,
+                    nextRequestId(), 17 + size).putInt(handle).putInt(streamId).putByte(flags);
+                if (sent == 0) {
+                    frame.putLong(length);
+                }
+                CompletableFuture<String> reply = sendAsync(compressed != null ? frame.putBytes(compressed)
+                    : frame.putBytes(buffer.flip())).thenApply(Publisher::replyText);
+                // The first refusal is the answer; chunks after it are refused too
+                result = result.thenCombine(reply, (before, now) -> before.equals("success") ? now : before);
+                sent += size;
+            } while (sent < length);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return result;
+    }
+
+    // A topic, or all of them a page at a time: "show", or "show prefix=<p> after=<cursor> limit=<n>"
+    private void show(String topicId) throws IOException {
+        String options = "";
+        if (topicId != null && topicId.contains("=")) {
+            options = topicId;
+            topicId = null;
+        }
+        if (!binary) {
+            if (topicId == null) {
+                out.println(options.isEmpty() ? "showAll " + publisherName : "showAll " + publisherName + " " + options);
+            } else {
+                out.println("show " + topicId + " " + publisherName);
+            }
+            String response;
+            while (!(response = in.readLine()).equals("END_OF_RESPONSE")) {
+                System.out.println(response);
+            }
+            return;
+        }
+        BinaryProtocol.Frame reply = request(new BinaryProtocol.FrameBuilder(BinaryProtocol.SHOW, nextRequestId())
+            .putString(topicId == null ? "" : topicId).putString(options));
+        String text = new String(reply.getRemaining(), StandardCharsets.UTF_8).replace("END_OF_RESPONSE\n", "");
+        System.out.print(text);
+    }
+
+    private void delete(String topicId) throws IOException {
+        if (!binary) {
+            out.println("delete " + topicId + " " + publisherName);
+            System.out.println(in.readLine());
+            return;
+        }
+        Integer handle = resolve(topicId);
+        if (handle != null) {
+            BinaryProtocol.Frame reply = request(new BinaryProtocol.FrameBuilder(BinaryProtocol.DELETE, nextRequestId())
+                .putInt(handle));
+            if (reply.getOpcode() == BinaryProtocol.OK) {
+                topicHandles.remove(topicId);
+            }
+            System.out.println(replyText(reply));
+        } else {
+            System.out.println("error Topic ID not found.");
+        }
+    }
+
+    // Looks up the broker's handle for a topic this session did not create itself; null if unknown
+    private Integer resolve(String topicId) throws IOException {
+        Integer handle = topicHandles.get(topicId);
+        if (handle == null) {
+            BinaryProtocol.Frame reply = request(new BinaryProtocol.FrameBuilder(BinaryProtocol.RESOLVE, nextRequestId())
+                .putString(topicId));
+            if (reply.getOpcode() != BinaryProtocol.OK) {
+                return null;
+            }
+            handle = reply.getInt();
+            topicHandles.put(topicId, handle);
+        }
+        return handle;
+    }
+
+    private int nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    // Sends a request and waits for its reply
+    private BinaryProtocol.Frame request(BinaryProtocol.FrameBuilder frame) throws IOException {
+        return await(sendAsync(frame));
+    }
+
+    // Waits for a free slot in the window, then writes the request without waiting for the reply
+    private CompletableFuture<BinaryProtocol.Frame> sendAsync(BinaryProtocol.FrameBuilder frame) throws IOException {
+        byte[] bytes = frame.toByteArray();
+        int requestId = frame.getRequestId();
+        CompletableFuture<BinaryProtocol.Frame> reply = new CompletableFuture<>();
+        inFlightPermits.acquireUninterruptibly();
+        inFlight.put(requestId, reply);
+        try {
+            synchronized (binaryOut) {
+                BinaryProtocol.write(binaryOut, bytes);
+            }
+        } catch (IOException e) {
+            inFlight.remove(requestId);
+            inFlightPermits.release();
+            throw e;
+        }
+        return reply;
+    }
+
+    // Completes in-flight requests as their replies arrive, in whatever order that is
+    private void readReplies(DataInputStream binaryIn) {
+        IOException failure = new IOException("Broker closed the connection");
+        try {
+            BinaryProtocol.Frame frame;
+            while ((frame = BinaryProtocol.read(binaryIn)) != null) {
+                CompletableFuture<BinaryProtocol.Frame> reply = inFlight.remove(frame.getRequestId());
+                if (reply != null) {
+                    inFlightPermits.release();
+                    reply.complete(frame);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (Integer requestId : inFlight.keySet()) {
+            CompletableFuture<BinaryProtocol.Frame> reply = inFlight.remove(requestId);
+            if (reply != null) {
+                inFlightPermits.release();
+                reply.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Renders a binary reply the way the text protocol would show it
+    private static String replyText(BinaryProtocol.Frame reply) {
+        switch (reply.getOpcode()) {
+            case BinaryProtocol.OK:
+                return "success";
+            case BinaryProtocol.THROTTLED:
+                return "throttled " + reply.getString();
+            default:
+                return "error " + reply.getString();
+        }
+    }
+
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java Publisher <username> <broker_ip> <broker_port>");
+        String usage = "Usage: java Publisher <username> <broker_ip> <broker_port> [--binary] [--window=<n>]";
+        if (args.length < 3) {
+            System.out.println(usage);
             return;
         }
         String publisherName = args[0];
         String brokerIp = args[1];
         int brokerPort = Integer.parseInt(args[2]);
-        Publisher publisher = new Publisher(publisherName, brokerIp, brokerPort);
+        boolean binary = false;
+        int window = 64;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].startsWith("--window=")) {
+                window = Integer.parseInt(args[i].substring("--window=".length()));
+            } else {
+                System.out.println(usage);
+                return;
+            }
+        }
+        Publisher publisher = new Publisher(publisherName, brokerIp, brokerPort, binary, window);
         publisher.start();
     }
 }
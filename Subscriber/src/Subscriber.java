@@ -1,20 +1,94 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
 
 public class Subscriber {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+        DateTimeFormatter.ofPattern("dd/MM HH:mm:ss").withZone(ZoneId.systemDefault());
+
     private String brokerIp;
     private int brokerPort;
+    private String username;
     private Set<String> subscribedTopics; // Track subscribed topics
+    private Map<String, String> subscriptionFilters = new ConcurrentHashMap<>(); // topicId -> filter, if any
+    private boolean virtualThreads;
+    private boolean binary;
+
+    // Binary protocol: topics are known by broker handles, learned from subscribe replies
+    private OutputStream binaryOut;
+    private Map<Integer, String> pendingSubscribes = new ConcurrentHashMap<>(); // requestId -> topicId
+    private Map<Integer, String[]> handleTopics = new ConcurrentHashMap<>(); // handle -> {topicId, topicName}
+    private Map<String, Integer> topicHandles = new ConcurrentHashMap<>(); // topicId -> handle
+    private Set<String> subscribedPatterns = ConcurrentHashMap.newKeySet(); // wildcard subscriptions
+    private AtomicInteger nextRequestId = new AtomicInteger();
+    // With a session the Broker keeps our subscriptions while we are disconnected; we count the
+    // frames received so that after reconnecting it sends only what we missed
+    private String sessionId;
+    private long framesReceived; // listener thread only
+    // Large messages being received, written to a file chunk by chunk; listener thread only
+    private Map<Integer, IncomingFile> incoming = new HashMap<>(); // streamId -> message
+    private Inflater inflater = new Inflater();
+
+    private static final class IncomingFile {
+        final String[] topic;
+        final long timestamp;
+        final Path path;
+        final FileChannel file;
+        long sentOffset; // as the broker counts it, compressed
+
+        IncomingFile(String[] topic, long timestamp, Path path) throws IOException {
+            this.topic = topic;
+            this.timestamp = timestamp;
+            this.path = path;
+            this.file = FileChannel.open(path, StandardOpenOption.WRITE);
+        }
+    }
 
     public Subscriber(String brokerIp, int brokerPort) {
+        this(brokerIp, brokerPort, false);
+    }
+
+    public Subscriber(String brokerIp, int brokerPort, boolean virtualThreads) {
+        this("", brokerIp, brokerPort, virtualThreads, false);
+    }
+
+    public Subscriber(String username, String brokerIp, int brokerPort, boolean virtualThreads, boolean binary) {
+        this.username = username;
         this.brokerIp = brokerIp;
         this.brokerPort = brokerPort;
-        this.subscribedTopics = new HashSet<>(); // Initialize the subscription set
+        // Changed by console commands and iterated by the thread that resumes the session
+        this.subscribedTopics = ConcurrentHashMap.newKeySet();
+        this.virtualThreads = virtualThreads;
+        this.binary = binary;
+    }
+
+    // A binary Subscriber that reconnects by itself, with backoff, and resumes the session
+    public Subscriber(String username, String brokerIp, int brokerPort, boolean virtualThreads, String sessionId) {
+        this(username, brokerIp, brokerPort, virtualThreads, true);
+        this.sessionId = sessionId;
     }
 
     public void start() {
@@ -23,83 +97,382 @@ public class Subscriber {
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             BufferedReader consoleInput = new BufferedReader(new InputStreamReader(System.in))) {
 
+            if (sessionId != null) {
+                openSession(socket);
+            } else if (binary) {
+                out.println(BinaryProtocol.HANDSHAKE + " " + username);
+                if (!BinaryProtocol.HANDSHAKE_OK.equals(in.readLine())) {
+                    System.out.println("Broker does not support the binary protocol.");
+                    return;
+                }
+                binaryOut = new BufferedOutputStream(socket.getOutputStream());
+            }
+
             System.out.println("Connected to Broker.\nPlease select command: list, sub, current, unsub");
 
             // Start a thread to listen for incoming messages from the broker
-            new Thread(() -> {
+            Runnable listener;
+            if (binary) {
+                DataInputStream binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                listener = sessionId != null ? () -> keepSession(binaryIn) : () -> listenBinary(binaryIn);
+            } else {
+                listener = () -> listenText(in);
+            }
+            if (virtualThreads) {
+                Thread.ofVirtual().start(listener);
+            } else {
+                new Thread(listener).start();
+            }
+
+            // Main loop to handle user input
+            while (true) {
+                String input = consoleInput.readLine();
                 try {
-                    StringBuilder messageBuffer = new StringBuilder();
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        if (line.trim().isEmpty()) {
-                            if (messageBuffer.length() > 0) {
-                                System.out.println(messageBuffer.toString().trim());
-                                messageBuffer.setLength(0);
-                                System.out.print("Please select command: list, sub, current, unsub\n");
-                            }
+                    runCommand(input, out);
+                } catch (IOException e) {
+                    if (sessionId == null) {
+                        throw e;
+                    }
+                    // keepSession is reconnecting meanwhile; the command was not sent
+                    System.out.println("Not connected to Broker, retrying; enter the command again once reconnected.");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Runs one console command; text protocol commands go to out
+    private void runCommand(String input, PrintWriter out) throws IOException {
+        String[] commands = input.split(" ", 2);
+        String action = commands[0];
+
+        switch (action) {
+            case "list":
+                // Optionally: prefix=<p> or name=<n>, after=<cursor from "next">, limit=<n>
+                String listOptions = commands.length > 1 ? commands[1] : "";
+                if (binary) {
+                    sendFrame(new BinaryProtocol.FrameBuilder(BinaryProtocol.LIST, nextRequestId.incrementAndGet())
+                        .putString(listOptions));
+                } else {
+                    out.println(listOptions.isEmpty() ? "list" : "list " + listOptions);
+                }
+                break;
+
+            case "sub":
+                // Optionally replays a persisted topic first: offset=<n> or since=<epoch millis>,
+                // negative for the last n messages or that many milliseconds ago. A trailing
+                // "where <filter>" is checked by the broker.
+                String[] clauses = commands.length > 1 ? commands[1].split(" where ", 2) : new String[] {""};
+                String filter = clauses.length > 1 ? clauses[1] : null;
+                String[] arguments = clauses[0].isEmpty() ? new String[0] : clauses[0].split(" ");
+                String[] replay = arguments.length > 1 ? arguments[1].split("=", 2) : null;
+                if (arguments.length < 1 || (replay != null && (replay.length < 2
+                        || !(replay[0].equals("offset") || replay[0].equals("since"))
+                        || !replay[1].matches("-?\\d+")))) {
+                    System.out.println("Usage: sub {topic_id} [offset=<n>|since=<epoch millis>] [where <filter>]");
+                } else {
+                    String topicId = arguments[0];
+                    if (binary) {
+                        subscribe(topicId, replay, filter);
+                    } else {
+                        out.println("subscribe " + topicId + (replay != null ? " " + arguments[1] : "")
+                            + (filter != null ? " where " + filter : ""));
+                    }
+                    subscribedTopics.add(topicId);
+                    if (filter != null) {
+                        subscriptionFilters.put(topicId, filter);
+                    } else {
+                        subscriptionFilters.remove(topicId);
+                    }
+                }
+                break;
+
+            case "current":
+                if (binary) {
+                    sendFrame(new BinaryProtocol.FrameBuilder(BinaryProtocol.CURRENT, nextRequestId.incrementAndGet()));
+                } else {
+                    out.println("current");
+                }
+                break;
+
+            case "unsub":
+                if (commands.length < 2) {
+                    System.out.println("Usage: unsub {topic_id}");
+                } else {
+                    String topicId = commands[1];
+                    if (binary) {
+                        Integer handle = topicHandles.get(topicId);
+                        if (subscribedPatterns.remove(topicId)) {
+                            sendFrame(new BinaryProtocol.FrameBuilder(BinaryProtocol.UNSUBSCRIBE_PATTERN, nextRequestId.incrementAndGet())
+                                .putString(topicId));
+                        } else if (handle == null) {
+                            System.out.println("exception Topic ID was not subscribed.");
                         } else {
-                            messageBuffer.append(line).append("\n");
+                            sendFrame(new BinaryProtocol.FrameBuilder(BinaryProtocol.UNSUBSCRIBE, nextRequestId.incrementAndGet())
+                                .putInt(handle));
                         }
+                    } else {
+                        out.println("unsubscribe " + topicId);
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    subscribedTopics.remove(topicId);
+                    subscriptionFilters.remove(topicId);
                 }
-            }).start();
+                break;
 
-            // Main loop to handle user input
-            String input;
-            while (true) {
-                input = consoleInput.readLine();
-                String[] commands = input.split(" ", 2);
-                String action = commands[0];
+            default:
+                System.out.println("Invalid command. Available commands: list, sub {topic_id}, current, unsub {topic_id}");
+                break;
+        }
+    }
 
-                switch (action) {
-                    case "list":
-                        out.println("list");
+    // Text protocol: replies and messages are terminated by blank lines
+    private void listenText(BufferedReader in) {
+        try {
+            StringBuilder messageBuffer = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    if (messageBuffer.length() > 0) {
+                        System.out.println(messageBuffer.toString().trim());
+                        messageBuffer.setLength(0);
+                        System.out.print("Please select command: list, sub, current, unsub\n");
+                    }
+                } else {
+                    messageBuffer.append(line).append("\n");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // replay is {"offset"|"since", value} or null
+    private void subscribe(String topicId, String[] replay, String filter) throws IOException {
+        int requestId = nextRequestId.incrementAndGet();
+        pendingSubscribes.put(requestId, topicId);
+        BinaryProtocol.FrameBuilder frame =
+            new BinaryProtocol.FrameBuilder(BinaryProtocol.SUBSCRIBE, requestId).putString(topicId);
+        if (replay != null) {
+            frame.putByte(replay[0].equals("since") ? BinaryProtocol.REPLAY_SINCE : BinaryProtocol.REPLAY_OFFSET)
+                .putLong(Long.parseLong(replay[1]));
+        } else if (filter != null) {
+            frame.putByte(BinaryProtocol.REPLAY_NONE).putLong(0);
+        }
+        if (filter != null) {
+            frame.putString(filter);
+        }
+        sendFrame(frame);
+    }
+
+    // Sends "session <id> <name> <frames received>" and reads the reply a byte at a time, since the
+    // frames the Broker replays follow it at once. The reply names the first frame we get next: one
+    // past what we have if nothing was lost, later if the Broker's backlog moved on, and 1 again if
+    // it no longer knew the session, which then has to subscribe again.
+    private void openSession(Socket socket) throws IOException {
+        OutputStream raw = socket.getOutputStream();
+        raw.write(("session " + sessionId + " " + username + " " + framesReceived + "\n").getBytes(StandardCharsets.UTF_8));
+        raw.flush();
+        String reply = readLine(socket.getInputStream());
+        if (reply == null || !reply.startsWith("session ok ")) {
+            throw new IOException("Broker refused the session: " + reply);
+        }
+        long from = Long.parseLong(reply.substring("session ok ".length()));
+        synchronized (this) {
+            binaryOut = new BufferedOutputStream(raw);
+        }
+        if (from <= framesReceived) {
+            System.out.println("The Broker no longer had our session; subscribing again.");
+            handleTopics.clear();
+            topicHandles.clear();
+            subscribedPatterns.clear();
+            for (String topicId : subscribedTopics) {
+                subscribe(topicId, null, subscriptionFilters.get(topicId));
+            }
+        } else if (from > framesReceived + 1) {
+            System.out.println((from - framesReceived - 1) + " messages and replies were lost while disconnected.");
+        }
+        framesReceived = from - 1;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    // Listens, and whenever the connection is lost reconnects with exponential backoff and jitter
+    // (0.1 s doubling to 10 s) and resumes the session
+    private void keepSession(DataInputStream in) {
+        while (true) {
+            listenBinary(in);
+            System.out.println("Connection to Broker lost; reconnecting.");
+            long backoff = 100;
+            while (true) {
+                try {
+                    Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                    Socket socket = new Socket(brokerIp, brokerPort);
+                    try {
+                        openSession(socket);
+                        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
                         break;
+                    } catch (IOException e) {
+                        socket.close();
+                        throw e;
+                    }
+                } catch (IOException e) {
+                    backoff = Math.min(backoff * 2, 10000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            System.out.println("Reconnected to Broker.");
+        }
+    }
 
-                    case "sub":
-                        if (commands.length < 2) {
-                            System.out.println("Usage: sub {topic_id}");
-                        } else {
-                            String topicId = commands[1];
-                            out.println("subscribe " + topicId);
-                            subscribedTopics.add(topicId);
+    // Binary protocol: every frame is one complete reply or message
+    private void listenBinary(DataInputStream in) {
+        try {
+            BinaryProtocol.Frame frame;
+            while ((frame = BinaryProtocol.read(in)) != null) {
+                framesReceived++;
+                switch (frame.getOpcode()) {
+                    case BinaryProtocol.DELIVER:
+                        String[] topic = handleTopics.getOrDefault(frame.getInt(), new String[] {"?", "?"});
+                        String timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(frame.getLong()));
+                        String message = new String(frame.getRemaining(), StandardCharsets.UTF_8);
+                        System.out.println(timestamp + " " + topic[0] + ":" + topic[1] + ": " + message);
+                        break;
+                    case BinaryProtocol.DELIVER_CHUNK:
+                        if (!receiveChunk(frame)) {
+                            continue;
                         }
                         break;
-
-                    case "current":
-                        out.println("current");
+                    case BinaryProtocol.TOPIC_DELETED:
+                        String[] deleted = handleTopics.remove(frame.getInt());
+                        if (deleted != null) {
+                            topicHandles.remove(deleted[0]);
+                            System.out.println(deleted[0] + ":" + deleted[1] + ": Topic is deleted");
+                        }
                         break;
-
-                    case "unsub":
-                        if (commands.length < 2) {
-                            System.out.println("Usage: unsub {topic_id}");
-                        } else {
-                            String topicId = commands[1];
-                            out.println("unsubscribe " + topicId);
-                            subscribedTopics.remove(topicId);
+                    case BinaryProtocol.OK:
+                        String topicId = pendingSubscribes.remove(frame.getRequestId());
+                        int handle = frame.getInt();
+                        if (topicId != null && handle == -1) {
+                            subscribedPatterns.add(topicId);
+                        } else if (topicId != null) {
+                            handleTopics.put(handle, new String[] {topicId, frame.getString()});
+                            topicHandles.put(topicId, handle);
                         }
+                        System.out.println("success");
                         break;
-
+                    case BinaryProtocol.ERROR:
+                        pendingSubscribes.remove(frame.getRequestId());
+                        System.out.println("error " + frame.getString());
+                        break;
+                    case BinaryProtocol.TEXT:
+                        System.out.println(new String(frame.getRemaining(), StandardCharsets.UTF_8).trim());
+                        break;
+                    case BinaryProtocol.TOPIC_INFO:
+                        // A topic matching one of our wildcard subscriptions; nothing to show yet
+                        handleTopics.put(frame.getInt(), new String[] {frame.getString(), frame.getString()});
+                        continue;
                     default:
-                        System.out.println("Invalid command. Available commands: list, sub {topic_id}, current, unsub {topic_id}");
                         break;
                 }
+                System.out.print("Please select command: list, sub, current, unsub\n");
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (sessionId == null) {
+                e.printStackTrace();
+            }
         }
     }
 
+    // Appends the chunk to its message's file; true once the message is complete or abandoned and
+    // has been reported
+    private boolean receiveChunk(BinaryProtocol.Frame frame) throws IOException {
+        String[] topic = handleTopics.getOrDefault(frame.getInt(), new String[] {"?", "?"});
+        int streamId = frame.getInt();
+        byte flags = frame.getByte();
+        long sentOffset = frame.getLong();
+        IncomingFile message = incoming.get(streamId);
+        if ((flags & BinaryProtocol.CHUNK_FIRST) != 0) {
+            long timestamp = frame.getLong();
+            frame.getLong(); // total length
+            message = new IncomingFile(topic, timestamp, Files.createTempFile("message-", ".bin"));
+            incoming.put(streamId, message);
+        }
+        if (message == null) {
+            return false;
+        }
+        String timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(message.timestamp));
+        if ((flags & BinaryProtocol.CHUNK_ABORT) != 0 || sentOffset != message.sentOffset) {
+            incoming.remove(streamId);
+            message.file.close();
+            Files.delete(message.path);
+            System.out.println(timestamp + " " + message.topic[0] + ":" + message.topic[1] + ": large message abandoned");
+            return true;
+        }
+        ByteBuffer bytes = frame.getRemainingBuffer();
+        message.sentOffset += bytes.remaining();
+        if ((flags & BinaryProtocol.CHUNK_COMPRESSED) != 0) {
+            bytes = ByteBuffer.wrap(BinaryProtocol.inflate(inflater, bytes));
+        }
+        while (bytes.hasRemaining()) {
+            message.file.write(bytes);
+        }
+        if ((flags & BinaryProtocol.CHUNK_LAST) == 0) {
+            return false;
+        }
+        incoming.remove(streamId);
+        long size = message.file.size();
+        message.file.close();
+        System.out.println(timestamp + " " + message.topic[0] + ":" + message.topic[1] + ": message of " + size
+            + " bytes saved to " + message.path);
+        return true;
+    }
+
+    private synchronized void sendFrame(BinaryProtocol.FrameBuilder frame) throws IOException {
+        BinaryProtocol.write(binaryOut, frame.toByteArray());
+    }
+
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java Subscriber <username> <broker_ip> <broker_port>");
+        String usage = "Usage: java Subscriber <username> <broker_ip> <broker_port> [--threads=virtual] [--binary]"
+            + " [--session=<id>]";
+        if (args.length < 3) {
+            System.out.println(usage);
             return;
         }
+        String username = args[0];
         String brokerIp = args[1];
         int brokerPort = Integer.parseInt(args[2]);
-        Subscriber subscriber = new Subscriber(brokerIp, brokerPort);
+        boolean virtualThreads = false;
+        boolean binary = false;
+        String sessionId = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--threads=virtual")) {
+                virtualThreads = true;
+            } else if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].startsWith("--session=") && args[i].length() > "--session=".length()) {
+                sessionId = args[i].substring("--session=".length());
+            } else if (!args[i].equals("--threads=platform")) {
+                System.out.println(usage);
+                return;
+            }
+        }
+        Subscriber subscriber = sessionId != null
+            ? new Subscriber(username, brokerIp, brokerPort, virtualThreads, sessionId)
+            : new Subscriber(username, brokerIp, brokerPort, virtualThreads, binary);
         subscriber.start();
     }
 }
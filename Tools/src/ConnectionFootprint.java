@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Starts a broker in each threading mode, opens idle subscriber connections in steps and prints
+// the broker's resident memory and thread count at every step (Linux only, reads /proc).
+//
+//   java Tools/src/ConnectionFootprint.java <broker-classpath> [connections per step] [steps]
+public class ConnectionFootprint {
+    private static final String[][] MODES = {
+        {"thread"},
+        {"virtual", "--threads=virtual"},
+        {"nio", "--io=nio"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java ConnectionFootprint.java <broker-classpath> [connections-per-step] [steps]");
+            return;
+        }
+        String classpath = args[0];
+        int perStep = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int steps = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int port = 17000;
+
+        System.out.printf("%-8s %12s %10s %8s%n", "mode", "connections", "rss_mb", "threads");
+        for (String[] mode : MODES) {
+            port++;
+            List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classpath, "Broker", String.valueOf(port)));
+            for (int i = 1; i < mode.length; i++) {
+                command.add(mode[i]);
+            }
+            Process broker = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            List<Socket> sockets = new ArrayList<>();
+            try {
+                Socket publisher = connect(port);
+                sockets.add(publisher);
+                new PrintWriter(publisher.getOutputStream(), true).println("create fp Footprint tool");
+
+                report(mode[0], 0, broker.pid());
+                for (int step = 1; step <= steps; step++) {
+                    for (int i = 0; i < perStep; i++) {
+                        Socket subscriber = connect(port);
+                        new PrintWriter(subscriber.getOutputStream(), true).println("subscribe fp");
+                        sockets.add(subscriber);
+                    }
+                    Thread.sleep(2000);
+                    report(mode[0], step * perStep, broker.pid());
+                }
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+                broker.destroy();
+                broker.waitFor();
+            }
+        }
+    }
+
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void report(String mode, int connections, long pid) throws IOException {
+        long rssKb = 0;
+        int threads = 0;
+        for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+            if (line.startsWith("VmRSS:")) {
+                rssKb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+            } else if (line.startsWith("Threads:")) {
+                threads = Integer.parseInt(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        System.out.printf("%-8s %12d %10d %8d%n", mode, connections, rssKb / 1024, threads);
+    }
+}
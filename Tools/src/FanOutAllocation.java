@@ -0,0 +1,75 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+// Measures heap allocated per publish for a growing number of in-memory subscribers. The slope
+// between the runs is what each extra subscriber costs on the fan-out path. Broker options such as
+// --retain=<n> may follow, to compare the cost of a feature against a plain run.
+//
+//   javac -cp <broker-classes> -d <out> Tools/src/FanOutAllocation.java
+//   java -cp <broker-classes>:<out> FanOutAllocation [broker-options]
+public class FanOutAllocation {
+    private static final int[] SUBSCRIBERS = {1, 10, 100, 1000, 10000};
+    private static final int DELIVERIES = 2000000; // per run, split across the subscribers
+
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        PrintStream console = System.out;
+
+        console.printf("%12s %18s %22s%n", "subscribers", "bytes/publish", "bytes/subscriber");
+        double baseline = 0;
+        for (int count : SUBSCRIBERS) {
+            // The broker logs every publish; keep that out of the measurement
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Broker broker = new Broker(0, new ArrayList<>(), BrokerOptions.parse(args, new ArrayList<>()));
+            NullConnection publisher = new NullConnection();
+            broker.handleCommand("create bench Bench alice", publisher);
+            List<NullConnection> subscribers = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                NullConnection subscriber = new NullConnection();
+                broker.handleCommand("subscribe bench", subscriber);
+                subscribers.add(subscriber);
+            }
+
+            int publishes = Math.max(200, DELIVERIES / count);
+            String command = "publish bench alice price=101.25 status=OK";
+            for (int i = 0; i < publishes; i++) {
+                broker.handleCommand(command, publisher);
+            }
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < publishes; i++) {
+                broker.handleCommand(command, publisher);
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            System.setOut(console);
+
+            double perPublish = (double) allocated / publishes;
+            if (count == SUBSCRIBERS[0]) {
+                baseline = perPublish;
+                console.printf("%12d %18.1f %22s%n", count, perPublish, "-");
+            } else {
+                console.printf("%12d %18.1f %22.2f%n", count, perPublish,
+                    (perPublish - baseline) / (count - SUBSCRIBERS[0]));
+            }
+        }
+    }
+
+    private static final class NullConnection extends ClientConnection {
+        @Override
+        public void send(byte[] frame) {
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
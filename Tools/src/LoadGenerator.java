@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// End-to-end load test: starts a cluster of Brokers in this JVM, connects publishers and
+// subscribers to them round robin with BrokerClient, and publishes at a fixed total rate. Each
+// publisher creates its own topic and every subscriber subscribes to all of them, so most messages
+// cross a broker link when there are several Brokers. Latency runs from the moment a message was
+// due to be sent, not when it actually was, so a stalled publisher shows up in the percentiles
+// instead of hiding them (coordinated omission). Remaining arguments are passed to every Broker.
+//
+//   mvn package
+//   java -jar Tools/target/tools.jar [--brokers=1] [--publishers=1] [--subscribers=1] [--rate=10000]
+//       [--payload=100] [--seconds=10] [--warmup=2] [broker-options]
+public class LoadGenerator {
+    private static final Recorder latencies = new Recorder(TimeUnit.SECONDS.toNanos(60), 3);
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static volatile long measureFrom = Long.MAX_VALUE; // messages due before this are warmup
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        BrokerOptions options = BrokerOptions.parse(args, positional);
+        int brokerCount = options.getInt("brokers", 1);
+        int publisherCount = options.getInt("publishers", 1);
+        int subscriberCount = options.getInt("subscribers", 1);
+        int rate = options.getInt("rate", 10000);
+        int payloadBytes = Math.max(8, options.getInt("payload", 100));
+        int seconds = options.getInt("seconds", 10);
+        int warmupSeconds = options.getInt("warmup", 2);
+        PrintStream console = System.out;
+
+        // The Brokers log every command; keep that off the console
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<Broker> brokers = new ArrayList<>();
+        int[] ports = new int[brokerCount];
+        for (int i = 0; i < brokerCount; i++) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                ports[i] = probe.getLocalPort();
+            }
+            // Each Broker dials the ones before it, which dial back, so they end up fully meshed
+            List<String> peers = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                peers.add("localhost:" + ports[j]);
+            }
+            int port = ports[i];
+            Broker broker = new Broker(port, peers, options);
+            Thread thread = new Thread(() -> {
+                try {
+                    broker.start();
+                } catch (IOException e) {
+                    console.println("Broker on port " + port + " failed: " + e);
+                }
+            }, "broker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            brokers.add(broker);
+            connect(ports[i], "probe", null).close();
+        }
+        for (Broker broker : brokers) {
+            while (broker.getPeerLinks().size() < brokerCount - 1) {
+                Thread.sleep(10);
+            }
+        }
+
+        List<BrokerClient> subscribers = new ArrayList<>();
+        BrokerClient.Listener recorder = new BrokerClient.Listener() {
+            @Override
+            public void onMessage(String topicId, long timestamp, byte[] payload) {
+                long due = ByteBuffer.wrap(payload).getLong();
+                if (due >= measureFrom) {
+                    latencies.recordValue(Math.max(0, System.nanoTime() - due));
+                    delivered.increment();
+                }
+            }
+        };
+        for (int i = 0; i < subscriberCount; i++) {
+            subscribers.add(connect(ports[i % brokerCount], "subscriber" + i, recorder));
+        }
+        List<BrokerClient> publishers = new ArrayList<>();
+        for (int i = 0; i < publisherCount; i++) {
+            BrokerClient publisher = connect(ports[i % brokerCount], "publisher" + i, null);
+            BrokerClient.await(publisher.create("load/" + i, "Load" + i));
+            publishers.add(publisher);
+        }
+        for (BrokerClient subscriber : subscribers) {
+            for (int i = 0; i < publisherCount; i++) {
+                BrokerClient.await(subscriber.subscribe("load/" + i));
+            }
+        }
+        // Let the subscriptions reach the publishers' Brokers
+        Thread.sleep(500);
+
+        console.printf("%d broker(s), %d publisher(s), %d subscriber(s), %d msg/s of %d bytes, %ds after %ds warmup%n",
+            brokerCount, publisherCount, subscriberCount, rate, payloadBytes, seconds, warmupSeconds);
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        long interval = TimeUnit.SECONDS.toNanos(1) * publisherCount / rate; // per publisher
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < publisherCount; i++) {
+            BrokerClient publisher = publishers.get(i);
+            String topicId = "load/" + i;
+            long first = start + interval * i / publisherCount; // spread the publishers out
+            Thread thread = new Thread(() -> publish(publisher, topicId, payloadBytes, first, interval, end),
+                "publisher-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Thread.sleep(1000); // messages still on their way
+        Histogram histogram = latencies.getIntervalHistogram();
+        double elapsed = seconds;
+
+        long expected = published.sum() * subscriberCount;
+        console.printf("published %d (%.0f msg/s), delivered %d of %d (%.0f msg/s), %d publishes failed%n",
+            published.sum(), published.sum() / elapsed, delivered.sum(), expected, delivered.sum() / elapsed,
+            failed.sum());
+        console.printf("latency us: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n",
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+            histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0);
+        histogram.outputPercentileDistribution(console, 1000.0);
+        for (BrokerClient client : subscribers) {
+            client.close();
+        }
+        for (BrokerClient client : publishers) {
+            client.close();
+        }
+        System.exit(0);
+    }
+
+    // Sends on schedule; a publish that is late goes out at once, stamped with the time it was due
+    private static void publish(BrokerClient publisher, String topicId, int payloadBytes, long first, long interval,
+        long end) {
+        for (long due = first; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            byte[] payload = new byte[payloadBytes];
+            ByteBuffer.wrap(payload).putLong(due);
+            try {
+                CompletableFuture<Void> reply = publisher.publish(topicId, payload);
+                if (due >= measureFrom) {
+                    reply.whenComplete((result, error) -> (error == null ? published : failed).increment());
+                }
+            } catch (IOException e) {
+                failed.increment();
+            }
+        }
+    }
+
+    // The Brokers' server sockets may not be open yet
+    private static BrokerClient connect(int port, String name, BrokerClient.Listener listener) throws Exception {
+        BrokerClient.Listener ignore = (topicId, timestamp, payload) -> {
+        };
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return BrokerClient.connect("localhost", port, name, listener == null ? ignore : listener);
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// What one publisher flooding a Broker does to another's latency. Starts a Broker in this JVM with
+// the given options; a "noisy" publisher sends as fast as its window allows while a "quiet" one
+// sends at a steady rate, each to its own topic with its own subscriber. Prints the quiet topic's
+// latency, measured from when each message was due, and how many of the noisy publisher's messages
+// the Broker took or throttled. Compare a plain run with one under --publisher-rate=<n>.
+//
+//   mvn package
+//   java -cp Tools/target/tools.jar NoisyNeighbor [--seconds=5] [--quiet-rate=1000] [--window=256]
+//       [--payload=1000] [broker-options]
+public class NoisyNeighbor {
+    private static final Recorder latencies = new Recorder(TimeUnit.SECONDS.toNanos(60), 3);
+    private static final LongAdder admitted = new LongAdder();
+    private static final LongAdder throttled = new LongAdder();
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        BrokerOptions options = BrokerOptions.parse(args, new ArrayList<>());
+        int seconds = options.getInt("seconds", 5);
+        int quietRate = options.getInt("quiet-rate", 1000);
+        int window = options.getInt("window", 256);
+        int payloadBytes = Math.max(8, options.getInt("payload", 1000));
+        PrintStream console = System.out;
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Broker broker = new Broker(port, new ArrayList<>(), options);
+        Thread brokerThread = new Thread(() -> {
+            try {
+                broker.start();
+            } catch (IOException e) {
+                console.println("Broker failed: " + e);
+            }
+        }, "broker");
+        brokerThread.setDaemon(true);
+        brokerThread.start();
+
+        BrokerClient.Listener ignore = (topicId, timestamp, payload) -> {
+        };
+        BrokerClient noisySubscriber = connect(port, "noisy-subscriber", ignore, 64);
+        BrokerClient quietSubscriber = connect(port, "quiet-subscriber", (topicId, timestamp, payload) ->
+            latencies.recordValue(Math.max(0, System.nanoTime() - ByteBuffer.wrap(payload).getLong())), 64);
+        BrokerClient noisy = connect(port, "noisy", ignore, window);
+        BrokerClient quiet = connect(port, "quiet", ignore, 64);
+        BrokerClient.await(noisy.create("noisy", "Noisy"));
+        BrokerClient.await(quiet.create("quiet", "Quiet"));
+        BrokerClient.await(noisySubscriber.subscribe("noisy"));
+        BrokerClient.await(quietSubscriber.subscribe("quiet"));
+
+        Thread flood = new Thread(() -> {
+            byte[] payload = new byte[payloadBytes];
+            while (running) {
+                try {
+                    noisy.publish("noisy", payload).whenComplete((result, error) ->
+                        (error == null ? admitted : throttled).increment());
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "noisy");
+        flood.start();
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / quietRate;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        latencies.reset();
+        for (long due = System.nanoTime(); due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            byte[] payload = new byte[payloadBytes];
+            ByteBuffer.wrap(payload).putLong(due);
+            CompletableFuture<Void> reply = quiet.publish("quiet", payload);
+            reply.exceptionally(error -> null);
+        }
+        running = false;
+        flood.join();
+        Thread.sleep(500); // messages still on their way
+        Histogram histogram = latencies.getIntervalHistogram();
+
+        console.printf("noisy publisher: %.0f msg/s taken, %.0f msg/s throttled%n",
+            admitted.sum() / (double) seconds, throttled.sum() / (double) seconds);
+        console.printf("quiet topic at %d msg/s, latency us: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n", quietRate,
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+            histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0);
+        System.exit(0);
+    }
+
+    private static BrokerClient connect(int port, String name, BrokerClient.Listener listener, int window)
+        throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return BrokerClient.connect("localhost", port, name, listener, window);
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
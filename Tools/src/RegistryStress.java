@@ -0,0 +1,194 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Multi-threaded stress run of the broker's command paths against one in-memory broker: every
+// worker publishes to its own topics while also subscribing, unsubscribing, deleting, recreating
+// and listing. Fails (exit code 1) on any exception, out-of-order delivery or registry
+// inconsistency left behind.
+//
+//   javac -cp <broker-classes> -d <out> Tools/src/RegistryStress.java
+//   java -cp <broker-classes>:<out> RegistryStress [threads] [topics-per-thread] [seconds]
+public class RegistryStress {
+    private static final AtomicLong failures = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int topicsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Broker broker = new Broker(0, new ArrayList<>());
+        List<CheckingConnection> subscribers = new ArrayList<>();
+        for (int i = 0; i < threads * 4; i++) {
+            subscribers.add(new CheckingConnection());
+        }
+        AtomicLong publishes = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            int worker = w;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                CheckingConnection publisher = new CheckingConnection();
+                long sequence = 0;
+                try {
+                    for (int t = 0; t < topicsPerThread; t++) {
+                        broker.handleCommand("create w" + worker + "t" + t + " Topic" + t + " p" + worker, publisher);
+                    }
+                    while (System.nanoTime() < deadline) {
+                        String topicId = "w" + worker + "t" + random.nextInt(topicsPerThread);
+                        String otherTopicId = "w" + random.nextInt(threads) + "t" + random.nextInt(topicsPerThread);
+                        CheckingConnection subscriber = subscribers.get(random.nextInt(subscribers.size()));
+                        int op = random.nextInt(100);
+                        if (op < 70) {
+                            broker.handleCommand("publish " + topicId + " p" + worker + " x" + worker + " " + sequence++, publisher);
+                            publishes.incrementAndGet();
+                        } else if (op < 82) {
+                            broker.handleCommand("subscribe " + otherTopicId, subscriber);
+                        } else if (op < 92) {
+                            broker.handleCommand("unsubscribe " + otherTopicId, subscriber);
+                        } else if (op < 96) {
+                            broker.handleCommand("delete " + topicId + " p" + worker, publisher);
+                            broker.handleCommand("create " + topicId + " Topic p" + worker, publisher);
+                        } else if (op < 98) {
+                            broker.handleCommand("list", subscriber);
+                        } else {
+                            broker.handleCommand("showAll p" + worker, publisher);
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    e.printStackTrace(console);
+                }
+            }, "stress-" + w);
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        System.setOut(console);
+
+        // Every subscription index entry must point at a live topic that lists the subscriber
+        TopicRegistry registry = broker.getRegistry();
+        long subscriptions = 0;
+        for (CheckingConnection subscriber : subscribers) {
+            for (String topicId : registry.getSubscriptions(subscriber)) {
+                subscriptions++;
+                TopicRegistry.Topic topic = registry.getTopic(topicId);
+                if (topic == null || !List.of(topic.getSubscribers()).contains(subscriber)) {
+                    console.println("Stale subscription: " + topicId);
+                    failures.incrementAndGet();
+                }
+            }
+        }
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            for (ClientConnection subscriber : topic.getSubscribers()) {
+                if (!registry.getSubscriptions(subscriber).contains(topic.getId())) {
+                    console.println("Subscriber missing from index: " + topic.getId());
+                    failures.incrementAndGet();
+                }
+            }
+        }
+
+        // The listing indexes must hold exactly the live topics, each under its publisher
+        Set<String> listed = new HashSet<>();
+        for (String after = null; ; ) {
+            TopicRegistry.Page page = registry.getTopicPage("", after, 1000);
+            for (TopicRegistry.Topic topic : page.getTopics()) {
+                listed.add(topic.getId());
+                if (registry.getTopic(topic.getId()) != topic) {
+                    console.println("Stale listing: " + topic.getId());
+                    failures.incrementAndGet();
+                }
+            }
+            if ((after = page.getNext()) == null) {
+                break;
+            }
+        }
+        for (int w = 0; w < threads; w++) {
+            String publisherName = "p" + w;
+            for (TopicRegistry.Topic topic :
+                registry.getPublisherTopicPage(publisherName, "", null, Integer.MAX_VALUE).getTopics()) {
+                if (registry.getTopic(topic.getId()) != topic || !topic.isPublisher(publisherName)) {
+                    console.println("Stale publisher listing: " + topic.getId());
+                    failures.incrementAndGet();
+                }
+            }
+        }
+        int listedByName = registry.getTopicPageByName("", null, Integer.MAX_VALUE).getTopics().size();
+        if (listedByName != listed.size()) {
+            console.println("Listed " + listedByName + " topics by name but " + listed.size() + " by ID");
+            failures.incrementAndGet();
+        }
+        for (TopicRegistry.Topic topic : registry.getTopics()) {
+            if (!listed.contains(topic.getId())) {
+                console.println("Topic missing from listing: " + topic.getId());
+                failures.incrementAndGet();
+            }
+        }
+
+        long delivered = 0;
+        for (CheckingConnection subscriber : subscribers) {
+            delivered += subscriber.delivered;
+        }
+        console.printf("threads=%d topics=%d publishes=%d (%.0f/s) delivered=%d subscriptions=%d failures=%d%n",
+            threads, threads * topicsPerThread, publishes.get(), publishes.get() / (double) seconds,
+            delivered, subscriptions, failures.get());
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+
+    // Counts deliveries and checks that each publisher's messages arrive in sequence per topic
+    private static final class CheckingConnection extends ClientConnection {
+        private final Map<String, Long> lastSequence = new HashMap<>();
+        private long delivered;
+
+        @Override
+        public void println(String reply) {
+            // Command replies; only deliveries are checked
+        }
+
+        @Override
+        public synchronized void send(byte[] frame) {
+            // <dd/MM> <HH:mm:ss> <topicId>:<topicName>: <worker> <sequence>
+            String line = new String(frame).trim();
+            if (!line.contains(": ")) {
+                return; // a command reply queued as a frame, e.g. a subscribe's "success"
+            }
+            String rest = line.substring(line.indexOf(' ', line.indexOf(' ') + 1) + 1);
+            if (rest.endsWith("Topic is deleted")) {
+                return;
+            }
+            String topicId = rest.substring(0, rest.indexOf(':'));
+            String[] message = rest.substring(rest.indexOf(": ") + 2).split(" ");
+            long sequence = Long.parseLong(message[1]);
+            Long previous = lastSequence.put(topicId + "/" + message[0], sequence);
+            if (previous != null && previous >= sequence) {
+                System.err.println("Out of order on " + topicId + ": " + previous + " then " + sequence);
+                failures.incrementAndGet();
+            }
+            delivered++;
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// How evenly `--sharding` spreads topics over the Brokers and how many change owner when one joins.
+// For 2 to 16 Brokers it assigns the topics with ConsistentHashRing, prints the smallest and largest
+// share against the even 1/n, then adds one Broker and prints the fraction of topics that moved
+// against the ideal 1/(n+1). Topic IDs look like the ones clients use ("load/123").
+//
+//   javac -cp <broker-classes> -d <out> Tools/src/ShardBalance.java
+//   java -cp <broker-classes>:<out> ShardBalance [topics] [virtual-nodes]
+public class ShardBalance {
+    public static void main(String[] args) {
+        int topics = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int virtualNodes = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+
+        System.out.printf("%d topics, %d virtual nodes per broker%n", topics, virtualNodes);
+        System.out.printf("%8s %10s %10s %10s %10s %10s%n", "brokers", "even", "min", "max", "moved", "ideal");
+        for (int brokers = 2; brokers <= 16; brokers *= 2) {
+            ConsistentHashRing ring = new ConsistentHashRing(virtualNodes);
+            for (int i = 0; i < brokers; i++) {
+                ring.add("broker-" + i);
+            }
+            String[] owners = new String[topics];
+            Map<String, Integer> shares = new HashMap<>();
+            for (int t = 0; t < topics; t++) {
+                owners[t] = ring.owner("load/" + t);
+                shares.merge(owners[t], 1, Integer::sum);
+            }
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            for (int share : shares.values()) {
+                min = Math.min(min, share);
+                max = Math.max(max, share);
+            }
+
+            ring.add("broker-" + brokers);
+            int moved = 0;
+            for (int t = 0; t < topics; t++) {
+                if (!ring.owner("load/" + t).equals(owners[t])) {
+                    moved++;
+                }
+            }
+            System.out.printf("%8d %9.2f%% %9.2f%% %9.2f%% %9.2f%% %9.2f%%%n", brokers, 100.0 / brokers,
+                100.0 * min / topics, 100.0 * max / topics, 100.0 * moved / topics, 100.0 / (brokers + 1));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// What listing topics costs as the registry grows. Fills an in-memory Broker with --topics topics
+// from --publishers publishers, then times the listing commands a client sends and the size of each
+// reply: the first page of "list", a page in the middle, a prefix and a name search, and one
+// publisher's "showAll", plus walking every page with the cursors. Each call should take about as
+// long with 10,000 topics as with 1,000,000. With --limit and --page-size above --topics, one reply
+// holds every topic, as list and showAll used to.
+//
+//   mvn package
+//   java -cp Tools/target/tools.jar TopicListing [--topics=200000] [--publishers=100] [--limit=100]
+//       [--rounds=200] [broker-options]
+public class TopicListing {
+    public static void main(String[] args) throws Exception {
+        BrokerOptions options = BrokerOptions.parse(args, new ArrayList<>());
+        int topics = options.getInt("topics", 200000);
+        int publishers = options.getInt("publishers", 100);
+        int limit = options.getInt("limit", 100);
+        int rounds = options.getInt("rounds", 200);
+        PrintStream console = System.out;
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Broker broker = new Broker(0, new ArrayList<>(), options);
+        Reader reader = new Reader();
+        long start = System.nanoTime();
+        for (int i = 0; i < topics; i++) {
+            // IDs like sensors-17/t123, names like Topic123 shared by every 1000th topic
+            String topicId = "sensors-" + (i % 50) + "/t" + i;
+            broker.handleCommand("create " + topicId + " Topic" + (i % 1000) + " p" + (i % publishers), reader);
+        }
+        console.printf("created %d topics in %d ms%n", topics, (System.nanoTime() - start) / 1_000_000);
+
+        String middle = null;
+        int pages = 0;
+        start = System.nanoTime();
+        String next = null;
+        do {
+            reader.next = null;
+            broker.handleCommand(next == null ? "list limit=" + limit : "list limit=" + limit + " after=" + next, reader);
+            next = reader.next;
+            if (++pages == topics / limit / 2) {
+                middle = next;
+            }
+        } while (next != null);
+        console.printf("walked %d pages of %d in %d ms%n", pages, limit, (System.nanoTime() - start) / 1_000_000);
+
+        String[] commands = {
+            "list limit=" + limit,
+            middle == null ? null : "list limit=" + limit + " after=" + middle,
+            "list prefix=sensors-7/ limit=" + limit,
+            "list name=Topic42 limit=" + limit,
+            "showAll p0 limit=" + limit,
+        };
+        for (String command : commands) {
+            if (command == null) {
+                continue;
+            }
+            long[] nanos = new long[rounds];
+            for (int round = 0; round < rounds; round++) {
+                reader.bytes = 0;
+                long begin = System.nanoTime();
+                broker.handleCommand(command, reader);
+                nanos[round] = System.nanoTime() - begin;
+            }
+            Arrays.sort(nanos);
+            String label = middle == null ? command : command.replace(middle, "<cursor>");
+            console.printf("%-45s p50 %8.1f us  p99 %8.1f us  %8d bytes%n", label,
+                nanos[rounds / 2] / 1000.0, nanos[rounds * 99 / 100] / 1000.0, reader.bytes);
+        }
+        System.exit(0);
+    }
+
+    // Counts the reply and keeps the cursor it ends with
+    private static final class Reader extends ClientConnection {
+        private long bytes;
+        private String next;
+
+        @Override
+        public void println(String line) {
+            if (line.startsWith("next ")) {
+                next = line.substring(5);
+            }
+            super.println(line);
+        }
+
+        @Override
+        public void send(byte[] frame) {
+            bytes += frame.length;
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}